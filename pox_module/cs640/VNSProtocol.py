@@ -1,9 +1,11 @@
 """Defines the VNS protocol and some associated helper functions."""
 
+import os
 import re
 from socket import inet_aton, inet_ntoa
 import struct
 
+from twisted.internet import reactor
 from ltprotocol.ltprotocol import LTMessage, LTProtocol, LTTwistedServer
 
 VNS_DEFAULT_PORT = 3250
@@ -198,7 +200,7 @@ VNS_MESSAGES.append(VNSHardwareInfo)
 
 VNS_PROTOCOL = LTProtocol(VNS_MESSAGES, 'I', 'I')
 
-def create_vns_server(port, recv_callback, new_conn_callback, lost_conn_callback, verbose=True):
+def create_vns_server(port, recv_callback, new_conn_callback, lost_conn_callback, verbose=True, unix_path=None):
     """Starts a server which listens for VNS clients on the specified port.
 
     @param port  the port to listen on
@@ -207,9 +209,18 @@ def create_vns_server(port, recv_callback, new_conn_callback, lost_conn_callback
     @param new_conn_callback   called with one argument (a LTProtocol) when a connection is started
     @param lost_conn_callback  called with one argument (a LTProtocol) when a connection is lost
     @param verbose        whether to print messages when they are sent
+    @param unix_path      if not None, listen on a Unix domain socket at this
+                          path instead of the port; clients on the same host
+                          then skip the TCP/IP stack
 
     @return returns the new LTTwistedServer
     """
     server = LTTwistedServer(VNS_PROTOCOL, recv_callback, new_conn_callback, lost_conn_callback, verbose)
-    server.listen(port)
+    if unix_path is None:
+        server.listen(port)
+    else:
+        # remove a socket left behind by an earlier server
+        if os.path.exists(unix_path):
+            os.unlink(unix_path)
+        reactor.listenUNIX(unix_path, server)
     return server
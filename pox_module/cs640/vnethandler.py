@@ -89,14 +89,18 @@ class VNetDevice:
 
 class VNetServerListener(EventMixin):
   ''' TCP Server to handle connection to VNet '''
-  def __init__ (self, address=('127.0.0.1', 8888)):
+  def __init__ (self, address=('127.0.0.1', 8888), unix_path=None):
     port = address[1]
     self.listenTo(core.VNetOFNetHandler)
     self.devsByConn = {}
     self.devsByName = {}
     self.server = create_vns_server(port, self.recv_msg,
-        self.handle_new_client, self.handle_client_disconnect)
-    log.info("VNet server listening on %s:%d" % (address[0],address[1]))
+        self.handle_new_client, self.handle_client_disconnect,
+        unix_path=unix_path)
+    if unix_path is None:
+      log.info("VNet server listening on %s:%d" % (address[0],address[1]))
+    else:
+      log.info("VNet server listening on unix socket %s" % unix_path)
     return
 
   def _handle_VNetPacketIn(self, event):
@@ -142,7 +146,8 @@ class VNetServerListener(EventMixin):
     dev.handle_packet_msg(vns_msg)
 
   def handle_new_client(self, conn):
-    log.debug('Accepted client at %s' % conn.transport.getPeer().host)
+    peer = conn.transport.getPeer()
+    log.debug('Accepted client at %s' % getattr(peer, 'host', peer))
     return
 
   def handle_client_disconnect(self, conn):
@@ -165,7 +170,7 @@ class VNetPacketOut(Event):
 class VNetHandler(EventMixin):
   _eventMixin_events = set([VNetPacketOut])
 
-  def __init__(self):
+  def __init__(self, unix_path=None):
     EventMixin.__init__(self)
     self.listenTo(core)
     self.listenTo(core.VNetOFNetHandler)
@@ -175,7 +180,7 @@ class VNetHandler(EventMixin):
     self.server_thread = threading.Thread(target=lambda: reactor.run(installSignalHandlers=False))
     self.server_thread.daemon = True
     self.server_thread.start()
-    self.server = VNetServerListener()
+    self.server = VNetServerListener(unix_path=unix_path)
 
   def _handle_VNetDevInfo(self, event):
     log.info("VNetHandler catch VNetDevInfo(ifaces=%s,swid=%s,dpid=%d)", 
@@ -185,8 +190,11 @@ class VNetHandler(EventMixin):
   def _handle_GoingDownEvent (self, event):
     log.debug("Shutting down VNetServer")
 
-def launch():
+def launch(unix_socket=None):
   """
   Starts the VNet handler application.
+
+  Pass --unix_socket=<path> to serve devices through a Unix domain socket
+  instead of TCP; start each device with -u <path>.
   """
-  core.registerNew(VNetHandler)
+  core.registerNew(VNetHandler, unix_socket)
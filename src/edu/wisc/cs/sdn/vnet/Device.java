@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -110,5 +111,26 @@ public abstract class Device
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send a raw Ethernet frame out a specific interface.
+	 * @param frame buffer whose remaining bytes are the frame to send
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendRawPacket(ByteBuffer frame, Iface iface)
+	{ return this.vnsComm.sendRawPacket(frame, iface.getName()); }
+	
+	/**
+	 * Handle a raw Ethernet frame received on a specific interface without
+	 * building packet objects for it. Devices may rewrite the frame in place
+	 * and send it with {@link #sendRawPacket(ByteBuffer, Iface)}.
+	 * @param frame buffer whose remaining bytes are the received frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, false if it should be
+	 *         deserialized and passed to {@link #handlePacket(Ethernet, Iface)}
+	 */
+	public boolean handleRawPacket(ByteBuffer frame, Iface inIface)
+	{ return false; }
+	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
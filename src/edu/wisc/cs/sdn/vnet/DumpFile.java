@@ -1,12 +1,33 @@
 package edu.wisc.cs.sdn.vnet;
 
-import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 import net.floodlightcontroller.packet.Ethernet;
 
+/**
+ * A PCAP file to which a device logs the frames it sends and receives.
+ * Frames are copied into a ring and written to the file by a background
+ * thread, so logging never waits on the disk; if the disk falls behind and
+ * the ring fills, frames are dropped (and counted) rather than holding up
+ * the device.
+ * <p>
+ * A rotating capture instead spreads the frames over numbered segment files
+ * (name.0, name.1, ...) of a fixed size, keeping only the newest few. Each
+ * segment is mapped into memory when it is created, and frames are copied
+ * straight into the mapping; the background thread only creates the next
+ * segment, trims the full one to the records it holds and deletes the
+ * oldest.
+ */
 public class DumpFile
 {
 	private static final int TCPDUMP_MAGIC = 0xa1b2c3d4;
@@ -16,32 +37,133 @@ public class DumpFile
 	private static final int SIG_FIGS = 0;
 	private static final int SNAP_LEN = 65535;
 	private static final int LINKTYPE_ETHERNET = 1;
+
+	/** Size of the file header */
+	private static final int FILE_HEADER_SIZE = 24;
+	
+	/** Size of a record's header: seconds, microseconds and two lengths */
+	private static final int RECORD_HEADER_SIZE = 16;
 	
-	private FileOutputStream fileStream;
-	DataOutputStream outStream;
+	/** Size of the ring in which records wait to be written; a power of 2 */
+	private static final int RING_SIZE = 4 * 1024 * 1024;
 	
-	private DumpFile(FileOutputStream fileStream)
+	/** Amount of waiting records at which the writer is woken early */
+	private static final int WRITE_THRESHOLD = 256 * 1024;
+
+	/** Longest time a record waits in the ring before it is written */
+	private static final long FLUSH_INTERVAL_MILLIS = 100;
+
+	/** Number of segments a rotating capture keeps if not told otherwise */
+	public static final int DEFAULT_SEGMENT_COUNT = 10;
+
+	/** Smallest segment of a rotating capture */
+	public static final int MIN_SEGMENT_SIZE = 64 * 1024;
+
+	/** A file of a rotating capture, mapped into memory */
+	private static class Segment
 	{
-		this.fileStream = fileStream;
-		outStream = new DataOutputStream(fileStream);
+		final long number;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+
+		Segment(long number, FileChannel channel, MappedByteBuffer buffer)
+		{
+			this.number = number;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
 	}
-	
-	private DumpFile()
+
+	/** Channel to which the ring is written; null for a rotating capture */
+	private final WritableByteChannel channel;
+
+	/** Stream to flush after each write; null if writing to a file */
+	private final PrintStream console;
+
+	/** Records waiting to be written; null for a rotating capture */
+	private final ByteBuffer ring;
+
+	/** Name from which segment names are made */
+	private final String filename;
+
+	/** Size of each segment */
+	private final int segmentSize;
+
+	/** Number of segments kept */
+	private final int segmentCount;
+
+	/** Segment to which frames are added; guarded by this */
+	private Segment current;
+
+	/** Segment to use once the current one fills; null until the writer has
+	 * created it; guarded by this */
+	private Segment next;
+
+	/** Full segment the writer has yet to trim; guarded by this */
+	private Segment retired;
+
+	/** Number of the next segment to create; used by the writer */
+	private long segmentNumber;
+
+	/** Holds the header of the record being added; guarded by this */
+	private final ByteBuffer header;
+
+	/** Number of bytes ever taken out of the ring; guarded by this */
+	private long head;
+
+	/** Number of bytes ever put into the ring; guarded by this */
+	private long tail;
+
+	/** Number of frames dropped because the ring was full; guarded by this */
+	private long dropped;
+
+	/** Whether the file is closed to new frames; guarded by this */
+	private boolean closed;
+
+	/** Whether close has been called; guarded by this */
+	private boolean closing;
+
+	private Thread writer;
+
+	private DumpFile(WritableByteChannel channel, PrintStream console)
+	{
+		this.channel = channel;
+		this.console = console;
+		this.ring = ByteBuffer.allocateDirect(RING_SIZE);
+		this.header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		this.filename = null;
+		this.segmentSize = 0;
+		this.segmentCount = 0;
+	}
+
+	private DumpFile(String filename, int segmentSize, int segmentCount)
 	{
-		this.fileStream = null;
-		outStream = new DataOutputStream(System.out);
+		this.channel = null;
+		this.console = null;
+		this.ring = null;
+		this.header = null;
+		this.filename = filename;
+		this.segmentSize = segmentSize;
+		this.segmentCount = segmentCount;
 	}
 	
 	public static DumpFile open(String filename)
 	{
 		DumpFile dumpFile = null;
 		if (filename.equals("-"))
-		{ dumpFile = new DumpFile(); }
+		{
+			dumpFile = new DumpFile(Channels.newChannel(System.out),
+					System.out);
+		}
 		else
 		{
 			try 
-			{ dumpFile = new DumpFile(new FileOutputStream(filename)); } 
-			catch (FileNotFoundException e) 
+			{
+				dumpFile = new DumpFile(FileChannel.open(Paths.get(filename),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING), null);
+			}
+			catch (IOException e)
 			{
 				System.err.println("Cannot open " + filename);
 				return null;
@@ -50,21 +172,66 @@ public class DumpFile
 		
 		if (!dumpFile.writeHeader())
 		{ return null; }
+		dumpFile.start();
 		return dumpFile;
 	}
 	
+	/**
+	 * Open a rotating capture, which keeps only the newest frames.
+	 * @param filename name from which segment names are made, by appending
+	 *        a dot and the segment's number
+	 * @param segmentSize size of each segment, at least MIN_SEGMENT_SIZE
+	 * @param segmentCount number of segments to keep
+	 * @return the capture; null if it could not be opened
+	 */
+	public static DumpFile open(String filename, int segmentSize,
+			int segmentCount)
+	{        
+		if (filename.equals("-") || segmentSize < MIN_SEGMENT_SIZE
+				|| segmentCount < 1)
+		{
+			System.err.println("Invalid rotating capture " + filename);
+			return null;
+		}
+
+		DumpFile dumpFile = new DumpFile(filename, segmentSize, segmentCount);
+		try
+		{
+			dumpFile.current = dumpFile.createSegment();
+			dumpFile.next = dumpFile.createSegment();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Cannot open " + filename + ": " + e);
+			return null;
+		}
+		dumpFile.start();
+		return dumpFile;
+	}
+
+	private static ByteBuffer createHeader()
+	{
+		ByteBuffer buf = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		buf.putInt(TCPDUMP_MAGIC);
+		buf.putShort(PCAP_VERSION_MAJOR);
+		buf.putShort(PCAP_VERSION_MINOR);
+		buf.putInt(THIS_ZONE);
+		buf.putInt(SIG_FIGS);
+		buf.putInt(SNAP_LEN);
+		buf.putInt(LINKTYPE_ETHERNET);
+		buf.flip();
+		return buf;
+	}
+
 	private boolean writeHeader()
 	{        
+		ByteBuffer buf = createHeader();
 		try 
 		{
-			this.outStream.writeInt(TCPDUMP_MAGIC);
-			this.outStream.writeShort(PCAP_VERSION_MAJOR);
-			this.outStream.writeShort(PCAP_VERSION_MINOR);
-			this.outStream.writeInt(THIS_ZONE);
-			this.outStream.writeInt(SIG_FIGS);
-			this.outStream.writeInt(SNAP_LEN);
-			this.outStream.writeInt(LINKTYPE_ETHERNET);
-	        this.outStream.flush();
+			while (buf.hasRemaining())
+			{ this.channel.write(buf); }
+			if (this.console != null)
+			{ this.console.flush(); }
 	        return true;
 		}
 		catch (IOException e)
@@ -75,33 +242,313 @@ public class DumpFile
 
 	}
 	
+	/**
+	 * Start the writer thread. Records still in the ring when the process
+	 * exits are written before it does.
+	 */
+	private void start()
+	{
+		this.writer = new Thread(new Runnable() {
+			public void run()
+			{
+				if (null == ring)
+				{ rotate(); }
+				else
+				{ write(); }
+			}
+		}, "Dump file writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run()
+			{ close(); }
+		}));
+	}
+
 	public void dump(Ethernet etherPacket)
 	{
 		byte[] buf = etherPacket.serialize();
-		
-		int sec = (int)(System.currentTimeMillis()/1000);
-		int usec = (int)((System.currentTimeMillis() % 1000)*1000);
+		this.dump(buf, 0, buf.length);
+	}
+	
+	public void dump(byte[] buf, int offset, int length)
+	{ this.dump(ByteBuffer.wrap(buf, offset, length)); }
+
+	/**
+	 * Log a frame held in a buffer. The frame is copied, so the buffer may
+	 * be reused once this returns.
+	 * @param frame buffer whose remaining bytes are the frame; its position
+	 *        is not changed
+	 */
+	public void dump(ByteBuffer frame)
+	{
+		long now = System.currentTimeMillis();
+		int length = frame.remaining();
+		synchronized (this)
+		{
+			if (this.closed)
+			{ return; }
+			if (null == this.ring)
+			{
+				this.append(frame, now, length);
+				return;
+			}
+			long waiting = this.tail - this.head;
+			if (RING_SIZE - waiting < RECORD_HEADER_SIZE + length)
+			{
+				this.dropped++;
+				return;
+			}
+
+			this.header.clear();
+			this.header.putInt((int)(now / 1000));
+			this.header.putInt((int)((now % 1000) * 1000));
+			this.header.putInt(length);
+			this.header.putInt(length);
+			this.put(this.header, 0, RECORD_HEADER_SIZE);
+			this.put(frame, frame.position(), length);
+
+			// Wake the writer once enough has piled up to be worth a write
+			if (waiting < WRITE_THRESHOLD
+					&& this.tail - this.head >= WRITE_THRESHOLD)
+			{ this.notify(); }
+		}
+	}
+	
+	/**
+	 * Add a record to the current segment of a rotating capture, moving on
+	 * to the next segment if it is full. The caller must hold the lock.
+	 */
+	private void append(ByteBuffer frame, long now, int length)
+	{
+		int size = RECORD_HEADER_SIZE + length;
+		MappedByteBuffer buffer = this.current.buffer;
+		if (buffer.remaining() < size)
+		{
+			// Drop the frame if the writer has not yet created the next
+			// segment, rather than wait for it
+			if (null == this.next
+					|| size > this.segmentSize - FILE_HEADER_SIZE)
+			{
+				this.dropped++;
+				return;
+			}
+			this.retired = this.current;
+			this.current = this.next;
+			this.next = null;
+			this.notify();
+			buffer = this.current.buffer;
+		}
+
+		buffer.putInt((int)(now / 1000));
+		buffer.putInt((int)((now % 1000) * 1000));
+		buffer.putInt(length);
+		buffer.putInt(length);
+		int position = buffer.position();
+		buffer.put(position, frame, frame.position(), length);
+		buffer.position(position + length);
+	}
+	
+	/**
+	 * Copy bytes to the end of the ring, wrapping around to its start if
+	 * needed. The caller must hold the lock and have checked there is room.
+	 */
+	private void put(ByteBuffer src, int offset, int length)
+	{
+		int index = (int)(this.tail & (RING_SIZE - 1));
+		int first = Math.min(length, RING_SIZE - index);
+		this.ring.put(index, src, offset, first);
+		if (first < length)
+		{ this.ring.put(0, src, offset + first, length - first); }
+		this.tail += length;
+	}
+
+	/**
+	 * Body of the writer thread: write what is in the ring whenever enough
+	 * has piled up or the flush interval has passed, until the file is
+	 * closed and the ring is empty.
+	 */
+	private void write()
+	{
+		// The writer's own view of the ring, so producers can keep adding to
+		// the ring while earlier records are written
+		ByteBuffer view = this.ring.duplicate();
 		try
 		{
-			this.outStream.writeInt(sec);
-			this.outStream.writeInt(usec);
-			this.outStream.writeInt(buf.length);
-			this.outStream.writeInt(buf.length);
-			this.outStream.write(buf);
-			this.outStream.flush();
+			while (true)
+			{
+				long start, end;
+				boolean done;
+				synchronized (this)
+				{
+					if (!this.closed && this.tail - this.head < WRITE_THRESHOLD)
+					{ this.wait(FLUSH_INTERVAL_MILLIS); }
+					start = this.head;
+					end = this.tail;
+					done = this.closed;
+				}
+
+				while (start < end)
+				{
+					int index = (int)(start & (RING_SIZE - 1));
+					int length = (int)Math.min(end - start, RING_SIZE - index);
+					view.limit(index + length);
+					view.position(index);
+					while (view.hasRemaining())
+					{ this.channel.write(view); }
+					start += length;
+				}
+				if (this.console != null)
+				{ this.console.flush(); }
+
+				synchronized (this)
+				{
+					this.head = end;
+					if (done && this.head == this.tail)
+					{ return; }
+				}
+			}
 		}
 		catch (IOException e)
 		{ e.printStackTrace(); }
+		catch (InterruptedException e)
+		{ }
+		finally
+		{
+			synchronized (this)
+			{ this.closed = true; }
+		}
 	}
 	
+	/**
+	 * Body of the writer thread for a rotating capture: trim each segment
+	 * that fills and create the one to follow, until the capture is closed.
+	 */
+	private void rotate()
+	{
+		try
+		{
+			while (true)
+			{
+				Segment full;
+				boolean done;
+				synchronized (this)
+				{
+					while (!this.closed && null == this.retired
+							&& this.next != null)
+					{ this.wait(); }
+					full = this.retired;
+					this.retired = null;
+					done = this.closed;
+				}
+
+				if (full != null)
+				{
+					this.finishSegment(full);
+					long oldest = full.number + 1 - this.segmentCount;
+					if (oldest >= 0)
+					{ Files.deleteIfExists(this.getSegmentPath(oldest)); }
+				}
+				if (done)
+				{
+					// Nothing is added once the capture is closed
+					this.finishSegment(this.current);
+					if (this.next != null)
+					{
+						this.next.channel.close();
+						Files.deleteIfExists(this.getSegmentPath(
+								this.next.number));
+					}
+					return;
+				}
+
+				Segment created = this.createSegment();
+				synchronized (this)
+				{ this.next = created; }
+			}
+		}
+		catch (IOException e)
+		{ e.printStackTrace(); }
+		catch (InterruptedException e)
+		{ }
+		finally
+		{
+			synchronized (this)
+			{ this.closed = true; }
+		}
+	}
+
+	private Path getSegmentPath(long number)
+	{ return Paths.get(this.filename + "." + number); }
+
+	/**
+	 * Create a segment file of the full size and map it into memory.
+	 */
+	private Segment createSegment() throws IOException
+	{
+		long number = this.segmentNumber++;
+		FileChannel channel = FileChannel.open(this.getSegmentPath(number),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try
+		{
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+					0, this.segmentSize);
+			buffer.put(createHeader());
+			return new Segment(number, channel, buffer);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Cut a segment file down to the records it holds and close it.
+	 */
+	private void finishSegment(Segment segment) throws IOException
+	{
+		segment.channel.truncate(segment.buffer.position());
+		segment.channel.close();
+	}
+
+	/**
+	 * @return number of frames dropped because they arrived while the ring
+	 *         was full, or (for a rotating capture) before the next segment
+	 *         was ready
+	 */
+	public synchronized long getDropped()
+	{ return this.dropped; }
+
+	/**
+	 * Stop accepting frames and wait for the ones in the ring to be written,
+	 * or for the last segment to be trimmed.
+	 */
 	public void close()
 	{
+		synchronized (this)
+		{
+			if (this.closing)
+			{ return; }
+			this.closing = true;
+			this.closed = true;
+			this.notify();
+		}
+
+		try
+		{ this.writer.join(); }
+		catch (InterruptedException e) { }
+
 		try
 		{
-			this.outStream.flush();
-			if (this.fileStream != null)
-			{ this.outStream.close(); }
+			if (this.channel != null && null == this.console)
+			{ this.channel.close(); }
 		}
 		catch(IOException e) { }
+
+		long dropped = this.getDropped();
+		if (dropped > 0)
+		{ System.err.println("Dump file dropped " + dropped + " frames"); }
 	}
 }
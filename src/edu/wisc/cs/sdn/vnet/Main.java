@@ -3,6 +3,11 @@ package edu.wisc.cs.sdn.vnet;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.PacketPipeline;
+import edu.wisc.cs.sdn.vnet.vns.SharedLinks;
+import edu.wisc.cs.sdn.vnet.vns.TcpTransport;
+import edu.wisc.cs.sdn.vnet.vns.Transport;
+import edu.wisc.cs.sdn.vnet.vns.UnixTransport;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
 
 public class Main 
@@ -14,9 +19,19 @@ public class Main
 	{
 		String host = null;
 		String server = DEFAULT_SERVER;
+		String socketPath = null;
 		String routeTableFile = null;
 		String arpCacheFile = null;
 		String logfile = null;
+		String linkFile = null;
+		String ringDir = null;
+		int segmentSize = 0;
+		int segmentCount = 0;
+		boolean flatTable = false;
+		boolean fastPath = false;
+		boolean pipelined = false;
+		int ringSize = PacketPipeline.DEFAULT_RING_SIZE;
+		int workers = 1;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
 		Device dev = null;
@@ -36,12 +51,39 @@ public class Main
 			{ host = args[++i]; }
 			else if (arg.equals("-s"))
 			{ server = args[++i]; }
+			else if (arg.equals("-u"))
+			{ socketPath = args[++i]; }
 			else if (arg.equals("-l"))
 			{ logfile = args[++i]; }
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-k"))
+			{
+				String[] rotation = args[++i].split(":");
+				segmentSize = (int)Math.min(Integer.MAX_VALUE,
+						Long.parseLong(rotation[0]) * 1024 * 1024);
+				segmentCount = (rotation.length > 1)
+						? Integer.parseInt(rotation[1]) : DumpFile.DEFAULT_SEGMENT_COUNT;
+			}
+			else if (arg.equals("-m"))
+			{ linkFile = args[++i]; }
+			else if (arg.equals("-g"))
+			{ ringDir = args[++i]; }
+			else if (arg.equals("-d"))
+			{ flatTable = true; }
+			else if (arg.equals("-f"))
+			{ fastPath = true; }
+			else if (arg.equals("-t"))
+			{ pipelined = true; }
+			else if (arg.equals("-q"))
+			{ ringSize = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{
+				workers = Integer.parseInt(args[++i]);
+				pipelined = true;
+			}
 		}
 		
 		if (null == host)
@@ -54,7 +96,9 @@ public class Main
 		DumpFile dump = null;
 		if (logfile != null)
 		{
-			dump = DumpFile.open(logfile);
+			dump = (segmentSize > 0)
+					? DumpFile.open(logfile, segmentSize, segmentCount)
+					: DumpFile.open(logfile);
 			if (null == dump)
 			{
 				System.err.println("Error opening up dump file "+logfile);
@@ -63,11 +107,24 @@ public class Main
 		}
 		
 		if (host.startsWith("s"))
-		{ dev = new Switch(host, dump); }
+		{
+			if (workers > 1)
+			{
+				System.err.println("Only routers can use more than one worker");
+				return;
+			}
+			dev = new Switch(host, dump);
+			if (fastPath)
+			{ ((Switch)dev).enableFastPath(); }
+		}
 		else if (host.startsWith("r"))
 		{
 			// Create router instance
 			dev = new Router(host, dump);
+			if (flatTable)
+			{ ((Router)dev).useFlatForwardingTable(); }
+			if (fastPath)
+			{ ((Router)dev).enableFastPath(); }
 		}
 		else 
 		{
@@ -76,10 +133,11 @@ public class Main
 		}
 		
 		// Connect to Virtual Network Simulator server and negotiate session
-		System.out.println(String.format("Connecting to server %s:%d", 
-				server, port));
+		Transport transport = (socketPath != null) 
+				? new UnixTransport(socketPath) : new TcpTransport(server, port);
+		System.out.println("Connecting to server " + transport);
 		vnsComm = new VNSComm(dev);
-		if (!vnsComm.connectToServer(port, server))
+		if (!vnsComm.connectToServer(transport))
 		{ System.exit(1); }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
 		
@@ -99,10 +157,40 @@ public class Main
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
 
+		// Exchange frames with devices on the same host through shared memory
+		SharedLinks sharedLinks = null;
+		if (linkFile != null)
+		{
+			sharedLinks = new SharedLinks(ringDir, SharedLinks.DEFAULT_RING_SIZE);
+			if (!sharedLinks.load(linkFile) 
+					|| sharedLinks.attach(dev, vnsComm) < 0)
+			{ System.exit(1); }
+		}
+
 		// Read messages from the server until the server closes the connection
+		PacketPipeline pipeline = null;
+		if (pipelined)
+		{
+			pipeline = new PacketPipeline(vnsComm, ringSize, ringSize, workers);
+			pipeline.start();
+		}
+		if (sharedLinks != null)
+		{ sharedLinks.start(); }
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
 		
+		if (sharedLinks != null)
+		{
+			sharedLinks.stop();
+			System.out.println(sharedLinks);
+		}
+		
+		if (pipeline != null)
+		{
+			pipeline.stop();
+			System.out.println(pipeline);
+		}
+		
 		// Shutdown the router
 		dev.destroy();
 	}
@@ -110,8 +198,26 @@ public class Main
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
-		System.out.println("VNet -v host [-s server] [-p port] [-h]");
+		System.out.println("VNet -v host [-s server] [-p port] [-u socket_path] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-k segment_mb[:segments]] [-m link_file] [-g ring_dir]");
+		System.out.println("     [-d] [-f] [-t] [-q ring_slots] [-w workers]");
+		System.out.println("  -v host  name of the device to run (s... for a switch, r... for a router)");
+		System.out.println("  -s server  host name of the server");
+		System.out.println("  -p port  TCP port of the server");
+		System.out.println("  -u socket_path  reach the server through a Unix domain socket");
+		System.out.println("  -h  print this message");
+		System.out.println("  -r routing_table  load the route table from a file (routers)");
+		System.out.println("  -a arp_cache  load static ARP entries from a file (routers)");
+		System.out.println("  -l log_file  log packets to a dump file");
+		System.out.println("  -k segment_mb[:segments]  log to rotating files, keeping the newest segments (with -l)");
+		System.out.println("  -m link_file  exchange frames with devices on this host through shared memory");
+		System.out.println("  -g ring_dir  directory holding the shared-memory rings (with -m)");
+		System.out.println("  -d  use DIR-24-8 flat forwarding table (routers; 64 MB of heap each)");
+		System.out.println("  -f  forward from raw frames in place (transit IPv4 for routers)");
+		System.out.println("  -t  process and send packets on separate threads");
+		System.out.println("  -q ring_slots  size of each pipeline ring (with -t)");
+		System.out.println("  -w workers  process packets on several threads, by flow (routers; implies -t)");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
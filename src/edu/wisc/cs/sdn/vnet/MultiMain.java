@@ -0,0 +1,255 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+import edu.wisc.cs.sdn.vnet.vns.BufferPool;
+import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.EventLoop;
+import edu.wisc.cs.sdn.vnet.vns.SharedLinks;
+import edu.wisc.cs.sdn.vnet.vns.TcpTransport;
+import edu.wisc.cs.sdn.vnet.vns.Transport;
+import edu.wisc.cs.sdn.vnet.vns.UnixTransport;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * Runs many devices in one process. The devices' connections to the server
+ * are served by a few event loops, their buffers come from one pool, and
+ * their timers run on one shared timer thread.
+ */
+public class MultiMain
+{
+	private static final short DEFAULT_PORT = 8888;
+	private static final String DEFAULT_SERVER = "localhost";
+	private static final int DEFAULT_EVENT_LOOPS = 1;
+
+	/** Size of each connection's receive and send buffer */
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	/** Number of buffers allocated at a time */
+	private static final int BUFFERS_PER_SLAB = 64;
+
+	public static void main(String[] args)
+	{
+		List<String> hosts = new ArrayList<String>();
+		String server = DEFAULT_SERVER;
+		String socketPath = null;
+		short port = DEFAULT_PORT;
+		int loopCount = DEFAULT_EVENT_LOOPS;
+		boolean staticRoutes = false;
+		String arpCacheFile = null;
+		String logDir = null;
+		String linkFile = null;
+		String ringDir = null;
+		int segmentSize = 0;
+		int segmentCount = 0;
+		boolean flatTable = false;
+		boolean fastPath = false;
+
+		// Parse arguments
+		for(int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-h"))
+			{
+				usage();
+				return;
+			}
+			else if(arg.equals("-p"))
+			{ port = Short.parseShort(args[++i]); }
+			else if (arg.equals("-s"))
+			{ server = args[++i]; }
+			else if (arg.equals("-u"))
+			{ socketPath = args[++i]; }
+			else if (arg.equals("-e"))
+			{ loopCount = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-r"))
+			{ staticRoutes = true; }
+			else if (arg.equals("-a"))
+			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-l"))
+			{ logDir = args[++i]; }
+			else if (arg.equals("-k"))
+			{
+				String[] rotation = args[++i].split(":");
+				segmentSize = (int)Math.min(Integer.MAX_VALUE,
+						Long.parseLong(rotation[0]) * 1024 * 1024);
+				segmentCount = (rotation.length > 1)
+						? Integer.parseInt(rotation[1]) : DumpFile.DEFAULT_SEGMENT_COUNT;
+			}
+			else if (arg.equals("-m"))
+			{ linkFile = args[++i]; }
+			else if (arg.equals("-g"))
+			{ ringDir = args[++i]; }
+			else if (arg.equals("-d"))
+			{ flatTable = true; }
+			else if (arg.equals("-f"))
+			{ fastPath = true; }
+			else if (arg.startsWith("-"))
+			{
+				usage();
+				return;
+			}
+			else
+			{ hosts.add(arg); }
+		}
+
+		if (hosts.isEmpty() || loopCount < 1)
+		{
+			usage();
+			return;
+		}
+
+		Transport transport = (socketPath != null) 
+				? new UnixTransport(socketPath) : new TcpTransport(server, port);
+
+		// Links through shared memory, between these devices or with devices
+		// in other processes
+		SharedLinks sharedLinks = null;
+		if (linkFile != null)
+		{
+			sharedLinks = new SharedLinks(ringDir, SharedLinks.DEFAULT_RING_SIZE);
+			if (!sharedLinks.load(linkFile))
+			{ return; }
+		}
+
+		// Create the event loops, which share one buffer pool
+		BufferPool bufferPool = new BufferPool(BUFFER_SIZE, BUFFERS_PER_SLAB);
+		EventLoop[] loops = new EventLoop[loopCount];
+		try
+		{
+			for (int i = 0; i < loopCount; i++)
+			{ loops[i] = new EventLoop("Event loop " + i, bufferPool); }
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+
+		// Create each device and connect it to the server
+		List<Device> devices = new ArrayList<Device>();
+		for (String host : hosts)
+		{
+			// Open PCAP dump file for logging packets sent/received by the device
+			DumpFile dump = null;
+			if (logDir != null)
+			{
+				String logfile = new File(logDir, host + ".dump").getPath();
+				dump = (segmentSize > 0)
+					? DumpFile.open(logfile, segmentSize, segmentCount)
+					: DumpFile.open(logfile);
+				if (null == dump)
+				{
+					System.err.println("Error opening up dump file "+logfile);
+					return;
+				}
+			}
+
+			Device dev;
+			if (host.startsWith("s"))
+			{
+				dev = new Switch(host, dump);
+				if (fastPath)
+				{ ((Switch)dev).enableFastPath(); }
+			}
+			else if (host.startsWith("r"))
+			{
+				dev = new Router(host, dump);
+				if (flatTable)
+				{ ((Router)dev).useFlatForwardingTable(); }
+				if (fastPath)
+				{ ((Router)dev).enableFastPath(); }
+			}
+			else
+			{
+				System.err.println("Device name must start with 's' or 'r': "
+						+ host);
+				return;
+			}
+
+			// Connect to Virtual Network Simulator server and negotiate session
+			System.out.println(String.format("Connecting %s to server %s",
+					host, transport));
+			EventLoop loop = loops[devices.size() % loopCount];
+			VNSComm vnsComm = new VNSComm(dev, loop);
+			if (!vnsComm.connectToServer(transport))
+			{ System.exit(1); }
+			vnsComm.readFromServerExpect(Command.VNS_HW_INFO);
+
+			if (dev instanceof Router)
+			{
+				// Read static route table written for the router, or use RIP
+				if (staticRoutes)
+				{ ((Router)dev).loadRouteTable("rtable." + host); }
+				else
+				{ ((Router)dev).initRip(); }
+
+				// Read static ARP cache
+				if (arpCacheFile != null)
+				{ ((Router)dev).loadArpCache(arpCacheFile); }
+			}
+
+			if (sharedLinks != null && sharedLinks.attach(dev, vnsComm) < 0)
+			{ System.exit(1); }
+
+			loop.register(vnsComm);
+			devices.add(dev);
+		}
+
+		// Serve all connections until the server closes them
+		System.out.println(String.format(
+				"<-- Ready to process packets for %d devices -->",
+				devices.size()));
+		System.out.println(bufferPool);
+		if (sharedLinks != null)
+		{ sharedLinks.start(); }
+		for (EventLoop loop : loops)
+		{ loop.start(); }
+		try
+		{
+			for (EventLoop loop : loops)
+			{ loop.join(); }
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+
+		if (sharedLinks != null)
+		{
+			sharedLinks.stop();
+			System.out.println(sharedLinks);
+		}
+
+		// Shutdown the devices
+		for (Device dev : devices)
+		{ dev.destroy(); }
+	}
+
+	static void usage()
+	{
+		System.out.println("Virtual Network Client for many devices");
+		System.out.println("MultiVNet [-s server] [-p port] [-u socket_path] [-h] [-e event_loops]");
+		System.out.println("     [-r] [-a arp_cache] [-l log_dir] [-k segment_mb[:segments]]");
+		System.out.println("     [-m link_file] [-g ring_dir] [-d] [-f] host...");
+		System.out.println("  -s server  host name of the server");
+		System.out.println("  -p port  TCP port of the server");
+		System.out.println("  -u socket_path  reach the server through a Unix domain socket");
+		System.out.println("  -h  print this message");
+		System.out.println("  -e event_loops  number of threads serving the devices' connections");
+		System.out.println("  -r  load each router's route table from rtable.<host>");
+		System.out.println("  -a arp_cache  load static ARP entries from a file (routers)");
+		System.out.println("  -l log_dir  log each device's packets to log_dir/<host>.dump");
+		System.out.println("  -k segment_mb[:segments]  log to rotating files, keeping the newest segments (with -l)");
+		System.out.println("  -m link_file  exchange frames between devices on this host through shared memory");
+		System.out.println("  -g ring_dir  directory holding the shared-memory rings (with -m)");
+		System.out.println("  -d  use DIR-24-8 flat forwarding table (routers; 64 MB of heap each)");
+		System.out.println("  -f  forward from raw frames in place (transit IPv4 for routers)");
+		System.out.println("  host...  names of the devices to run (s... for switches, r... for routers)");
+		System.out.println(String.format("  defaults server=%s port=%d event_loops=%d",
+				DEFAULT_SERVER, DEFAULT_PORT, DEFAULT_EVENT_LOOPS));
+	}
+}
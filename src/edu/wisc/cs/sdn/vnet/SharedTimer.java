@@ -0,0 +1,309 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer shared by every device in the process. Devices and their table
+ * entries schedule tasks on it instead of each starting a timer thread of
+ * their own. A task that throws an exception is not run again, but does not
+ * affect other tasks.
+ * <p>
+ * Tasks are kept in a hashed timing wheel: a ring of slots, one per tick,
+ * each holding a linked list of the timeouts that fall due on that tick in
+ * some turn of the wheel. Scheduling, cancelling and rescheduling a timeout
+ * link or unlink one list node, so they take constant time however many
+ * timeouts are pending (every route, MAC table entry and ARP queue has
+ * one), and each timeout costs one small object. A single thread advances
+ * the wheel a tick at a time and runs the tasks that are due; tasks run up
+ * to a tick late.
+ */
+public class SharedTimer
+{
+	/** Length of a tick, in milliseconds */
+	private static final long TICK_MILLIS = 10;
+
+	/** Number of slots in the wheel, a power of 2; one turn of the wheel
+	 * covers about 5 seconds */
+	private static final int WHEEL_SIZE = 512;
+
+	/** A task on the timer, through which it can be cancelled or moved */
+	public static final class Timeout
+	{
+		private final Runnable task;
+
+		/** Ticks between runs of a repeating task; 0 if it runs once */
+		private final long period;
+
+		/** Tick on which the task is due; guarded by the wheel */
+		private long deadline;
+
+		/** Neighbors in the slot's list; guarded by the wheel */
+		private Timeout prev, next;
+
+		/** Whether the timeout is in a slot's list; guarded by the wheel */
+		private boolean pending;
+
+		/** Whether the timeout was cancelled; guarded by the wheel */
+		private boolean cancelled;
+
+		/** Whether the task is running; guarded by the wheel */
+		private boolean running;
+
+		private Timeout(Runnable task, long period)
+		{
+			this.task = task;
+			this.period = period;
+		}
+
+		/**
+		 * Stop the task from running again. A run that has already started
+		 * is not interrupted.
+		 * @return true if this stopped a run that would otherwise have
+		 *         happened, including one already collected for its tick;
+		 *         false if the timeout was already cancelled, or runs once
+		 *         and has started running
+		 */
+		public boolean cancel()
+		{
+			synchronized (wheel)
+			{
+				if (this.cancelled)
+				{ return false; }
+				this.cancelled = true;
+				if (this.pending)
+				{
+					unlink(this);
+					return true;
+				}
+				
+				// Neither pending nor cancelled, it was either collected and
+				// has not started, or is running and would be put back
+				return !this.running || this.period != 0;
+			}
+		}
+
+		/**
+		 * Move the next run of the task to a delay from now, whether or not
+		 * it has run or was cancelled. A repeating task then continues at
+		 * its period from that run.
+		 * @param delay delay in milliseconds
+		 */
+		public void reschedule(long delay)
+		{
+			synchronized (wheel)
+			{
+				if (this.pending)
+				{ unlink(this); }
+				this.cancelled = false;
+				link(this, ticksFromNow(delay));
+			}
+		}
+
+		/**
+		 * @return whether the task is waiting to run
+		 */
+		public boolean isPending()
+		{
+			synchronized (wheel)
+			{ return this.pending; }
+		}
+	}
+
+	/** Slots of the wheel; each is the head of a list of timeouts, or null.
+	 * Guards every timeout's links and state. */
+	private static final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+
+	/** Time at which tick 0 started */
+	private static final long startTime = System.nanoTime();
+
+	/** Last tick whose due tasks have been collected; guarded by the wheel */
+	private static long currentTick = 0;
+
+	/** Number of timeouts in the wheel; guarded by the wheel */
+	private static int pendingCount = 0;
+
+	static
+	{
+		Thread thread = new Thread(new Runnable() {
+			public void run()
+			{ advance(); }
+		}, "Device timer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private SharedTimer()
+	{ }
+
+	/**
+	 * Run a task once after a delay.
+	 * @param task the task
+	 * @param delay delay in milliseconds
+	 * @return a handle through which the task can be cancelled or moved
+	 */
+	public static Timeout schedule(Runnable task, long delay)
+	{
+		Timeout timeout = new Timeout(task, 0);
+		synchronized (wheel)
+		{ link(timeout, ticksFromNow(delay)); }
+		return timeout;
+	}
+
+	/**
+	 * Run a task repeatedly at a fixed rate.
+	 * @param task the task
+	 * @param delay delay in milliseconds before the first run
+	 * @param period time in milliseconds between the starts of runs
+	 * @return a handle through which the task can be cancelled or moved
+	 */
+	public static Timeout scheduleAtFixedRate(Runnable task, long delay,
+			long period)
+	{
+		Timeout timeout = new Timeout(task,
+				Math.max(1, (period + TICK_MILLIS - 1) / TICK_MILLIS));
+		synchronized (wheel)
+		{ link(timeout, ticksFromNow(delay)); }
+		return timeout;
+	}
+
+	/**
+	 * @return number of tasks waiting to run
+	 */
+	public static int getPending()
+	{
+		synchronized (wheel)
+		{ return pendingCount; }
+	}
+
+	/**
+	 * @param delay delay in milliseconds
+	 * @return the tick on which a task with the delay falls due; never
+	 *         earlier than the next tick to be collected. The caller must
+	 *         hold the wheel's lock.
+	 */
+	private static long ticksFromNow(long delay)
+	{
+		long due = System.nanoTime() - startTime
+				+ TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+		long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+		return Math.max(currentTick + 1, (due + tickNanos - 1) / tickNanos);
+	}
+
+	/**
+	 * Add a timeout to the slot of the tick on which it is due. The caller
+	 * must hold the wheel's lock.
+	 */
+	private static void link(Timeout timeout, long deadline)
+	{
+		int slot = (int)(deadline & (WHEEL_SIZE - 1));
+		timeout.deadline = deadline;
+		timeout.prev = null;
+		timeout.next = wheel[slot];
+		if (timeout.next != null)
+		{ timeout.next.prev = timeout; }
+		wheel[slot] = timeout;
+		timeout.pending = true;
+		pendingCount++;
+	}
+
+	/**
+	 * Take a timeout out of its slot. The caller must hold the wheel's lock.
+	 */
+	private static void unlink(Timeout timeout)
+	{
+		if (timeout.prev != null)
+		{ timeout.prev.next = timeout.next; }
+		else
+		{ wheel[(int)(timeout.deadline & (WHEEL_SIZE - 1))] = timeout.next; }
+		if (timeout.next != null)
+		{ timeout.next.prev = timeout.prev; }
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.pending = false;
+		pendingCount--;
+	}
+
+	/**
+	 * Body of the timer thread: wait for each tick, take the timeouts that
+	 * are due from its slot, and run their tasks.
+	 */
+	private static void advance()
+	{
+		long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+		List<Timeout> due = new ArrayList<Timeout>();
+		while (true)
+		{
+			// Only this thread moves the current tick
+			long wait = startTime + (currentTick + 1) * tickNanos
+					- System.nanoTime();
+			if (wait > 0)
+			{
+				LockSupport.parkNanos(wait);
+				continue;
+			}
+
+			// Collect the timeouts of the next tick; those in the slot that
+			// are due on a later turn of the wheel stay
+			synchronized (wheel)
+			{
+				currentTick++;
+				int slot = (int)(currentTick & (WHEEL_SIZE - 1));
+				Timeout timeout = wheel[slot];
+				while (timeout != null)
+				{
+					Timeout next = timeout.next;
+					if (timeout.deadline <= currentTick)
+					{
+						unlink(timeout);
+						due.add(timeout);
+					}
+					timeout = next;
+				}
+			}
+
+			for (Timeout timeout : due)
+			{ run(timeout); }
+			due.clear();
+		}
+	}
+
+	/**
+	 * Run a timeout's task and, if it repeats and is still wanted, put it
+	 * back in the wheel for its next run.
+	 */
+	private static void run(Timeout timeout)
+	{
+		synchronized (wheel)
+		{
+			if (timeout.cancelled || timeout.pending)
+			{ return; }
+			timeout.running = true;
+		}
+
+		boolean failed = false;
+		try
+		{ timeout.task.run(); }
+		catch (RuntimeException e)
+		{
+			e.printStackTrace();
+			failed = true;
+		}
+
+		synchronized (wheel)
+		{
+			timeout.running = false;
+			if (timeout.pending)
+			{ return; }
+			if (failed || 0 == timeout.period || timeout.cancelled)
+			{
+				timeout.cancelled = true;
+				return;
+			}
+			link(timeout, Math.max(currentTick + 1,
+					timeout.deadline + timeout.period));
+		}
+	}
+}
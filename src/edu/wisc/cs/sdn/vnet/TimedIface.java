@@ -1,6 +1,4 @@
 package edu.wisc.cs.sdn.vnet;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import net.floodlightcontroller.packet.MACAddress;
 
@@ -8,8 +6,8 @@ public class TimedIface implements IfaceInterface
 {
 	// Members
 	TimedIfaceCallback callback;
-	Timer ttlTimer;
-	TimerTask timerTask;
+	SharedTimer.Timeout ttlTimer;
+	Runnable timerTask;
 	private Iface savedInterface;
 	public MACAddress savedMac;
 	TimedIface self;
@@ -22,8 +20,7 @@ public class TimedIface implements IfaceInterface
 		savedMac = mac;
 		self = this;
 		callback = ifaceCallback;
-		ttlTimer = new Timer();
-		timerTask = new TimerTask()
+		timerTask = new Runnable()
 					{
 						@Override
 						public void run() {
@@ -32,7 +29,7 @@ public class TimedIface implements IfaceInterface
 					};
 		//TODO: Remove debug
 		System.out.println("TtlTimer added for task " + savedInterface.getName());
-		ttlTimer.schedule(timerTask, TIMEOUT_DELAY);
+		ttlTimer = SharedTimer.schedule(timerTask, TIMEOUT_DELAY);
 	}
 	
 	// Methods
@@ -40,16 +37,8 @@ public class TimedIface implements IfaceInterface
 	{
 		//TODO: Remove debug
 		System.out.println("TtlTimer reset for task " + savedInterface.getName());
-		timerTask.cancel();
-		// Create a new timer task and then schedule it
-		timerTask = new TimerTask() {
-			
-			@Override
-			public void run() {
-				callback.handleTimer(self);						
-			}
-		};
-		ttlTimer.schedule(timerTask, TIMEOUT_DELAY);
+		// Move the timer task back to the full delay
+		ttlTimer.reschedule(TIMEOUT_DELAY);
 	}
 	
 	public Iface getIface()
@@ -4,8 +4,9 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,28 +14,172 @@ import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
- * A cache of MAC address to IP address mappings.
+ * A cache of MAC address to IP address mappings. Safe for concurrent lookups
+ * and inserts.
+ * <p>
+ * Entries are kept in primitive arrays rather than as objects: a hashed IP
+ * address selects a bucket of a few consecutive slots, and each slot holds
+ * the IP address, the 48-bit MAC address and the time the entry was last
+ * refreshed. Looking up a MAC address allocates nothing and, as long as no
+ * insert runs at the same time, takes no lock. The number of entries is
+ * bounded: a full bucket gives up the entry closest to expiring, but never a
+ * static one.
+ * <p>
+ * Learned entries expire once they have not been refreshed within a timeout;
+ * using an entry refreshes it. Expired entries are simply ignored by lookups
+ * and reused by inserts, so nothing ever scans the cache for them. Entries
+ * loaded from a file never expire. A negative entry records that resolving
+ * an address recently failed, so packets for it can be rejected at once
+ * rather than queued behind more ARP requests.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
 {		
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+	/** Default largest number of entries */
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	/** Default time (in milliseconds) after its last refresh at which a 
+	 *  learned entry expires */
+	public static final int DEFAULT_TIMEOUT = 60000;
+	
+	/** Default time (in milliseconds) for which a failed resolution is
+	 *  remembered */
+	public static final int DEFAULT_NEGATIVE_TIMEOUT = 5000;
+	
+	/** Returned by {@link #lookupMac(int)} if there is no mapping */
+	public static final long NONE = -1;
+	
+	/** Returned by {@link #lookupMac(int)} if resolving the address recently
+	 *  failed */
+	public static final long UNREACHABLE = -2;
+	
+	/** Number of slots in a bucket */
+	private static final int WAYS = 8;
+	
+	/** Marks an entry that never expires */
+	private static final long STATIC = 1L << 62;
+	
+	/** Marks a negative entry */
+	private static final long NEGATIVE = 1L << 61;
+	
+	/** Bits of an entry's value holding the MAC address */
+	private static final long MAC_MASK = 0xffffffffffffL;
+	
+	/** IP address of the entry in each slot; 0 if the slot is empty */
+	private final int[] addresses;
+	
+	/** MAC address of the entry in each slot, with its flags */
+	private final long[] values;
+	
+	/** Value of System.nanoTime() when the entry in each slot was last
+	 *  refreshed */
+	private final long[] refreshed;
+	
+	/** Number of bits to shift a hashed address to get a bucket number */
+	private final int shift;
+	
+	/** Time (in nanoseconds) after its last refresh at which a learned entry
+	 *  expires */
+	private final long timeout;
+	
+	/** Time (in nanoseconds) for which a failed resolution is remembered */
+	private final long negativeTimeout;
+	
+	/** Serializes changes to the slots; lookups read optimistically */
+	private final StampedLock lock;
+	
+	/** Incremented after every change to the entries in the cache */
+	private final AtomicLong generation;
+	
+	/** Number of inserts refused because their bucket held only static
+	 *  entries */
+	private final AtomicLong rejected;
 	
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{ this(DEFAULT_CAPACITY, DEFAULT_TIMEOUT, DEFAULT_NEGATIVE_TIMEOUT); }
+	
+	/**
+	 * Initializes an empty ARP cache for a router.
+	 * @param capacity largest number of entries; rounded up to a power of two
+	 * @param timeout time (in milliseconds) after its last refresh at which a 
+	 *        learned entry expires
+	 * @param negativeTimeout time (in milliseconds) for which a failed 
+	 *        resolution is remembered
+	 */
+	public ArpCache(int capacity, int timeout, int negativeTimeout)
+	{
+		int bits = 32 - Integer.numberOfLeadingZeros(
+				Math.max(capacity / WAYS, 2) - 1);
+		this.addresses = new int[WAYS << bits];
+		this.values = new long[WAYS << bits];
+		this.refreshed = new long[WAYS << bits];
+		this.shift = 32 - bits;
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.negativeTimeout = TimeUnit.MILLISECONDS.toNanos(negativeTimeout);
+		this.lock = new StampedLock();
+		this.generation = new AtomicLong();
+		this.rejected = new AtomicLong();
+	}
+	
+	/**
+	 * @return a counter that is incremented after every change to the 
+	 *         entries in the cache
+	 */
+	public long getGeneration()
+	{ return this.generation.get(); }
+	
+	/**
+	 * @return time (in milliseconds) after its last refresh at which a 
+	 *         learned entry expires
+	 */
+	public long getTimeout()
+	{ return TimeUnit.NANOSECONDS.toMillis(this.timeout); }
+	
+	/**
+	 * @return largest number of entries
+	 */
+	public int getCapacity()
+	{ return this.addresses.length; }
+	
+	/**
+	 * @return number of inserts refused because their bucket held only
+	 *         static entries
+	 */
+	public long getRejected()
+	{ return this.rejected.get(); }
 	
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
-	 * pair.
+	 * pair. The entry expires unless it is refreshed or used. A static entry
+	 * for the IP address is left alone.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
+	 * @return false if there was no room for the entry
 	 */
-	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	public boolean insert(MACAddress mac, int ip)
+	{ return this.put(ip, mac.toLong(), false); }
+	
+	/**
+	 * Insert an entry in the ARP cache for a specific IP address, MAC address
+	 * pair that never expires.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @return false if there was no room for the entry
+	 */
+	public boolean insertStatic(MACAddress mac, int ip)
+	{ return this.put(ip, mac.toLong() | STATIC, false); }
+	
+	/**
+	 * Remember that resolving an IP address failed. Does not replace a 
+	 * mapping that is still valid.
+	 * @param ip IP address that could not be resolved
+	 * @return false if there was no room for the entry
+	 */
+	public boolean insertNegative(int ip)
+	{ return this.put(ip, NEGATIVE, true); }
 	
 	/**
 	 * Checks if an IP->MAC mapping is the in the cache.
@@ -42,7 +187,184 @@ public class ArpCache
 	 * @return the IP->MAC mapping from the cache; null if none exists 
 	 */
 	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	{
+		long mac = this.lookupMac(ip);
+		if (mac < 0)
+		{ return null; }
+		return new ArpEntry(MACAddress.valueOf(mac), ip);
+	}
+	
+	/**
+	 * Lookup the MAC address for an IP address, refreshing the entry. 
+	 * Allocates nothing.
+	 * @param ip IP address whose MAC address is desired
+	 * @return the MAC address in the lower 48 bits; {@link #UNREACHABLE} if 
+	 *         resolving the address recently failed; {@link #NONE} if there 
+	 *         is no valid mapping
+	 */
+	public long lookupMac(int ip)
+	{
+		if (0 == ip)
+		{ return NONE; }
+		
+		// Read the slot without locking, then make sure no insert changed
+		// the slots meanwhile
+		long stamp = this.lock.tryOptimisticRead();
+		int slot = this.find(ip);
+		long value = (slot < 0) ? 0 : this.values[slot];
+		long refreshed = (slot < 0) ? 0 : this.refreshed[slot];
+		if (!this.lock.validate(stamp))
+		{
+			stamp = this.lock.readLock();
+			try
+			{
+				slot = this.find(ip);
+				value = (slot < 0) ? 0 : this.values[slot];
+				refreshed = (slot < 0) ? 0 : this.refreshed[slot];
+			}
+			finally
+			{ this.lock.unlockRead(stamp); }
+		}
+		if (slot < 0)
+		{ return NONE; }
+		if ((value & STATIC) != 0)
+		{ return value & MAC_MASK; }
+		
+		long now = System.nanoTime();
+		long age = now - refreshed;
+		if ((value & NEGATIVE) != 0)
+		{ return (age < this.negativeTimeout) ? UNREACHABLE : NONE; }
+		if (age >= this.timeout)
+		{ return NONE; }
+		
+		// Refresh entries that are being used; only once they have aged a
+		// little, so most lookups write nothing
+		if (age > this.timeout / 4)
+		{ this.touch(slot, ip, value, now); }
+		return value & MAC_MASK;
+	}
+	
+	/**
+	 * @return the first slot of the bucket for an IP address
+	 */
+	private int bucketFor(int ip)
+	{ return ((ip * 0x9e3779b9) >>> this.shift) * WAYS; }
+	
+	/**
+	 * @return the slot holding an IP address's entry, valid or not; -1 if 
+	 *         there is none
+	 */
+	private int find(int ip)
+	{
+		int bucket = this.bucketFor(ip);
+		for (int slot = bucket; slot < bucket + WAYS; slot++)
+		{
+			if (this.addresses[slot] == ip)
+			{ return slot; }
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return time (in nanoseconds) until the entry in a slot expires, 
+	 *         negative if it has expired; Long.MIN_VALUE if the slot is empty
+	 */
+	private long remaining(int slot, long now)
+	{
+		if (0 == this.addresses[slot])
+		{ return Long.MIN_VALUE; }
+		long value = this.values[slot];
+		if ((value & STATIC) != 0)
+		{ return Long.MAX_VALUE; }
+		long lifetime = ((value & NEGATIVE) != 0) ? this.negativeTimeout 
+				: this.timeout;
+		return this.refreshed[slot] + lifetime - now;
+	}
+	
+	/**
+	 * Restart the timeout of an entry that was just used, unless an insert
+	 * is changing the slots; then the use goes unrecorded.
+	 */
+	private void touch(int slot, int ip, long value, long now)
+	{
+		long stamp = this.lock.tryWriteLock();
+		if (0 == stamp)
+		{ return; }
+		try
+		{
+			if (this.addresses[slot] == ip && this.values[slot] == value)
+			{ this.refreshed[slot] = now; }
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+	}
+	
+	/**
+	 * Add or replace the entry for an IP address. If the bucket is full, the
+	 * entry closest to expiring is replaced; static entries are never 
+	 * replaced, except by another static entry for the same address.
+	 * @param ip IP address
+	 * @param value MAC address with flags
+	 * @param keepValid whether to leave a valid entry for the address alone
+	 * @return false if there was no room for the entry
+	 */
+	private boolean put(int ip, long value, boolean keepValid)
+	{
+		if (0 == ip)
+		{ return false; }
+		long now = System.nanoTime();
+		long stamp = this.lock.writeLock();
+		try
+		{
+			int slot = this.find(ip);
+			if (slot >= 0)
+			{
+				if ((this.values[slot] & STATIC) != 0 && 0 == (value & STATIC))
+				{ return true; }
+				long remaining = this.remaining(slot, now);
+				if (keepValid && remaining > 0 
+						&& 0 == (this.values[slot] & NEGATIVE))
+				{ return true; }
+				
+				// Refreshing an unchanged mapping changes nothing cached
+				// from it
+				boolean unchanged = (this.values[slot] == value 
+						&& remaining > 0);
+				this.values[slot] = value;
+				this.refreshed[slot] = now;
+				if (!unchanged)
+				{ this.generation.incrementAndGet(); }
+				return true;
+			}
+			
+			// Take an empty slot, or else the one closest to expiring;
+			// static entries stay
+			int bucket = this.bucketFor(ip);
+			slot = -1;
+			long soonest = Long.MAX_VALUE;
+			for (int i = bucket; i < bucket + WAYS; i++)
+			{
+				long remaining = this.remaining(i, now);
+				if (remaining < soonest)
+				{
+					slot = i;
+					soonest = remaining;
+				}
+			}
+			if (slot < 0)
+			{
+				this.rejected.incrementAndGet();
+				return false;
+			}
+			this.addresses[slot] = ip;
+			this.values[slot] = value;
+			this.refreshed[slot] = now;
+			this.generation.incrementAndGet();
+			return true;
+		}
+		finally
+		{ this.lock.unlockWrite(stamp); }
+	}
 	
 	/**
 	 * Populate the ARP cache from a file.
@@ -118,7 +440,13 @@ public class ArpCache
 			}
 			
 			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			if (!this.insertStatic(mac, ip))
+			{
+				System.err.println("Error loading ARP cache, no room for "
+						+ matcher.group(1));
+				try { reader.close(); } catch (IOException f) {};
+				return false;
+			}
 		}
 	
 		// Close the file
@@ -129,8 +457,27 @@ public class ArpCache
 	public String toString()
 	{
         String result = "IP\t\tMAC\n";
-        for (ArpEntry entry : this.entries.values())
-        { result += entry.toString()+"\n"; }
+        long now = System.nanoTime();
+        long stamp = this.lock.readLock();
+        try
+        {
+            for (int slot = 0; slot < this.addresses.length; slot++)
+            {
+                if (this.remaining(slot, now) <= 0)
+                { continue; }
+                int ip = this.addresses[slot];
+                long value = this.values[slot];
+                if ((value & NEGATIVE) != 0)
+                { result += IPv4.fromIPv4Address(ip) + " \tunreachable\n"; }
+                else
+                { 
+                    result += new ArpEntry(MACAddress.valueOf(value & MAC_MASK), 
+                            ip).toString()+"\n"; 
+                }
+            }
+        }
+        finally
+        { this.lock.unlockRead(stamp); }
 	    return result;
 	}
 }
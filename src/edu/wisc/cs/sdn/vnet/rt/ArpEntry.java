@@ -10,13 +10,13 @@ import net.floodlightcontroller.packet.MACAddress;
 public class ArpEntry 
 {
 	/** MAC address corresponding to IP address */
-	private MACAddress mac;
+	private final MACAddress mac;
 	
 	/** IP address corresponding to MAC address */
-	private int ip;
+	private final int ip;
 	
 	/** Time (in milliseconds since the epoch) the mapping was created */
-	private long timeAdded;
+	private final long timeAdded;
 	
 	/**
 	 * Create an ARP table entry that maps an IP address to a MAC address.
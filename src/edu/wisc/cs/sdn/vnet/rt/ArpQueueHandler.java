@@ -1,6 +1,9 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import edu.wisc.cs.sdn.vnet.Iface;
 import net.floodlightcontroller.packet.ARP;
@@ -10,21 +13,61 @@ import net.floodlightcontroller.packet.MACAddress;
 
 public class ArpQueueHandler 
 {
+	// Default bounds on the packets waiting for ARP replies; a next hop
+	// can take a couple of hundred milliseconds to resolve when a busy
+	// flow starts, so a queue holds about that much of a fast flow
+	public static final int DEFAULT_QUEUE_LENGTH = 1024;
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+	
+	// Which packet to drop when a destination's queue is full
+	public enum DropPolicy { DROP_OLDEST, DROP_NEWEST }
+	
 	private final ArpCache arpCache;
 	private final Router localRouter;
-	private HashMap<Integer, TimedPacketQueue> packetQueueMap;
+	private final ConcurrentMap<Integer, TimedPacketQueue> packetQueueMap;
+	
+	// Most packets queued for one destination, and most bytes queued for
+	// all destinations together
+	private final int maxQueueLength;
+	private final long maxQueuedBytes;
+	private final DropPolicy dropPolicy;
+	
+	// Bytes currently queued for all destinations
+	private final AtomicLong queuedBytes;
 	
-	// This class assists us in handling the packet queues and ARP replies
+	// Packets queued, sent once their destination resolved, and dropped
+	// because a queue was full or its destination did not resolve
+	private final LongAdder queued;
+	private final LongAdder drained;
+	private final LongAdder dropped;
+	
+	// This class assists us in handling the packet queues and ARP replies.
+	// Packets and replies may arrive on several threads at once.
 	public ArpQueueHandler(ArpCache cache, Router router)
 	{
-		packetQueueMap = new HashMap<Integer, TimedPacketQueue>();
+		this(cache, router, DEFAULT_QUEUE_LENGTH, DEFAULT_MAX_QUEUED_BYTES,
+				DropPolicy.DROP_OLDEST);
+	}
+	
+	public ArpQueueHandler(ArpCache cache, Router router, int maxQueueLength,
+			long maxQueuedBytes, DropPolicy dropPolicy)
+	{
+		packetQueueMap = new ConcurrentHashMap<Integer, TimedPacketQueue>();
 		arpCache = cache;
 		localRouter = router;
+		this.maxQueueLength = maxQueueLength;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.dropPolicy = dropPolicy;
+		queuedBytes = new AtomicLong();
+		queued = new LongAdder();
+		drained = new LongAdder();
+		dropped = new LongAdder();
 	}
 	
-	public void removeFromMap(Integer IP)
+	// Only removes the queue if it is still the one listed for the IP
+	public void removeFromMap(Integer IP, TimedPacketQueue queue)
 	{
-		packetQueueMap.remove(IP);
+		packetQueueMap.remove(IP, queue);
 	}
 	
 	public void appendToArpAndCheckPending(ARP arpPacket, Iface inIface)
@@ -37,27 +80,85 @@ public class ArpQueueHandler
 		
 		TimedPacketQueue packetQueue = packetQueueMap.get(ip);
 		if (packetQueue != null)
-		{
-			System.out.println("Reply received, sending entire list");
-			packetQueue.sendEntireList(inIface, mac.toBytes());
-		}
+		{ packetQueue.sendEntireList(inIface, mac.toBytes()); }
 	}
 	
-	public void enqueueAndBeginTimer(Ethernet inPacket)
+	// Packets wait for the MAC address of their next hop, which for a
+	// gateway route is not their destination
+	public void enqueueAndBeginTimer(Ethernet inPacket, int nextHop)
 	{
-		Integer ip = ((IPv4)(inPacket.getPayload())).getDestinationAddress();
-		System.out.println("IP: " + ip);
-		if (packetQueueMap.containsKey(ip) == false)
+		Integer ip = nextHop;
+	
+		// Queue the frame rather than the packet objects; it is smaller and
+		// its size is known
+		byte[] frame = inPacket.serialize();
+		while (true)
 		{
-			System.out.println("ARP entry not found, now beginning timer and new list.");
-			TimedPacketQueue timedQueue = new TimedPacketQueue(localRouter, this);
-			packetQueueMap.put(ip, timedQueue);
+			TimedPacketQueue timedQueue = packetQueueMap.get(ip);
+			if (null == timedQueue)
+			{
+				timedQueue = packetQueueMap.computeIfAbsent(ip,
+						key -> new TimedPacketQueue(localRouter, this, key));
+			}
+
+			if (timedQueue.appendPacketToList(frame))
+			{ return; }
+
+			// The queue was sent or timed out after we found it; drop it
+			// and start a new one
+			removeFromMap(ip, timedQueue);
 		}
-		else
+	}
+	
+	public int getMaxQueueLength()
+	{ return maxQueueLength; }
+	
+	public DropPolicy getDropPolicy()
+	{ return dropPolicy; }
+	
+	// Account for a frame about to be queued; false if it would take the
+	// queues over their memory cap, in which case it must be dropped
+	boolean reserve(int bytes)
+	{
+		while (true)
 		{
-			System.out.println("ARP already listed as unfound, appending to list.");
+			long current = queuedBytes.get();
+			if (current + bytes > maxQueuedBytes)
+			{ return false; }
+			if (queuedBytes.compareAndSet(current, current + bytes))
+			{ return true; }
 		}
-		
-		packetQueueMap.get(ip).appendPacketToList(inPacket);
+	}
+	
+	// Account for frames leaving the queues
+	void release(long bytes)
+	{ queuedBytes.addAndGet(-bytes); }
+	
+	void countQueued()
+	{ queued.increment(); }
+	
+	void countDrained(int count)
+	{ drained.add(count); }
+	
+	void countDropped(int count)
+	{ dropped.add(count); }
+	
+	public long getQueuedBytes()
+	{ return queuedBytes.get(); }
+	
+	public long getQueued()
+	{ return queued.sum(); }
+	
+	public long getDrained()
+	{ return drained.sum(); }
+	
+	public long getDropped()
+	{ return dropped.sum(); }
+	
+	public String toString()
+	{
+		return String.format("ARP queues: %d destinations, %d bytes waiting, "
+				+ "%d queued, %d drained, %d dropped", packetQueueMap.size(),
+				getQueuedBytes(), getQueued(), getDrained(), getDropped());
 	}
 }
@@ -0,0 +1,181 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A bounded, direct-mapped cache of forwarding decisions keyed by
+ * destination IP address. Each entry remembers the interface out which to
+ * send packets for the destination and the MAC address of the next hop, so
+ * a hit replaces both a route table lookup and an ARP cache lookup.
+ * <p>
+ * Entries are tagged with the generations of the route table and ARP cache
+ * they were computed from; any change to either makes all older entries
+ * stale without having to visit them. Entries also expire after half the
+ * ARP cache's timeout, so the next hop's ARP entry, which is refreshed when
+ * it is used, stays alive while packets are sent to it and is given up
+ * once they stop.
+ * <p>
+ * Lookups and inserts may come from several threads at once without
+ * locking. Entries are immutable, so a reader sees either the old or the new
+ * entry in a slot, and losing a racing insert only costs a later miss.
+ */
+public class DestinationCache
+{
+	/** Default number of slots in the cache */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** A cached forwarding decision; never modified once created */
+	public static class Entry
+	{
+		/** Destination IP address */
+		private final int destinationAddress;
+
+		/** Router interface out which to send packets to the destination */
+		private final Iface iface;
+
+		/** MAC address of the next hop */
+		private final byte[] nextHopMac;
+
+		/** Combined route table and ARP cache generation */
+		private final long generation;
+
+		/** Value of System.nanoTime() at which the entry expires */
+		private final long expires;
+
+		private Entry(int destinationAddress, Iface iface, byte[] nextHopMac,
+				long generation, long expires)
+		{
+			this.destinationAddress = destinationAddress;
+			this.iface = iface;
+			this.nextHopMac = nextHopMac;
+			this.generation = generation;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return router interface out which to send packets to the
+		 *         destination
+		 */
+		public Iface getInterface()
+		{ return this.iface; }
+
+		/**
+		 * @return MAC address of the next hop
+		 */
+		public byte[] getNextHopMac()
+		{ return this.nextHopMac; }
+	}
+
+	/** Slots in the cache; a destination may only occupy one slot */
+	private final Entry[] slots;
+
+	/** Number of bits to shift a hashed address to get a slot number */
+	private final int shift;
+
+	/** Route table from which cached decisions are computed */
+	private final RouteTable routeTable;
+
+	/** ARP cache from which cached decisions are computed */
+	private final ArpCache arpCache;
+
+	/** Time (in nanoseconds) for which an entry is used */
+	private final long lifetime;
+
+	/** Number of lookups answered from the cache; striped so concurrent
+	 *  lookups don't contend on one counter */
+	private final LongAdder hits;
+
+	/** Number of lookups not answered from the cache */
+	private final LongAdder misses;
+
+	/**
+	 * Create an empty destination cache.
+	 * @param capacity number of slots; rounded up to a power of two
+	 * @param routeTable route table from which decisions are computed
+	 * @param arpCache ARP cache from which decisions are computed
+	 */
+	public DestinationCache(int capacity, RouteTable routeTable,
+			ArpCache arpCache)
+	{
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 2) - 1);
+		this.slots = new Entry[1 << bits];
+		this.shift = 32 - bits;
+		this.routeTable = routeTable;
+		this.arpCache = arpCache;
+		this.lifetime = TimeUnit.MILLISECONDS.toNanos(arpCache.getTimeout() / 2);
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	/**
+	 * @return the current combined generation of the route table and ARP
+	 *         cache; must be read before computing a decision to insert
+	 */
+	public long generation()
+	{ return this.routeTable.getGeneration() + this.arpCache.getGeneration(); }
+
+	private int slotFor(int ip)
+	{ return (ip * 0x9e3779b9) >>> this.shift; }
+
+	/**
+	 * Lookup the cached forwarding decision for a destination.
+	 * @param ip destination IP address
+	 * @return the cached decision; null if none exists, it is stale, or it
+	 *         has expired
+	 */
+	public Entry lookup(int ip)
+	{
+		Entry entry = this.slots[this.slotFor(ip)];
+		if (entry != null && entry.destinationAddress == ip
+				&& entry.generation == this.generation()
+				&& entry.expires - System.nanoTime() > 0)
+		{
+			this.hits.increment();
+			return entry;
+		}
+		this.misses.increment();
+		return null;
+	}
+
+	/**
+	 * Remember the forwarding decision for a destination, replacing any
+	 * decision in the same slot.
+	 * @param ip destination IP address
+	 * @param iface router interface out which to send packets
+	 * @param nextHopMac MAC address of the next hop
+	 * @param generation the value of {@link #generation()} read before the
+	 *        decision was computed
+	 */
+	public void insert(int ip, Iface iface, byte[] nextHopMac, long generation)
+	{
+		this.slots[this.slotFor(ip)] = new Entry(ip, iface, nextHopMac,
+				generation, System.nanoTime() + this.lifetime);
+	}
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	/**
+	 * @return number of lookups not answered from the cache
+	 */
+	public long getMisses()
+	{ return this.misses.sum(); }
+
+	/**
+	 * @return number of slots in the cache
+	 */
+	public int getCapacity()
+	{ return this.slots.length; }
+
+	public String toString()
+	{
+		return String.format("Destination cache: %d slots, %d hits, %d misses",
+				this.slots.length, this.getHits(), this.getMisses());
+	}
+}
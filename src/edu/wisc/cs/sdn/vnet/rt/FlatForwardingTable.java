@@ -0,0 +1,330 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * DIR-24-8 style forwarding table compiled from a route table's prefix trie.
+ * The first level has one slot per /24; a slot either names a route directly
+ * or points to a 256 slot second level chunk covering the /25 to /32 routes
+ * within that /24. A lookup therefore costs one or two array reads.
+ * <p>
+ * The table is updated in place by a single writer (the route table, while
+ * holding its write lock) and read without locking. Chunks and route indexes
+ * freed by an update may be reused by the same update, so a reader that
+ * overlaps an update could follow a stale slot to another prefix's route.
+ * Updates are therefore bracketed by a version counter, seqlock style: a
+ * lookup that sees the version odd or changed discards what it read and
+ * answers from the trie the table was compiled from, which is immutable.
+ * Either way a reader gets the old or the new route for an address. Slots
+ * are published with release stores and read with acquire loads, so a
+ * reader that sees a new chunk or route index also sees the arrays that
+ * hold it, even if they had to grow.
+ * <p>
+ * The first level has a slot for every /24 whatever the number of routes,
+ * so each table takes 64 MB of heap. That is worth paying for a router
+ * with a large route table, not for each of many small routers sharing a
+ * process.
+ */
+public class FlatForwardingTable
+{
+	/** Access to the slots of the first and second level tables */
+	private static final VarHandle SLOT = 
+			MethodHandles.arrayElementVarHandle(int[].class);
+
+	/** Number of first level slots, one per /24 */
+	private static final int TBL24_SIZE = 1 << 24;
+
+	/** Number of slots in a second level chunk */
+	private static final int CHUNK_SIZE = 256;
+
+	/** Marks a first level slot that refers to a second level chunk */
+	private static final int CHUNK_FLAG = 0x80000000;
+
+	/** First level table; route index or flagged chunk number per /24
+	 * (64 MB) */
+	private final int[] tbl24;
+
+	/** Second level chunks, stored back to back */
+	private volatile int[] tblLong;
+
+	/** Route entries referenced from the tables; index 0 means no route */
+	private volatile RouteEntry[] routes;
+
+	/** Index assigned to each route entry referenced from the tables */
+	private Map<RouteEntry,Integer> routeIndexes;
+
+	/** Route indexes that are no longer in use */
+	private Deque<Integer> freeRouteIndexes;
+
+	/** Second level chunks that are no longer in use */
+	private Deque<Integer> freeChunks;
+
+	/** Number of second level chunks allocated so far */
+	private int chunkCount;
+
+	/** Odd while an update is under way; incremented before and after */
+	private volatile long version;
+
+	/** Trie from which the table was last compiled; answers lookups that
+	 * overlap an update */
+	private volatile PrefixTrie trie;
+
+	/**
+	 * Create a forwarding table containing all routes in a prefix trie.
+	 * @param trie the trie from which to compile the table
+	 */
+	public FlatForwardingTable(PrefixTrie trie)
+	{
+		this.tbl24 = new int[TBL24_SIZE];
+		this.tblLong = new int[64 * CHUNK_SIZE];
+		this.routes = new RouteEntry[64];
+		this.routeIndexes = new IdentityHashMap<RouteEntry,Integer>();
+		this.freeRouteIndexes = new ArrayDeque<Integer>();
+		this.freeChunks = new ArrayDeque<Integer>();
+		this.chunkCount = 0;
+		this.version = 0;
+		this.trie = trie;
+		this.paint(trie.getRoot(), 0, 0, null);
+	}
+
+	/**
+	 * Lookup the route entry that matches a given IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip)
+	{
+		long version = this.version;
+		if (0 == (version & 1))
+		{
+			int index = (int)SLOT.getAcquire(this.tbl24, ip >>> 8);
+			if (index < 0)
+			{
+				index = (int)SLOT.getAcquire(this.tblLong, 
+						((index & ~CHUNK_FLAG) << 8) | (ip & 0xff));
+			}
+			RouteEntry entry = this.routes[index];
+			VarHandle.loadLoadFence();
+			if (this.version == version)
+			{ return entry; }
+		}
+		
+		// An update overlapped the lookup, so what it read may be stale
+		return this.trie.lookup(ip);
+	}
+
+	/**
+	 * Recompute the part of the table covered by a prefix after the route
+	 * for that prefix was added, replaced, or removed in the trie.
+	 * @param trie the trie from which the table was compiled
+	 * @param dstIp destination IP of the prefix that changed
+	 * @param maskIp subnet mask of the prefix that changed
+	 * @param previous entry that was replaced or removed; null if none
+	 */
+	public void update(PrefixTrie trie, int dstIp, int maskIp,
+			RouteEntry previous)
+	{
+		// Lookups from now until the update ends use the new trie
+		this.trie = trie;
+		this.version++;
+		VarHandle.storeStoreFence();
+		try
+		{ this.repaint(trie, dstIp, maskIp, previous); }
+		finally
+		{ this.version++; }
+	}
+
+	/**
+	 * Recompute the part of the table covered by a prefix. Must be called
+	 * while the version is odd.
+	 */
+	private void repaint(PrefixTrie trie, int dstIp, int maskIp,
+			RouteEntry previous)
+	{
+		int length = PrefixTrie.prefixLength(maskIp);
+		int prefix = dstIp & maskIp;
+
+		// Find the best route covering the prefix from its ancestors
+		RouteEntry inherited = null;
+		PrefixTrie.Node node = trie.getRoot();
+		for (int depth = 0; depth < length && node != null; depth++)
+		{
+			if (node.entry != null)
+			{ inherited = node.entry; }
+			node = node.children[PrefixTrie.bitAt(prefix, depth)];
+		}
+
+		if (length <= 24)
+		{ this.paint(node, prefix, length, inherited); }
+		else
+		{
+			int slot = prefix >>> 8;
+			if (this.tbl24[slot] < 0)
+			{
+				int base = (this.tbl24[slot] & ~CHUNK_FLAG) * CHUNK_SIZE;
+				this.paintChunk(node, prefix, length, inherited, base);
+			}
+			else
+			{
+				// Rebuild the whole /24 so the chunk is created if needed
+				node = trie.findNode(prefix, 24);
+				inherited = null;
+				PrefixTrie.Node ancestor = trie.getRoot();
+				for (int depth = 0; depth <= 24 && ancestor != null; depth++)
+				{
+					if (ancestor.entry != null)
+					{ inherited = ancestor.entry; }
+					if (depth < 24)
+					{ ancestor = ancestor.children[
+							PrefixTrie.bitAt(prefix, depth)]; }
+				}
+				this.paint(node, prefix & 0xffffff00, 24, inherited);
+			}
+		}
+
+		if (previous != null)
+		{ this.releaseRoute(previous); }
+	}
+
+	/**
+	 * Fill first level slots for the subtree of the trie rooted at a node.
+	 */
+	private void paint(PrefixTrie.Node node, int bits, int depth,
+			RouteEntry best)
+	{
+		if (node != null && node.entry != null)
+		{ best = node.entry; }
+		boolean leaf = (null == node) || ((null == node.children[0])
+				&& (null == node.children[1]));
+
+		if (depth < 24)
+		{
+			if (leaf)
+			{
+				this.fill24(bits >>> 8, 1 << (24 - depth), this.indexOf(best));
+				return;
+			}
+			this.paint(node.children[0], bits, depth + 1, best);
+			this.paint(node.children[1], bits | (1 << (31 - depth)),
+					depth + 1, best);
+			return;
+		}
+
+		int slot = bits >>> 8;
+		if (leaf)
+		{
+			this.fill24(slot, 1, this.indexOf(best));
+			return;
+		}
+
+		// Routes longer than /24 exist within this slot
+		int current = this.tbl24[slot];
+		if (current < 0)
+		{
+			int base = (current & ~CHUNK_FLAG) * CHUNK_SIZE;
+			this.paintChunk(node, bits, 24, best, base);
+		}
+		else
+		{
+			int chunk = this.allocateChunk();
+			int base = chunk * CHUNK_SIZE;
+			this.paintChunk(node, bits, 24, best, base);
+			SLOT.setRelease(this.tbl24, slot, CHUNK_FLAG | chunk);
+		}
+	}
+
+	/**
+	 * Fill second level slots for the subtree of the trie rooted at a node.
+	 */
+	private void paintChunk(PrefixTrie.Node node, int bits, int depth,
+			RouteEntry best, int base)
+	{
+		if (node != null && node.entry != null)
+		{ best = node.entry; }
+		if ((null == node) || (depth == 32) || ((null == node.children[0])
+				&& (null == node.children[1])))
+		{
+			int start = base + (bits & 0xff);
+			int index = this.indexOf(best);
+			int[] tblLong = this.tblLong;
+			for (int i = start; i < start + (1 << (32 - depth)); i++)
+			{ SLOT.setRelease(tblLong, i, index); }
+			return;
+		}
+		this.paintChunk(node.children[0], bits, depth + 1, best, base);
+		this.paintChunk(node.children[1], bits | (1 << (31 - depth)),
+				depth + 1, best, base);
+	}
+
+	/**
+	 * Point a range of first level slots at a route, releasing any chunks
+	 * the slots referred to.
+	 */
+	private void fill24(int start, int count, int index)
+	{
+		for (int slot = start; slot < start + count; slot++)
+		{
+			int current = this.tbl24[slot];
+			SLOT.setRelease(this.tbl24, slot, index);
+			if (current < 0)
+			{ this.freeChunks.push(current & ~CHUNK_FLAG); }
+		}
+	}
+
+	/**
+	 * @return the number of an unused second level chunk
+	 */
+	private int allocateChunk()
+	{
+		if (!this.freeChunks.isEmpty())
+		{ return this.freeChunks.pop(); }
+
+		int chunk = this.chunkCount++;
+		if ((chunk + 1) * CHUNK_SIZE > this.tblLong.length)
+		{ this.tblLong = Arrays.copyOf(this.tblLong, this.tblLong.length * 2); }
+		return chunk;
+	}
+
+	/**
+	 * @param entry a route entry; may be null
+	 * @return the index for the route entry, assigning one if needed
+	 */
+	private int indexOf(RouteEntry entry)
+	{
+		if (null == entry)
+		{ return 0; }
+		Integer index = this.routeIndexes.get(entry);
+		if (index != null)
+		{ return index; }
+
+		if (!this.freeRouteIndexes.isEmpty())
+		{ index = this.freeRouteIndexes.pop(); }
+		else
+		{
+			index = this.routeIndexes.size() + 1;
+			if (index >= this.routes.length)
+			{ this.routes = Arrays.copyOf(this.routes, this.routes.length * 2); }
+		}
+		this.routes[index] = entry;
+		this.routeIndexes.put(entry, index);
+		return index;
+	}
+
+	/**
+	 * Forget the index of a route entry that is no longer in the table.
+	 */
+	private void releaseRoute(RouteEntry entry)
+	{
+		Integer index = this.routeIndexes.remove(entry);
+		if (null == index)
+		{ return; }
+		this.routes[index] = null;
+		this.freeRouteIndexes.push(index);
+	}
+}
@@ -0,0 +1,205 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.List;
+
+/**
+ * Binary trie indexing route entries by destination prefix, used for
+ * longest prefix match lookups. Each level of the trie consumes one bit of
+ * the address, so a lookup visits at most 32 nodes regardless of the number
+ * of routes in the table.
+ * <p>
+ * A trie is never modified once built. Adding or removing a route copies the
+ * nodes on the path to the prefix and returns a new trie that shares all
+ * other nodes with the original, so readers holding an older trie are never
+ * affected by concurrent changes.
+ */
+public class PrefixTrie
+{
+	/** A node in the trie; holds the route for the prefix it represents */
+	static class Node
+	{
+		/** Child nodes for a 0 bit and a 1 bit, respectively */
+		final Node[] children = new Node[2];
+
+		/** Route for the prefix ending at this node; null if none */
+		RouteEntry entry;
+
+		Node copy()
+		{
+			Node node = new Node();
+			node.children[0] = this.children[0];
+			node.children[1] = this.children[1];
+			node.entry = this.entry;
+			return node;
+		}
+
+		boolean isEmpty()
+		{ return (null == this.entry) && (null == this.children[0])
+				&& (null == this.children[1]); }
+	}
+
+	/** An empty trie */
+	public static final PrefixTrie EMPTY = new PrefixTrie(null, 0);
+
+	/** Root of the trie; represents the zero-length prefix; null if empty */
+	private final Node root;
+
+	/** Number of routes stored in the trie */
+	private final int size;
+
+	private PrefixTrie(Node root, int size)
+	{
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * @param maskIp subnet mask
+	 * @return length of the prefix covered by the subnet mask
+	 */
+	public static int prefixLength(int maskIp)
+	{ return Integer.bitCount(maskIp); }
+
+	/**
+	 * @param ip IP address
+	 * @param depth index of the bit, counting from the most significant bit
+	 * @return the bit of the address used to branch at the given depth
+	 */
+	static int bitAt(int ip, int depth)
+	{ return (ip >>> (31 - depth)) & 1; }
+
+	/**
+	 * @return the root node of the trie
+	 */
+	Node getRoot()
+	{ return this.root; }
+
+	/**
+	 * @return number of routes stored in the trie
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * Find the route entry with the longest prefix matching an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	public RouteEntry lookup(int ip)
+	{
+		Node node = this.root;
+		if (null == node)
+		{ return null; }
+		RouteEntry bestMatch = node.entry;
+		for (int depth = 0; depth < 32; depth++)
+		{
+			node = node.children[bitAt(ip, depth)];
+			if (null == node)
+			{ break; }
+			if (node.entry != null)
+			{ bestMatch = node.entry; }
+		}
+		return bestMatch;
+	}
+
+	/**
+	 * Find the route entry for an exact prefix.
+	 * @param dstIp destination IP of the entry
+	 * @param maskIp subnet mask of the entry
+	 * @return the entry for the prefix, null if none exists
+	 */
+	public RouteEntry find(int dstIp, int maskIp)
+	{
+		Node node = this.findNode(dstIp, prefixLength(maskIp));
+		return (null == node) ? null : node.entry;
+	}
+
+	/**
+	 * Locate the node representing a prefix.
+	 * @param dstIp destination IP of the prefix
+	 * @param length length of the prefix
+	 * @return the node for the prefix, null if the trie has no such node
+	 */
+	Node findNode(int dstIp, int length)
+	{
+		Node node = this.root;
+		for (int depth = 0; depth < length && node != null; depth++)
+		{ node = node.children[bitAt(dstIp, depth)]; }
+		return node;
+	}
+
+	/**
+	 * Add a route entry, replacing any entry for the same prefix.
+	 * @param entry the route entry to add
+	 * @return a trie containing the entry in addition to this trie's entries
+	 */
+	public PrefixTrie insert(RouteEntry entry)
+	{
+		int dstIp = entry.getDestinationAddress();
+		int length = prefixLength(entry.getMaskAddress());
+		boolean replaced = (this.find(dstIp, entry.getMaskAddress()) != null);
+		Node root = insert(this.root, 0, dstIp, length, entry);
+		return new PrefixTrie(root, replaced ? this.size : this.size + 1);
+	}
+
+	private static Node insert(Node node, int depth, int dstIp, int length,
+			RouteEntry entry)
+	{
+		Node copy = (null == node) ? new Node() : node.copy();
+		if (depth == length)
+		{ copy.entry = entry; }
+		else
+		{
+			int bit = bitAt(dstIp, depth);
+			copy.children[bit] = insert(copy.children[bit], depth + 1, dstIp,
+					length, entry);
+		}
+		return copy;
+	}
+
+	/**
+	 * Remove the route entry for a prefix, pruning nodes left empty.
+	 * @param dstIp destination IP of the entry to remove
+	 * @param maskIp subnet mask of the entry to remove
+	 * @return a trie without the entry; this trie if no entry exists for the
+	 *         prefix
+	 */
+	public PrefixTrie remove(int dstIp, int maskIp)
+	{
+		if (null == this.find(dstIp, maskIp))
+		{ return this; }
+		Node root = remove(this.root, 0, dstIp, prefixLength(maskIp));
+		return new PrefixTrie(root, this.size - 1);
+	}
+
+	private static Node remove(Node node, int depth, int dstIp, int length)
+	{
+		Node copy = node.copy();
+		if (depth == length)
+		{ copy.entry = null; }
+		else
+		{
+			int bit = bitAt(dstIp, depth);
+			copy.children[bit] = remove(copy.children[bit], depth + 1, dstIp,
+					length);
+		}
+		return copy.isEmpty() ? null : copy;
+	}
+
+	/**
+	 * Append all route entries in the trie to a list, in prefix order.
+	 * @param result list to which entries are added
+	 */
+	public void collect(List<RouteEntry> result)
+	{ collect(this.root, result); }
+
+	private static void collect(Node node, List<RouteEntry> result)
+	{
+		if (null == node)
+		{ return; }
+		if (node.entry != null)
+		{ result.add(node.entry); }
+		collect(node.children[0], result);
+		collect(node.children[1], result);
+	}
+}
@@ -1,9 +1,6 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-
-import java.util.TimerTask;
-
-public abstract class RipTimerTask extends TimerTask 
+public abstract class RipTimerTask implements Runnable 
 {
 	protected Router localRouter;
 	
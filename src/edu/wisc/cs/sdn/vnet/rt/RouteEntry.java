@@ -2,9 +2,6 @@ package edu.wisc.cs.sdn.vnet.rt;
 
 import net.floodlightcontroller.packet.IPv4;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
@@ -15,6 +12,14 @@ public class RouteEntry
 {
 	public static final int DEFAULT_TIMEOUT = 30000;
 	
+	/** Time (in milliseconds) a timed-out entry is still advertised as
+	 * unreachable before it is deleted; RFC 2453's garbage-collection timer,
+	 * scaled like the timeout */
+	public static final int GARBAGE_COLLECTION_TIMEOUT = 20000;
+	
+	/** Metric of an unreachable destination */
+	public static final int INFINITY = 16;
+	
 	/** Destination IP address */
 	private int destinationAddress;
 	
@@ -27,10 +32,12 @@ public class RouteEntry
 	/** Hops */
 	private int hops;
 	
-	/** RouteEntry removal timer */
-	private Timer routeEntryRemovalTimer;
+	/** Time (in milliseconds) after its last refresh at which the entry
+	 * times out; 0 if it never does */
+	private int timeout;
 	
-	private RouteEntryTimerTask routeTimerTask;
+	/** Value of System.nanoTime() when the entry was last refreshed */
+	private volatile long lastRefreshed;
 	
 	/** Router interface out which packets should be sent to reach
 	 * the destination or gateway */
@@ -57,31 +64,55 @@ public class RouteEntry
 	
 	// Overload constructor:
 	public RouteEntry(final int destinationAddress, int gatewayAddress, final int maskAddress,
-			Iface iface, int metric, int timeout, RouteTable table)
+			Iface iface, int metric, int timeout)
 	{
 		this.destinationAddress = destinationAddress;
 		this.gatewayAddress = gatewayAddress;
 		this.maskAddress = maskAddress;
 		this.iface = iface;
 		this.hops = metric;
-		
-		if (timeout != 0)
-		{
-			this.routeEntryRemovalTimer = new Timer();
-			this.routeTimerTask = new RouteEntryTimerTask(table, destinationAddress, maskAddress);
-			routeEntryRemovalTimer.schedule(this.routeTimerTask, timeout);
-		}
+		this.timeout = timeout;
+		this.lastRefreshed = System.nanoTime();
 	}
 	
-	public void serviceTimer(int timeout, RouteTable routeTable)
+	/**
+	 * Create a copy of an entry with a different route; the copy keeps the
+	 * entry's timeout and the time it was last refreshed.
+	 * @param gatewayAddress gateway IP address for the copy
+	 * @param iface router interface for the copy
+	 * @param metric Metric for the copy
+	 * @return the copy
+	 */
+	RouteEntry withRoute(int gatewayAddress, Iface iface, int metric)
 	{
-		System.out.println("Servicing timer!");
-		this.routeEntryRemovalTimer.cancel();
-		this.routeEntryRemovalTimer = new Timer();
-		this.routeTimerTask = new RouteEntryTimerTask(routeTable, this.destinationAddress, this.maskAddress);
-		routeEntryRemovalTimer.schedule(this.routeTimerTask, timeout);
+		RouteEntry copy = new RouteEntry(this.destinationAddress, 
+				gatewayAddress, this.maskAddress, iface, metric);
+		copy.timeout = this.timeout;
+		copy.lastRefreshed = this.lastRefreshed;
+		return copy;
 	}
 	
+	/**
+	 * Restart the entry's timeout; the route table's sweep notices when it
+	 * passes.
+	 */
+	public void refresh()
+	{ this.lastRefreshed = System.nanoTime(); }
+	
+	/**
+	 * @return time (in milliseconds) after its last refresh at which the
+	 *         entry times out; 0 if it never does
+	 */
+	public int getTimeout()
+	{ return this.timeout; }
+	
+	/**
+	 * @param now the current value of System.nanoTime()
+	 * @return time in milliseconds since the entry was last refreshed
+	 */
+	long getAge(long now)
+	{ return (now - this.lastRefreshed) / 1000000L; }
+	
 	/**
 	 * @return destination IP address
 	 */
@@ -94,9 +125,6 @@ public class RouteEntry
 	public int getGatewayAddress()
 	{ return this.gatewayAddress; }
 
-    public void setGatewayAddress(int gatewayAddress)
-    { this.gatewayAddress = gatewayAddress; }
-	
 	/**
 	 * @return subnet mask 
 	 */
@@ -110,17 +138,11 @@ public class RouteEntry
 	public Iface getInterface()
 	{ return this.iface; }
 
-    public void setInterface(Iface iface)
-    { this.iface = iface; }
-    
 	/**
 	 * @return the number of hops to get to a given route entry
 	 */
 	public int getHops()
 	{ return this.hops; }
-
-    public void setHops(int hopArg)
-    { this.hops = hopArg; }
 	
 	public String toString()
 	{
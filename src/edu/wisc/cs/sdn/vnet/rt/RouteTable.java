@@ -4,30 +4,90 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import net.floodlightcontroller.packet.IPv4;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.SharedTimer;
 
 /**
- * Route table for a router.
+ * Route table for a router. Any number of threads may lookup routes while
+ * another changes the table.
+ * <p>
+ * Learned entries age as in RFC 2453: an entry that has not been refreshed
+ * within its timeout is removed from the table, then advertised with a
+ * metric of infinity until its garbage-collection time has passed. Entries
+ * only record when they were last refreshed; one periodic sweep per table
+ * finds those that have timed out.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable implements Iterable<RouteEntry>
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Entries in the route table, indexed by destination prefix; replaced
+	 *  wholesale on every change so readers never need to lock */
+	private volatile PrefixTrie entries; 
+	
+	/** Serializes changes to the route table */
+	private final Object writeLock;
+	
+	/** Flat forwarding table compiled from the entries; null if lookups
+	 *  should use the trie directly */
+	private volatile FlatForwardingTable flatTable;
+	
+	/** Incremented after every change to the entries in the route table */
+	private volatile long generation;
+	
+	/** Time (in milliseconds) between sweeps for timed-out entries */
+	private static final int SWEEP_INTERVAL = 1000;
+	
+	/** Entries that timed out and are advertised as unreachable until they
+	 *  are deleted, indexed by prefix; guarded by the write lock */
+	private final Map<Long,RouteEntry> garbage;
+	
+	/** Periodic sweep for timed-out entries; null until a timed entry is
+	 *  added; guarded by the write lock */
+	private SharedTimer.Timeout sweepTimer;
 	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{
+		this.entries = PrefixTrie.EMPTY;
+		this.writeLock = new Object();
+		this.flatTable = null;
+		this.generation = 0;
+		this.garbage = new HashMap<Long,RouteEntry>();
+		this.sweepTimer = null;
+	}
+	
+	/**
+	 * @return a counter that is incremented after every change to the 
+	 *         entries in the route table
+	 */
+	public long getGeneration()
+	{ return this.generation; }
+	
+	/**
+	 * Compile the route table into a DIR-24-8 flat forwarding table, which
+	 * serves all subsequent lookups and is kept up to date as entries change.
+	 * The table takes 64 MB of heap, however few entries there are.
+	 */
+	public void enableFlatTable()
+	{
+		synchronized(this.writeLock)
+		{
+			if (null == this.flatTable)
+			{ this.flatTable = new FlatForwardingTable(this.entries); }
+		}
+	}
 	
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -36,29 +96,10 @@ public class RouteTable implements Iterable<RouteEntry>
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries)
-        {
-			/*****************************************************************/
-			/* TODO: Find the route entry with the longest prefix match      */
-			
-	        RouteEntry bestMatch = null;
-	        for (RouteEntry entry : this.entries)
-	        {
-	           int maskedDst = ip & entry.getMaskAddress();
-	           int entrySubnet = entry.getDestinationAddress() 
-	               & entry.getMaskAddress();
-	           if (maskedDst == entrySubnet)
-	           {
-	        	   if ((null == bestMatch) 
-	        		   || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-	        	   { bestMatch = entry; }
-	           }
-	        }
-			
-			return bestMatch;
-			
-			/*****************************************************************/
-        }
+		FlatForwardingTable flat = this.flatTable;
+		if (flat != null)
+		{ return flat.lookup(ip); }
+		return this.entries.lookup(ip);
 	}
 	
 	/**
@@ -82,6 +123,7 @@ public class RouteTable implements Iterable<RouteEntry>
 			return false;
 		}
 		
+		List<RouteEntry> loaded = new ArrayList<RouteEntry>();
 		while (true)
 		{
 			// Read a route entry from the file
@@ -143,12 +185,37 @@ public class RouteTable implements Iterable<RouteEntry>
 				return false;
 			}
 			
-			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface, 0);
+			// Add an entry to the route table once the whole file is read
+			loaded.add(new RouteEntry(dstIp, gwIp, maskIp, iface, 0));
 		}
 	
 		// Close the file
 		try { reader.close(); } catch (IOException f) {};
+		
+		// Publish all entries from the file as a single new version
+		synchronized(this.writeLock)
+		{
+			PrefixTrie next = this.entries;
+			List<RouteEntry> replaced = new ArrayList<RouteEntry>();
+			for (RouteEntry entry : loaded)
+			{
+				replaced.add(next.find(entry.getDestinationAddress(), 
+						entry.getMaskAddress()));
+				next = next.insert(entry);
+			}
+			this.entries = next;
+			
+			if (this.flatTable != null)
+			{
+				for (int i = 0; i < loaded.size(); i++)
+				{
+					RouteEntry entry = loaded.get(i);
+					this.flatTable.update(next, entry.getDestinationAddress(),
+							entry.getMaskAddress(), replaced.get(i));
+				}
+			}
+			this.generation++;
+		}
 		return true;
 	}
 	
@@ -164,18 +231,36 @@ public class RouteTable implements Iterable<RouteEntry>
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface, int metric)
 	{
 		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface, metric);
-        synchronized(this.entries)
-        { 
-            this.entries.add(entry);
-        }
+        synchronized(this.writeLock)
+        { this.publish(entry); }
 	}
 	
+	/**
+	 * Add an entry to the route table that is removed if it is not
+	 * refreshed within a timeout.
+	 * @param dstIp destination IP
+	 * @param gwIp gateway IP
+	 * @param maskIp subnet mask
+	 * @param iface router interface out which to send packets to reach the 
+	 *        destination or gateway
+	 * @param metric Metric
+	 * @param timeout time (in milliseconds) after its last refresh at which
+	 *        the entry is removed
+	 */
 	public void insertTimedEntry(int dstIp, int gwIp, int maskIp, Iface iface, int metric, int timeout)
 	{
-		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface, metric, timeout, this);
-        synchronized(this.entries)
-        { 
-            this.entries.add(entry);
+		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface, metric, timeout);
+        synchronized(this.writeLock)
+        {
+            this.publish(entry);
+            if (null == this.sweepTimer)
+            {
+                this.sweepTimer = SharedTimer.scheduleAtFixedRate(
+                        new Runnable() {
+                            public void run()
+                            { sweep(); }
+                        }, SWEEP_INTERVAL, SWEEP_INTERVAL);
+            }
         }
 	}
 	
@@ -187,14 +272,18 @@ public class RouteTable implements Iterable<RouteEntry>
 	 */
 	public boolean remove(int dstIp, int maskIp)
 	{ 
-        synchronized(this.entries)
+        synchronized(this.writeLock)
         {
-            RouteEntry entry = this.find(dstIp, maskIp);
-            if (null == entry)
+            PrefixTrie current = this.entries;
+            RouteEntry removed = current.find(dstIp, maskIp);
+            if (null == removed)
             { return false; }
-            this.entries.remove(entry);
+            this.entries = current.remove(dstIp, maskIp);
+            if (this.flatTable != null)
+            { this.flatTable.update(this.entries, dstIp, maskIp, removed); }
+            this.generation++;
+            return true;
         }
-        return true;
     }
 	
 	/**
@@ -208,16 +297,112 @@ public class RouteTable implements Iterable<RouteEntry>
 	public boolean update(int dstIp, int maskIp, int gwIp, 
             Iface iface)
 	{
-        synchronized(this.entries)
+        synchronized(this.writeLock)
+        {
+            RouteEntry entry = this.find(dstIp, maskIp);
+            if (null == entry)
+            { return false; }
+            this.publish(entry.withRoute(gwIp, iface, entry.getHops()));
+        }
+        return true;
+	}
+	
+	/**
+	 * Update an entry in the route table, including its metric.
+	 * @param dstIP destination IP of the entry to update
+     * @param maskIp subnet mask of the entry to update
+	 * @param gatewayAddress new gateway IP address for matching entry
+	 * @param iface new router interface for matching entry
+	 * @param metric new metric for matching entry
+     * @return true if a matching entry was found and updated, otherwise false
+	 */
+	public boolean update(int dstIp, int maskIp, int gwIp, Iface iface,
+			int metric)
+	{
+        synchronized(this.writeLock)
         {
             RouteEntry entry = this.find(dstIp, maskIp);
             if (null == entry)
             { return false; }
-            entry.setGatewayAddress(gwIp);
-            entry.setInterface(iface);
+            this.publish(entry.withRoute(gwIp, iface, metric));
         }
         return true;
 	}
+	
+	/**
+	 * Restart the timeout of a learned entry in the route table. Does not
+	 * change the table, so it needs no lock.
+	 * @param dstIP destination IP of the entry to refresh
+     * @param maskIp subnet mask of the entry to refresh
+     * @return true if a matching entry was found and refreshed, otherwise false
+	 */
+	public boolean refresh(int dstIp, int maskIp)
+	{
+        RouteEntry entry = this.find(dstIp, maskIp);
+        if (null == entry)
+        { return false; }
+        entry.refresh();
+        return true;
+	}
+	
+	/**
+	 * Remove timed entries that have not been refreshed within their
+	 * timeout, keeping them as garbage advertised with a metric of infinity,
+	 * and delete garbage whose garbage-collection time has passed or whose
+	 * prefix is back in the table. Run periodically by the shared timer.
+	 */
+	private void sweep()
+	{
+		long now = System.nanoTime();
+		synchronized(this.writeLock)
+		{
+			Iterator<RouteEntry> iter = this.garbage.values().iterator();
+			while (iter.hasNext())
+			{
+				RouteEntry entry = iter.next();
+				if (entry.getAge(now) >= RouteEntry.GARBAGE_COLLECTION_TIMEOUT
+						|| this.find(entry.getDestinationAddress(),
+								entry.getMaskAddress()) != null)
+				{ iter.remove(); }
+			}
+			
+			for (RouteEntry entry : this.snapshot())
+			{
+				if (0 == entry.getTimeout() 
+						|| entry.getAge(now) < entry.getTimeout())
+				{ continue; }
+				
+				// Refreshes take no lock, so a RIP response may have 
+				// refreshed the entry since it was checked; check the 
+				// current entry again right before removing it
+				entry = this.find(entry.getDestinationAddress(), 
+						entry.getMaskAddress());
+				if (null == entry || 0 == entry.getTimeout()
+						|| entry.getAge(System.nanoTime()) < entry.getTimeout())
+				{ continue; }
+				System.out.println("Route entry timed out: " 
+						+ IPv4.fromIPv4Address(entry.getDestinationAddress()));
+				this.remove(entry.getDestinationAddress(), 
+						entry.getMaskAddress());
+				
+				// Start the garbage-collection time from now
+				RouteEntry unreachable = entry.withRoute(
+						entry.getGatewayAddress(), entry.getInterface(), 
+						RouteEntry.INFINITY);
+				unreachable.refresh();
+				this.garbage.put(prefix(unreachable), unreachable);
+			}
+		}
+	}
+	
+	/**
+	 * @return a key identifying an entry's destination prefix
+	 */
+	private static long prefix(RouteEntry entry)
+	{
+		return ((long)entry.getDestinationAddress() << 32) 
+				| (entry.getMaskAddress() & 0xffffffffL);
+	}
 
     /**
 	 * Find an entry in the route table.
@@ -226,35 +411,62 @@ public class RouteTable implements Iterable<RouteEntry>
      * @return a matching entry if one was found, otherwise null
 	 */
     private RouteEntry find(int dstIp, int maskIp)
+    { return this.entries.find(dstIp, maskIp); }
+    
+    /**
+     * Publish a new version of the route table containing an entry, which
+     * replaces any entry for the same prefix. Must hold the write lock.
+     * @param entry the entry to add
+     */
+    private void publish(RouteEntry entry)
     {
-        synchronized(this.entries)
-        {
-            for (RouteEntry entry : this.entries)
-            {
-                if ((entry.getDestinationAddress() == dstIp)
-                    && (entry.getMaskAddress() == maskIp)) 
-                { return entry; }
-            }
-        }
-        return null;
+    	PrefixTrie current = this.entries;
+    	RouteEntry previous = current.find(entry.getDestinationAddress(), 
+    			entry.getMaskAddress());
+    	this.entries = current.insert(entry);
+    	if (!this.garbage.isEmpty())
+    	{ this.garbage.remove(prefix(entry)); }
+    	if (this.flatTable != null)
+    	{
+    		this.flatTable.update(this.entries, entry.getDestinationAddress(),
+    				entry.getMaskAddress(), previous);
+    	}
+    	this.generation++;
     }
 	
 	public String toString()
 	{
-        synchronized(this.entries)
-        { 
-            if (0 == this.entries.size())
-            { return " WARNING: route table empty"; }
-            
-            String result = "Destination\tGateway\t\tMask\t\tIface\n";
-            for (RouteEntry entry : entries)
-            { result += entry.toString()+"\n"; }
-		    return result;
-        }
+        List<RouteEntry> snapshot = this.snapshot();
+        if (0 == snapshot.size())
+        { return " WARNING: route table empty"; }
+        
+        String result = "Destination\tGateway\t\tMask\t\tIface\n";
+        for (RouteEntry entry : snapshot)
+        { result += entry.toString()+"\n"; }
+	    return result;
+	}
+
+	/**
+	 * @return a copy of the entries in the route table, in prefix order
+	 */
+	private List<RouteEntry> snapshot()
+	{
+		PrefixTrie current = this.entries;
+		List<RouteEntry> result = new ArrayList<RouteEntry>(current.size());
+		current.collect(result);
+		return result;
 	}
 
+	/**
+	 * @return a copy of the entries in the route table, in prefix order, 
+	 *         followed by the timed-out entries that are still advertised 
+	 *         with a metric of infinity
+	 */
 	@Override
 	public Iterator<RouteEntry> iterator() {
-		return this.entries.iterator();
+		List<RouteEntry> result = this.snapshot();
+		synchronized(this.writeLock)
+		{ result.addAll(this.garbage.values()); }
+		return result.iterator();
 	}
 }
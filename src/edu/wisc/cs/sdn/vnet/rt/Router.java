@@ -1,17 +1,19 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.SharedTimer;
 
 import net.floodlightcontroller.packet.*;
 import net.floodlightcontroller.packet.ICMP.ICMP_TYPES;
 
 /**
+ * A router. Packets may be handled by several threads at once (see 
+ * {@link edu.wisc.cs.sdn.vnet.vns.PacketPipeline}); the route table, ARP
+ * cache, ARP queues and destination cache are all safe for concurrent use.
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class Router extends Device
@@ -23,6 +25,22 @@ public class Router extends Device
 	private ArpCache arpCache;
 	
 	private ArpQueueHandler arpHandler;
+	
+	/** Cache of forwarding decisions for recently seen destinations */
+	private DestinationCache destinationCache;
+	
+	/** Whether transit IPv4 packets are forwarded by rewriting the received
+	 *  frame in place */
+	private boolean fastPathEnabled;
+	
+	/** Reusable views for parsing raw frames on the fast path; one set per
+	 *  thread handling packets */
+	private final ThreadLocal<EthernetView> etherView;
+	private final ThreadLocal<IPv4View> ipView;
+	
+	/** Length of an IPv4 header without options */
+	private static final int IP_HEADER_LENGTH = 20;
+	
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -33,6 +51,11 @@ public class Router extends Device
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache();
 		this.arpHandler = new ArpQueueHandler(arpCache, this);
+		this.destinationCache = new DestinationCache(
+				DestinationCache.DEFAULT_CAPACITY, routeTable, arpCache);
+		this.fastPathEnabled = false;
+		this.etherView = ThreadLocal.withInitial(EthernetView::new);
+		this.ipView = ThreadLocal.withInitial(IPv4View::new);
 	}
 	
 	/**
@@ -41,6 +64,40 @@ public class Router extends Device
 	public RouteTable getRouteTable()
 	{ return this.routeTable; }
 	
+	/**
+	 * @return ARP cache for the router
+	 */
+	public ArpCache getArpCache()
+	{ return this.arpCache; }
+	
+	/**
+	 * @return queues of packets waiting for ARP replies
+	 */
+	public ArpQueueHandler getArpQueueHandler()
+	{ return this.arpHandler; }
+	
+	/**
+	 * @return cache of forwarding decisions for recently seen destinations
+	 */
+	public DestinationCache getDestinationCache()
+	{ return this.destinationCache; }
+	
+	/**
+	 * Serve route lookups from a DIR-24-8 flat forwarding table instead of
+	 * the route table's trie. The table's first level alone takes 64 MB of
+	 * heap, however few routes there are.
+	 */
+	public void useFlatForwardingTable()
+	{ this.routeTable.enableFlatTable(); }
+	
+	/**
+	 * Forward plain transit IPv4 packets by rewriting the received frame in
+	 * place, without building packet objects; everything else still goes
+	 * through {@link #handlePacket(Ethernet, Iface)}.
+	 */
+	public void enableFastPath()
+	{ this.fastPathEnabled = true; }
+	
 	/**
 	 * Load a new routing table from a file.
 	 * @param routeTableFile the name of the file containing the routing table
@@ -123,8 +180,7 @@ public class Router extends Device
 		}
 		
 		// Set timer and task to continuously broadcast RIP responses
-		Timer ripBroadcastTimer = new Timer();
-		ripBroadcastTimer.scheduleAtFixedRate(new RipTimerTask(this) {
+		SharedTimer.scheduleAtFixedRate(new RipTimerTask(this) {
 			
 			@Override
 			public void run() 
@@ -147,6 +203,7 @@ public class Router extends Device
 					ripEntry.setAddressFamily(RIPv2Entry.ADDRESS_FAMILY_IPv4);
 					ripEntry.setNextHopAddress(entry.getGatewayAddress());
 					ripEntry.setSubnetMask(entry.getMaskAddress());
+					ripEntry.setMetric(entry.getHops());
 					
 					ripPacket.addEntry(ripEntry);
 				}
@@ -197,6 +254,7 @@ public class Router extends Device
 			ripEntry.setAddressFamily(RIPv2Entry.ADDRESS_FAMILY_IPv4);
 			ripEntry.setNextHopAddress(entry.getGatewayAddress());
 			ripEntry.setSubnetMask(entry.getMaskAddress());
+			ripEntry.setMetric(entry.getHops());
 			
 			ripPacket.addEntry(ripEntry);
 		}
@@ -232,21 +290,26 @@ public class Router extends Device
 				
 		for(RIPv2Entry ripEntry : ripPacket.getEntries())
 		{
+			// Skip routes the neighbor advertises as unreachable; ours
+			// through it time out
+			if (ripEntry.getMetric() >= RouteEntry.INFINITY)
+			{ continue; }
+			
 			RouteEntry routeEntry = this.routeTable.lookup(ripEntry.getAddress());
 			if (routeEntry!= null)
 			{
 				if (routeEntry.getGatewayAddress() != 0 && ipPacket.getSourceAddress() == routeEntry.getGatewayAddress())
 				{
-					routeEntry.serviceTimer(RouteEntry.DEFAULT_TIMEOUT, this.routeTable);
-				
+					this.routeTable.refresh(routeEntry.getDestinationAddress(),
+							routeEntry.getMaskAddress());
+
 				}
 				// Check if it takes less hops:
 				if(ripEntry.getMetric()+1 < routeEntry.getHops())
 				{
-					routeEntry.setHops(ripEntry.getMetric() + 1);
-//					routeEntry.setGatewayAddress(ipPacket.getSourceAddress());
-					routeEntry.setGatewayAddress(ripEntry.getNextHopAddress());
-					routeEntry.setInterface(inIface);
+					this.routeTable.update(routeEntry.getDestinationAddress(),
+							routeEntry.getMaskAddress(), ripEntry.getNextHopAddress(),
+							inIface, ripEntry.getMetric() + 1);
 				}
 			}
 			else
@@ -404,6 +467,88 @@ public class Router extends Device
 		/********************************************************************/
 	}
 	
+	/**
+	 * Forward a transit IPv4 frame by rewriting its MAC addresses, TTL, and
+	 * checksum in place. Frames that need anything more (ARP, RIP, packets
+	 * for the router, expiring TTLs, unknown routes or next hops) are left
+	 * untouched for the regular packet handler.
+	 * @param frame buffer whose remaining bytes are the received frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was forwarded or dropped, otherwise false
+	 */
+	public boolean handleRawPacket(ByteBuffer frame, Iface inIface)
+	{
+		if (!this.fastPathEnabled)
+		{ return false; }
+		
+		// Only handle untagged IPv4 without options
+		EthernetView ether = this.etherView.get();
+		ether.wrap(frame);
+		if (ether.getViewLength() < 14 + IP_HEADER_LENGTH || ether.isTagged()
+				|| ether.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return false; }
+		IPv4View ip = ether.payload(this.ipView.get());
+		if (ip.getVersion() != 4 || ip.getHeaderLength() != 5)
+		{ return false; }
+		
+		// Drop packets with a bad checksum, as the regular handler would
+		if (!ip.isChecksumValid())
+		{ return true; }
+		
+		// Leave expiring packets to the regular handler so it can send ICMP
+		if ((ip.getTtl() & 0xff) <= 1)
+		{ return false; }
+		
+		// Leave multicast, broadcast, and packets for the router alone
+		int dstAddr = ip.getDestinationAddress();
+		if ((dstAddr >>> 28) == 0xe || dstAddr == 0xffffffff)
+		{ return false; }
+		for (Iface iface : this.interfaces.values())
+		{
+			if (dstAddr == iface.getIpAddress())
+			{ return false; }
+		}
+		
+		// Determine the outgoing interface and next hop MAC address
+		Iface outIface;
+		byte[] nextHopMac;
+		DestinationCache.Entry cached = this.destinationCache.lookup(dstAddr);
+		if (cached != null)
+		{
+			outIface = cached.getInterface();
+			nextHopMac = cached.getNextHopMac();
+		}
+		else
+		{
+			long generation = this.destinationCache.generation();
+			RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+			if (null == bestMatch)
+			{ return false; }
+			outIface = bestMatch.getInterface();
+			int nextHop = bestMatch.getGatewayAddress();
+			if (0 == nextHop)
+			{ nextHop = dstAddr; }
+			long mac = this.arpCache.lookupMac(nextHop);
+			if (mac < 0)
+			{ return false; }
+			nextHopMac = MACAddress.valueOf(mac).toBytes();
+			this.destinationCache.insert(dstAddr, outIface, nextHopMac, 
+					generation);
+		}
+		
+		// Make sure we don't sent a packet back out the interface it came in
+		if (outIface == inIface)
+		{ return true; }
+		
+		// Rewrite the frame and send it
+		ether.setDestinationMACAddress(nextHopMac);
+		ether.setSourceMAC(outIface.getMacAddress().toLong());
+		ip.decrementTtl();
+		
+		this.sendRawPacket(frame, outIface);
+		return true;
+	}
+	
 	private void sendIcmpEcho(Ethernet etherPacket, Iface inIface)
 	{
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
@@ -421,8 +566,6 @@ public class Router extends Device
         { 
 			nextHop = srcIP; 
 		}
-        ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-        reply.setDestinationMACAddress(arpEntry.getMac().toBytes()); //set Destination MAC (original sender)
         
 		//IP
 		IPv4 ip = new IPv4(); 
@@ -442,7 +585,7 @@ public class Router extends Device
 		ip.setPayload(icmp);
 		
 		//send packet
-		this.sendPacket(reply, outIface);
+		this.sendToNextHop(reply, outIface, nextHop);
 	}
 	
 	public void sendIcmpMsg(Ethernet etherPacket, Iface inIface, ICMP.ICMP_TYPES errorCode)
@@ -461,11 +604,6 @@ public class Router extends Device
         { 
 			nextHop = srcIP; 
 		}
-        ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-        if (arpEntry != null)
-        {
-        	ether.setDestinationMACAddress(arpEntry.getMac().toBytes()); //set Destination MAC (original sender)
-        }
 		
 		//IP
 		IPv4 ip = new IPv4(); 
@@ -521,10 +659,35 @@ public class Router extends Device
 		icmp.setPayload(data);
 		
 		//send packet
-		this.sendPacket(ether, outIface);
+		this.sendToNextHop(ether, outIface, nextHop);
 		System.out.println("Sending ICMP -- IP " + IPv4.fromIPv4Address(ip.getDestinationAddress()));
 	}
 	
+	/**
+	 * Send a packet the router built itself to its next hop. If the next 
+	 * hop's MAC address is not known the packet waits for an ARP reply; if 
+	 * resolving the next hop recently failed the packet is dropped.
+	 * @param etherPacket the packet, with every field but its destination 
+	 *        MAC address set
+	 * @param outIface interface out which to send the packet
+	 * @param nextHop IP address of the next hop
+	 */
+	private void sendToNextHop(Ethernet etherPacket, Iface outIface, int nextHop)
+	{
+		long mac = this.arpCache.lookupMac(nextHop);
+		if (ArpCache.UNREACHABLE == mac)
+		{ return; }
+		if (mac < 0)
+		{
+			// The destination MAC address is filled in once it is known
+			etherPacket.setDestinationMACAddress(new byte[6]);
+			this.arpHandler.enqueueAndBeginTimer(etherPacket, nextHop);
+			return;
+		}
+		etherPacket.setDestinationMACAddress(MACAddress.valueOf(mac).toBytes());
+		this.sendPacket(etherPacket, outIface);
+	}
+	
 	private void handleIpPacket(Ethernet etherPacket, Iface inIface)
 	{
 		// Make sure it's an IP packet
@@ -555,26 +718,18 @@ public class Router extends Device
 			return;
 		}
 
-        // Verify checksum
-        short origCksum = ipPacket.getChecksum();
-        ipPacket.resetChecksum();
-        byte[] serialized = ipPacket.serialize();
-        ipPacket.deserialize(serialized, 0, serialized.length);
-        short calcCksum = ipPacket.getChecksum();
-        if (origCksum != calcCksum)
+        // Verify checksum over the header only
+        if (!ipPacket.isChecksumValid())
         { return; }
         
-        // Check TTL
-        ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
+        // Check TTL; the checksum is updated incrementally for the new TTL
+        ipPacket.decrementTtl();
         if (0 == ipPacket.getTtl())
         { 
 			sendIcmpMsg(etherPacket, inIface, ICMP_TYPES.ICMP_CODE_TIMEOUT);
 			return; 
 		}
         
-        // Reset checksum now that TTL is decremented
-        ipPacket.resetChecksum();
-        
         // Check if packet is destined for one of router's interfaces
         for (Iface iface : this.interfaces.values())
         {
@@ -609,6 +764,20 @@ public class Router extends Device
 		IPv4 ipPacket = (IPv4)etherPacket.getPayload();
         int dstAddr = ipPacket.getDestinationAddress();
 
+        // Use the cached forwarding decision for the destination, if any
+        DestinationCache.Entry cached = this.destinationCache.lookup(dstAddr);
+        if (cached != null)
+        {
+        	Iface outIface = cached.getInterface();
+        	if (outIface == inIface)
+        	{ return; }
+        	etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
+        	etherPacket.setDestinationMACAddress(cached.getNextHopMac());
+        	this.sendPacket(etherPacket, outIface);
+        	return;
+        }
+        long generation = this.destinationCache.generation();
+
         // Find matching route table entry 
         RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
 
@@ -634,14 +803,22 @@ public class Router extends Device
         { nextHop = dstAddr; }
 
         // Set destination MAC address in Ethernet header
-        ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-        if (null == arpEntry)
+        long mac = this.arpCache.lookupMac(nextHop);
+        if (ArpCache.UNREACHABLE == mac)
+        {
+        	// Resolving the next hop just failed; don't queue behind it again
+        	sendIcmpMsg(etherPacket, inIface, ICMP_TYPES.ICMP_CODE_UNREACHABLE_HOST);
+        	return;
+        }
+        if (mac < 0)
         { 
-        	sendArpRequest(((IPv4)etherPacket.getPayload()).getDestinationAddress());
-        	arpHandler.enqueueAndBeginTimer(etherPacket);
+        	// The queue sends the ARP request when it gets its first packet
+        	arpHandler.enqueueAndBeginTimer(etherPacket, nextHop);
         	return; 
         }
-        etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
+        byte[] nextHopMac = MACAddress.valueOf(mac).toBytes();
+        this.destinationCache.insert(dstAddr, outIface, nextHopMac, generation);
+        etherPacket.setDestinationMACAddress(nextHopMac);
         
         this.sendPacket(etherPacket, outIface);
     }
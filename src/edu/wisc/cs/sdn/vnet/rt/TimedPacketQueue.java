@@ -1,10 +1,10 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.SharedTimer;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.ICMP.ICMP_TYPES;
@@ -16,79 +16,186 @@ public class TimedPacketQueue
 	public static final int MAX_RETRIES = 3;
 	
 	// instance variables:
-	private Timer arpResendTimer;
-	private LinkedList<Ethernet> packetQueue;
+	private volatile SharedTimer.Timeout arpResendTimer;
+	// Frames waiting for the MAC address, oldest first; at most the
+	// handler's queue length
+	private ArrayDeque<byte[]> packetQueue;
 	private final Router localRouter;
 	private final ArpQueueHandler localQueueHandler;
 	
+	// IP address whose MAC address the queued packets are waiting for
+	private final int destinationIp;
+
+	// Set once the queue has been sent or timed out; guarded by this
+	private boolean closed;
+
+	// Set once the first ARP request has been sent; guarded by this
+	private boolean requested;
+
 	// Constructor:
-	public TimedPacketQueue(Router router, ArpQueueHandler queueHandler) 
+	public TimedPacketQueue(Router router, ArpQueueHandler queueHandler, int ip)
 	{
 		localRouter = router;
 		localQueueHandler = queueHandler;
-		packetQueue = new LinkedList<Ethernet>();
-		arpResendTimer = new Timer();
-		arpResendTimer.scheduleAtFixedRate(new TimerTask() {
+		destinationIp = ip;
+		packetQueue = new ArrayDeque<byte[]>();
+		arpResendTimer = SharedTimer.scheduleAtFixedRate(new Runnable() {
 			private int count = 0;
 			@Override
 			public void run() {
-				int destinationIp = 0;
-				
-				if (packetQueue.isEmpty())
+				// Decide under the lock, but send after releasing it so
+				// packets for the IP are not held up meanwhile
+				byte[] frame = null;
+				synchronized (TimedPacketQueue.this)
 				{
-					// In case queue is empty, we don't do anything else
-					return;
-				}
-				else
-				{
-					// Else, get the first entry's IP address, this should be the same for ALL entries in this list
-					IPv4 ipPacket = (IPv4) packetQueue.peekFirst().getPayload();
-					destinationIp = ipPacket.getDestinationAddress();
-					System.out.println("Timer tick once and resend ARP once, dst ip: " + destinationIp);
+					if (closed)
+					{ return; }
+					if (packetQueue.isEmpty())
+					{
+						// Every packet for the IP was dropped; nothing is
+						// waiting, so give up on it
+						arpResendTimer.cancel();
+						closed = true;
+						localQueueHandler.removeFromMap(destinationIp, TimedPacketQueue.this);
+						return;
+					}
+					if (++count >= MAX_RETRIES)
+					{
+						System.out.println("Number of Retries Exceeded");
+						// Cancel the timer
+						arpResendTimer.cancel();
+						closed = true;
+					
+						// Remember the failure so new packets for the IP are
+						// rejected at once for a while
+						localRouter.getArpCache().insertNegative(destinationIp);
+					
+						// Keep the first packet for the ICMP message
+						frame = packetQueue.peekFirst();
+						discardAll();
+						localQueueHandler.removeFromMap(destinationIp, TimedPacketQueue.this);
+					}
 				}
+				
 				// Send ARP request to get MAC for this IP
 				localRouter.sendArpRequest(destinationIp);
+				if (null == frame)
+				{ return; }
+				
+				Ethernet etherPacket = new Ethernet();
+				etherPacket.deserialize(frame, 0, frame.length);
 				
-				if (++count >= MAX_RETRIES)
+				// Get IP header
+				IPv4 ipPacket = (IPv4)etherPacket.getPayload();
+				int srcAddr = ipPacket.getSourceAddress();
+
+				// Packets the router built itself, such as ICMP messages, 
+				// get no ICMP message back
+				for (Iface iface : localRouter.getInterfaces().values())
 				{
-					System.out.println("Number of Retries Exceeded");
-					// Cancel the timer
-					arpResendTimer.cancel();
-					
-					// Get the first packet
-					Ethernet etherPacket = packetQueue.peekFirst();
-					// Get IP header
-					IPv4 ipPacket = (IPv4)etherPacket.getPayload();
-			        int srcAddr = ipPacket.getSourceAddress();
+					if (iface.getIpAddress() == srcAddr)
+					{ return; }
+				}
 
-			        // Find matching route table entry 
-			        RouteEntry bestMatch = localRouter.getRouteTable().lookup(srcAddr);
-			        System.out.println("BestMatch: "+bestMatch.toString());
+				// Find matching route table entry; with no route back to the
+				// source there is nowhere to send the ICMP message
+				RouteEntry bestMatch = localRouter.getRouteTable().lookup(srcAddr);
+				if (null == bestMatch)
+				{ return; }
 			        
-			        // Send the ICMP message out the source interface
-					localRouter.sendIcmpMsg(etherPacket, bestMatch.getInterface(), ICMP_TYPES.ICMP_CODE_UNREACHABLE_HOST);
-					localQueueHandler.removeFromMap(destinationIp);
-				}
+				// Send the ICMP message out the source interface
+				localRouter.sendIcmpMsg(etherPacket, bestMatch.getInterface(), ICMP_TYPES.ICMP_CODE_UNREACHABLE_HOST);
 			}
 		}, TIMER_RESEND, TIMER_RESEND);
 	}
 	
-	public void appendPacketToList(Ethernet packet)
+	// Returns false if the queue was already sent or timed out. A frame
+	// that does not fit is dropped, or makes room by dropping the oldest
+	// one, as the handler's policy says.
+	public boolean appendPacketToList(byte[] frame)
 	{
-		System.out.println("Appending to the list");
-		packetQueue.addLast(packet);
+		boolean request;
+		synchronized (this)
+		{
+			if (closed)
+			{ return false; }
+			
+			// Ask for the MAC address once, even if the first frame is
+			// dropped; the timer asks again if no reply comes, rather than
+			// every packet asking
+			request = !requested;
+			requested = true;
+			addFrame(frame);
+		}
+		if (request)
+		{ localRouter.sendArpRequest(destinationIp); }
+		return true;
+	}
+	
+	// Queue a frame, or drop one; must hold the lock
+	private void addFrame(byte[] frame)
+	{
+		if (!localQueueHandler.reserve(frame.length))
+		{
+			localQueueHandler.countDropped(1);
+			return;
+		}
+		if (packetQueue.size() >= localQueueHandler.getMaxQueueLength())
+		{
+			byte[] dropped = frame;
+			if (ArpQueueHandler.DropPolicy.DROP_OLDEST 
+					== localQueueHandler.getDropPolicy())
+			{ 
+				dropped = packetQueue.pollFirst(); 
+				packetQueue.addLast(frame);
+				localQueueHandler.countQueued();
+			}
+			localQueueHandler.release(dropped.length);
+			localQueueHandler.countDropped(1);
+			return;
+		}
+		packetQueue.addLast(frame);
+		localQueueHandler.countQueued();
 	}
 	
+	// Called on the thread that handled the ARP reply. With several
+	// pipeline workers that is not always the worker that owns each queued
+	// frame's flow, which may already be forwarding later frames of the
+	// flow now that the reply is cached; those can leave first. Only the
+	// frames held during one resolution can be overtaken, so this is
+	// accepted rather than passing every frame back to its own worker.
 	public void sendEntireList(Iface outIface, byte[] destinationMac)
 	{
-		int ip = ((IPv4)(packetQueue.peekFirst().getPayload())).getSourceAddress();
-		for (Ethernet element : packetQueue)
+		// Once closed nothing else touches the queue, so its frames can be
+		// sent after releasing the lock
+		synchronized (this)
+		{
+			if (closed)
+			{ return; }
+			closed = true;
+			arpResendTimer.cancel();
+			localQueueHandler.removeFromMap(destinationIp, this);
+		}
+		long bytes = 0;
+		for (byte[] element : packetQueue)
 		{
-			System.out.println("Sending List element");
-			element.setDestinationMACAddress(destinationMac);
-			localRouter.sendPacket(element, outIface);
+			System.arraycopy(destinationMac, 0, element, 0, destinationMac.length);
+			localRouter.sendRawPacket(ByteBuffer.wrap(element), outIface);
+			bytes += element.length;
 		}
-		arpResendTimer.cancel();
-		localQueueHandler.removeFromMap(ip);
+		localQueueHandler.countDrained(packetQueue.size());
+		localQueueHandler.release(bytes);
+		packetQueue.clear();
+	}
+	
+	// Give up on the queued frames; must hold the lock
+	private void discardAll()
+	{
+		long bytes = 0;
+		for (byte[] element : packetQueue)
+		{ bytes += element.length; }
+		localQueueHandler.countDropped(packetQueue.size());
+		localQueueHandler.release(bytes);
+		packetQueue.clear();
 	}
 }
@@ -0,0 +1,326 @@
+package edu.wisc.cs.sdn.vnet.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.server.Topology.Node;
+import edu.wisc.cs.sdn.vnet.server.Topology.Port;
+import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.CommandHwEntry;
+import edu.wisc.cs.sdn.vnet.vns.CommandHwInfo;
+import edu.wisc.cs.sdn.vnet.vns.CommandOpen;
+import edu.wisc.cs.sdn.vnet.vns.CommandPacket;
+
+/**
+ * The server's end of one device's connection. A reader thread opens the
+ * session, sends the device its interfaces, and then hands every frame the
+ * device sends to the server for delivery. A writer thread writes the frames
+ * queued for the device. Like a link whose queue is full, the connection
+ * drops frames relayed to it while its send buffer is full, so one slow
+ * device cannot stall the others.
+ */
+class DeviceConnection
+{
+	/** Size of the buffer into which commands are read */
+	private static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+
+	/** Size of each of the two buffers in which commands wait to be written */
+	private static final int SEND_BUFFER_SIZE = 256 * 1024;
+
+	/** Largest command accepted from a device */
+	private static final int MAX_COMMAND_SIZE = 10000;
+
+	private final VNSServer server;
+	private final SocketChannel channel;
+	private final ByteBuffer receiveBuffer;
+
+	/** View of the receive buffer, positioned on each frame in turn */
+	private final ByteBuffer frameView;
+
+	/** Commands queued for writing; guarded by the send lock */
+	private ByteBuffer pending;
+
+	/** Commands being written by the writer thread */
+	private ByteBuffer writing;
+
+	private final Object sendLock;
+
+	/** The device at the other end; set once its session is open */
+	private volatile Node node;
+
+	private volatile boolean open;
+
+	/** Number of frames received from the device */
+	private volatile long received;
+
+	/** Number of frames queued for the device; guarded by the send lock */
+	private long sent;
+
+	/** Number of frames dropped because the send buffer was full; guarded
+	 * by the send lock */
+	private long dropped;
+
+	DeviceConnection(VNSServer server, SocketChannel channel)
+	{
+		this.server = server;
+		this.channel = channel;
+		this.receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+		this.receiveBuffer.limit(0);
+		this.frameView = this.receiveBuffer.duplicate();
+		this.pending = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+		this.writing = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+		this.sendLock = new Object();
+		this.open = true;
+	}
+
+	/**
+	 * Start serving the connection.
+	 */
+	void start()
+	{
+		Thread reader = new Thread(new Runnable() {
+			public void run()
+			{ read(); }
+		}, "Connection reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * @return the device at the other end; null until its session is open
+	 */
+	Node getNode()
+	{ return this.node; }
+
+	/**
+	 * Queue a frame for the device.
+	 * @param port the device's interface on which the frame arrives
+	 * @param frame buffer whose remaining bytes are the frame; its position
+	 *        is left unchanged
+	 * @return false if the frame was dropped
+	 */
+	boolean send(Port port, ByteBuffer frame)
+	{
+		int length = frame.remaining();
+		int position = frame.position();
+		synchronized (this.sendLock)
+		{
+			if (!this.open
+					|| this.pending.remaining() < CommandPacket.HEADER_SIZE + length)
+			{
+				this.dropped++;
+				return false;
+			}
+			boolean wasEmpty = (0 == this.pending.position());
+			CommandPacket.writeHeader(this.pending,
+					port.getName().getBytes(), length);
+			this.pending.put(frame);
+			frame.position(position);
+			this.sent++;
+			if (wasEmpty)
+			{ this.sendLock.notify(); }
+		}
+		return true;
+	}
+
+	/**
+	 * Close the connection; the device sees the server close its session.
+	 */
+	void close()
+	{
+		synchronized (this.sendLock)
+		{
+			this.open = false;
+			this.sendLock.notify();
+		}
+		try { this.channel.close(); } catch (IOException e) { }
+	}
+
+	/**
+	 * Body of the reader thread.
+	 */
+	private void read()
+	{
+		try
+		{
+			if (!this.openSession())
+			{ return; }
+
+			Thread writer = new Thread(new Runnable() {
+				public void run()
+				{ write(); }
+			}, "Connection writer " + this.node.getName());
+			writer.setDaemon(true);
+			writer.start();
+			this.server.connected(this);
+
+			int len;
+			while ((len = this.nextCommand()) > 0)
+			{
+				int start = this.receiveBuffer.position();
+				int end = start + len;
+				this.receiveBuffer.position(end);
+				int command = this.receiveBuffer.getInt(start + 4);
+				if (Command.VNS_PACKET == command)
+				{
+					this.received++;
+					Port port = this.findPort(start + 8);
+					if (port != null)
+					{
+						this.frameView.limit(end);
+						this.frameView.position(start
+								+ CommandPacket.HEADER_SIZE);
+						this.server.relay(port, this.frameView);
+					}
+				}
+				else if (Command.VNS_CLOSE == command)
+				{ break; }
+			}
+		}
+		catch (IOException e)
+		{
+			if (this.open)
+			{ System.err.println("Connection failed: " + e); }
+		}
+		finally
+		{
+			this.close();
+			this.server.disconnected(this);
+		}
+	}
+
+	/**
+	 * Read the device's open command and send it its interfaces.
+	 * @return false if the device is not a switch or router in the topology
+	 */
+	private boolean openSession() throws IOException
+	{
+		int len = this.nextCommand();
+		if (len <= 0 || this.receiveBuffer.getInt(
+				this.receiveBuffer.position() + 4) != Command.VNS_OPEN)
+		{ return false; }
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		for (int i = 0; i < len; i++)
+		{ buf.put(this.receiveBuffer.get()); }
+		buf.flip();
+		String name = new CommandOpen().deserialize(buf).getVirtualHostId();
+
+		Node node = this.server.getTopology().getNode(name);
+		if (null == node || Topology.Type.HOST == node.getType())
+		{
+			System.err.println("Unknown device " + name);
+			return false;
+		}
+
+		List<CommandHwEntry> hwInfo = new ArrayList<CommandHwEntry>();
+		for (Port port : node.getPorts())
+		{
+			hwInfo.add(new CommandHwEntry(CommandHwEntry.HW_INTERFACE,
+					port.getName().getBytes()));
+			if (Topology.Type.ROUTER == node.getType())
+			{
+				hwInfo.add(new CommandHwEntry(CommandHwEntry.HW_ETHER,
+						port.getMacAddress().toBytes()));
+				hwInfo.add(new CommandHwEntry(CommandHwEntry.HW_ETH_IP,
+						ByteBuffer.allocate(4).putInt(port.getIpAddress())
+						.array()));
+				hwInfo.add(new CommandHwEntry(CommandHwEntry.HW_MASK,
+						ByteBuffer.allocate(4).putInt(port.getSubnetMask())
+						.array()));
+			}
+		}
+		ByteBuffer hw = ByteBuffer.wrap(new CommandHwInfo(hwInfo).serialize());
+		while (hw.hasRemaining())
+		{ this.channel.write(hw); }
+		this.node = node;
+		return true;
+	}
+
+	/**
+	 * Make sure a complete command is in the receive buffer, reading from the
+	 * device as needed.
+	 * @return length of the command, which starts at the receive buffer's
+	 *         position; -1 if the device closed the connection
+	 */
+	private int nextCommand() throws IOException
+	{
+		while (true)
+		{
+			int available = this.receiveBuffer.remaining();
+			if (available >= 4)
+			{
+				int len = this.receiveBuffer.getInt(
+						this.receiveBuffer.position());
+				if (len > MAX_COMMAND_SIZE || len < 8)
+				{ throw new IOException("Invalid command length " + len); }
+				if (available >= len)
+				{ return len; }
+			}
+			this.receiveBuffer.compact();
+			int ret = this.channel.read(this.receiveBuffer);
+			this.receiveBuffer.flip();
+			if (ret < 0)
+			{ return -1; }
+		}
+	}
+
+	/**
+	 * @param offset absolute position of an interface name in the receive
+	 *        buffer
+	 * @return the named interface of the device; null if there is none
+	 */
+	private Port findPort(int offset)
+	{
+		int length = 0;
+		while (length < CommandPacket.IFACE_NAME_SIZE
+				&& this.receiveBuffer.get(offset + length) != 0)
+		{ length++; }
+		byte[] name = new byte[length];
+		this.receiveBuffer.get(offset, name);
+		return this.node.getPort(new String(name));
+	}
+
+	/**
+	 * Body of the writer thread: write queued commands, swapping buffers so
+	 * frames can be queued while earlier ones are written.
+	 */
+	private void write()
+	{
+		try
+		{
+			while (true)
+			{
+				synchronized (this.sendLock)
+				{
+					while (this.open && 0 == this.pending.position())
+					{ this.sendLock.wait(); }
+					if (!this.open)
+					{ return; }
+					ByteBuffer full = this.pending;
+					this.pending = this.writing;
+					this.writing = full;
+				}
+				this.writing.flip();
+				while (this.writing.hasRemaining())
+				{ this.channel.write(this.writing); }
+				this.writing.clear();
+			}
+		}
+		catch (IOException e)
+		{ this.close(); }
+		catch (InterruptedException e)
+		{ this.close(); }
+	}
+
+	public String toString()
+	{
+		synchronized (this.sendLock)
+		{
+			return String.format("%s: %d frames received, %d sent, %d dropped",
+					this.node, this.received, this.sent, this.dropped);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package edu.wisc.cs.sdn.vnet.server;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+import edu.wisc.cs.sdn.vnet.server.Topology.Node;
+import edu.wisc.cs.sdn.vnet.server.Topology.Port;
+
+/**
+ * Stands in for a host of the topology. It answers ARP requests for its
+ * address, resolves the addresses it sends to, and passes the traffic it
+ * receives from flows to the flows' statistics; it ignores everything else.
+ */
+class SimHost
+{
+	private static final int ETHER_TYPE_OFFSET = 12;
+	private static final int ARP_OPCODE_OFFSET = 14 + 6;
+	private static final int ARP_SENDER_MAC_OFFSET = 14 + 8;
+	private static final int ARP_SENDER_IP_OFFSET = 14 + 14;
+	private static final int ARP_TARGET_IP_OFFSET = 14 + 24;
+
+	/** Time between ARP requests while resolving an address */
+	private static final long ARP_RETRY_MILLIS = 500;
+
+	private final VNSServer server;
+	private final Node node;
+	private final Port port;
+
+	/** MAC addresses learned from ARP replies, by IP address */
+	private final Map<Integer,MACAddress> arpTable;
+
+	SimHost(VNSServer server, Node node)
+	{
+		this.server = server;
+		this.node = node;
+		this.port = node.getPorts().get(0);
+		this.arpTable = new ConcurrentHashMap<Integer,MACAddress>();
+	}
+
+	Node getNode()
+	{ return this.node; }
+
+	Port getPort()
+	{ return this.port; }
+
+	/**
+	 * @param ip an IP address
+	 * @return the address to which to send frames for the IP address: the
+	 *         address itself if it is in the host's subnet, otherwise the
+	 *         host's gateway
+	 */
+	int nextHop(int ip)
+	{
+		int mask = this.port.getSubnetMask();
+		if ((ip & mask) == (this.port.getIpAddress() & mask)
+				|| 0 == this.node.getGateway())
+		{ return ip; }
+		return this.node.getGateway();
+	}
+
+	/**
+	 * Find the MAC address of a neighbor, sending ARP requests until it
+	 * replies.
+	 * @param ip IP address of the neighbor
+	 * @param timeout longest time to wait, in milliseconds
+	 * @return the MAC address; null if the neighbor did not reply in time
+	 */
+	MACAddress resolve(int ip, long timeout) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+		while (System.currentTimeMillis() < end)
+		{
+			MACAddress mac = this.arpTable.get(ip);
+			if (mac != null)
+			{ return mac; }
+			this.sendArp(ARP.OP_REQUEST, MACAddress.valueOf(0L), ip);
+			synchronized (this.arpTable)
+			{ this.arpTable.wait(ARP_RETRY_MILLIS); }
+		}
+		return this.arpTable.get(ip);
+	}
+
+	/**
+	 * Send a frame from the host, waiting while the link is busy.
+	 * @param frame buffer whose remaining bytes are the frame; its position
+	 *        is left unchanged
+	 * @return false if the device at the other end is not connected
+	 */
+	boolean transmit(ByteBuffer frame)
+	{
+		while (!this.server.deliver(this.port.getPeer(), frame))
+		{
+			if (!this.server.isConnected(this.port.getPeer().getNode()))
+			{ return false; }
+			Thread.yield();
+		}
+		return true;
+	}
+
+	/**
+	 * Handle a frame that reached the host.
+	 * @param frame buffer whose remaining bytes are the frame; it may be
+	 *        reused once this returns
+	 */
+	void receive(ByteBuffer frame)
+	{
+		int start = frame.position();
+		if (frame.remaining() < 14)
+		{ return; }
+		short etherType = frame.getShort(start + ETHER_TYPE_OFFSET);
+		if (Ethernet.TYPE_ARP == etherType && frame.remaining() >= 42)
+		{ this.receiveArp(frame, start); }
+		else if (Ethernet.TYPE_IPv4 == etherType)
+		{ this.server.hostReceived(this, frame); }
+	}
+
+	private void receiveArp(ByteBuffer frame, int start)
+	{
+		short op = frame.getShort(start + ARP_OPCODE_OFFSET);
+		int senderIp = frame.getInt(start + ARP_SENDER_IP_OFFSET);
+		byte[] senderMac = new byte[6];
+		frame.get(start + ARP_SENDER_MAC_OFFSET, senderMac);
+		if (ARP.OP_REQUEST == op)
+		{
+			if (frame.getInt(start + ARP_TARGET_IP_OFFSET)
+					== this.port.getIpAddress())
+			{ this.sendArp(ARP.OP_REPLY, new MACAddress(senderMac), senderIp); }
+		}
+		else if (ARP.OP_REPLY == op)
+		{
+			this.arpTable.put(senderIp, new MACAddress(senderMac));
+			synchronized (this.arpTable)
+			{ this.arpTable.notifyAll(); }
+		}
+	}
+
+	private void sendArp(short op, MACAddress targetMac, int targetIp)
+	{
+		ARP arp = new ARP();
+		arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arp.setProtocolType(ARP.PROTO_TYPE_IP);
+		arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
+		arp.setProtocolAddressLength((byte)4);
+		arp.setOpCode(op);
+		arp.setSenderHardwareAddress(this.port.getMacAddress().toBytes());
+		arp.setSenderProtocolAddress(this.port.getIpAddress());
+		arp.setTargetHardwareAddress(targetMac.toBytes());
+		arp.setTargetProtocolAddress(targetIp);
+
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_ARP);
+		ether.setSourceMACAddress(this.port.getMacAddress().toBytes());
+		ether.setDestinationMACAddress((ARP.OP_REQUEST == op)
+				? MACAddress.valueOf("ff:ff:ff:ff:ff:ff").toBytes()
+				: targetMac.toBytes());
+		ether.setPayload(arp);
+		this.transmit(ByteBuffer.wrap(ether.serialize()));
+	}
+
+	public String toString()
+	{
+		return String.format("%s %s", this.node.getName(),
+				IPv4.fromIPv4Address(this.port.getIpAddress()));
+	}
+}
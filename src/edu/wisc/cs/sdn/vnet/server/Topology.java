@@ -0,0 +1,377 @@
+package edu.wisc.cs.sdn.vnet.server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * A virtual network read from a topology file (topos/*.topo), in the format
+ * read by run_mininet.py:
+ * <pre>
+ * host name ip/prefix gateway|-
+ * switch name
+ * router name ip/prefix...
+ * link nameA nameB
+ * </pre>
+ * As with Mininet and POX, a host's only interface is eth0, and the
+ * interfaces of switches and routers are eth1, eth2, ... in the order of the
+ * links they appear in; a router's Nth interface gets its Nth address.
+ * Every interface gets a MAC address made from the numbers of its node and
+ * port.
+ */
+public class Topology
+{
+	public enum Type { HOST, SWITCH, ROUTER }
+
+	/** A host, switch or router */
+	public static class Node
+	{
+		private final String name;
+		private final Type type;
+		private final int number;
+		private final List<Port> ports;
+
+		/** Addresses given for the node's interfaces, as ip/prefix */
+		private final String[] addresses;
+
+		/** Default gateway of a host; 0 if none */
+		private int gateway;
+
+		Node(String name, Type type, int number, String[] addresses)
+		{
+			this.name = name;
+			this.type = type;
+			this.number = number;
+			this.addresses = addresses;
+			this.ports = new ArrayList<Port>();
+		}
+
+		public String getName()
+		{ return this.name; }
+
+		public Type getType()
+		{ return this.type; }
+
+		public List<Port> getPorts()
+		{ return this.ports; }
+
+		/**
+		 * @return default gateway of a host; 0 if none
+		 */
+		public int getGateway()
+		{ return this.gateway; }
+
+		/**
+		 * @param name name of an interface
+		 * @return the interface; null if the node has no such interface
+		 */
+		public Port getPort(String name)
+		{
+			for (Port port : this.ports)
+			{
+				if (port.getName().equals(name))
+				{ return port; }
+			}
+			return null;
+		}
+
+		public String toString()
+		{ return this.name; }
+	}
+
+	/** An interface of a node, and the interface it is linked to */
+	public static class Port
+	{
+		private final Node node;
+		private final String name;
+		private final MACAddress mac;
+		private final int ip;
+		private final int mask;
+		private Port peer;
+
+		Port(Node node, String name, MACAddress mac, int ip, int mask)
+		{
+			this.node = node;
+			this.name = name;
+			this.mac = mac;
+			this.ip = ip;
+			this.mask = mask;
+		}
+
+		public Node getNode()
+		{ return this.node; }
+
+		public String getName()
+		{ return this.name; }
+
+		public MACAddress getMacAddress()
+		{ return this.mac; }
+
+		/**
+		 * @return IP address of the interface; 0 for switch ports
+		 */
+		public int getIpAddress()
+		{ return this.ip; }
+
+		public int getSubnetMask()
+		{ return this.mask; }
+
+		/**
+		 * @return the interface at the other end of the link
+		 */
+		public Port getPeer()
+		{ return this.peer; }
+
+		public String toString()
+		{ return this.node.getName() + "." + this.name; }
+	}
+
+	/** A route a router needs to reach a subnet that is not attached to it */
+	public static class Route
+	{
+		public final int destination;
+		public final int gateway;
+		public final int mask;
+		public final Port port;
+
+		Route(int destination, int gateway, int mask, Port port)
+		{
+			this.destination = destination;
+			this.gateway = gateway;
+			this.mask = mask;
+			this.port = port;
+		}
+	}
+
+	/** Nodes by name, in the order they were declared */
+	private final Map<String,Node> nodes;
+
+	private Topology()
+	{ this.nodes = new LinkedHashMap<String,Node>(); }
+
+	/**
+	 * Read a topology file.
+	 * @param filename name of the file
+	 * @return the topology; null if the file could not be read or is invalid
+	 */
+	public static Topology load(String filename)
+	{
+		Topology topology = new Topology();
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader(filename)))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] parts = line.trim().split("\\s+");
+				if (parts[0].isEmpty() || parts[0].startsWith("#"))
+				{ continue; }
+				if (!topology.parse(parts))
+				{
+					System.err.println("Error in topology configuration line: "
+							+ line);
+					return null;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+		catch (RuntimeException e)
+		{
+			System.err.println("Invalid topology file: " + e);
+			return null;
+		}
+		return topology;
+	}
+
+	private boolean parse(String[] parts)
+	{
+		String kind = parts[0];
+		if (kind.equals("host") && 4 == parts.length
+				&& parts[2].contains("/"))
+		{
+			Node host = this.addNode(parts[1], Type.HOST,
+					new String[] { parts[2] });
+			if (!parts[3].equals("-"))
+			{ host.gateway = IPv4.toIPv4Address(parts[3]); }
+			return true;
+		}
+		else if (kind.equals("switch") && 2 == parts.length)
+		{
+			this.addNode(parts[1], Type.SWITCH, new String[0]);
+			return true;
+		}
+		else if (kind.equals("router") && parts.length >= 3)
+		{
+			String[] addresses = new String[parts.length - 2];
+			System.arraycopy(parts, 2, addresses, 0, addresses.length);
+			this.addNode(parts[1], Type.ROUTER, addresses);
+			return true;
+		}
+		else if (kind.equals("link") && 3 == parts.length)
+		{
+			Node a = this.nodes.get(parts[1]);
+			Node b = this.nodes.get(parts[2]);
+			if (null == a || null == b)
+			{ return false; }
+			Port portA = this.addPort(a);
+			Port portB = this.addPort(b);
+			portA.peer = portB;
+			portB.peer = portA;
+			return true;
+		}
+		return false;
+	}
+
+	private Node addNode(String name, Type type, String[] addresses)
+	{
+		Node node = new Node(name, type, this.nodes.size() + 1, addresses);
+		this.nodes.put(name, node);
+		return node;
+	}
+
+	private Port addPort(Node node)
+	{
+		int index = node.ports.size();
+		int number = (Type.HOST == node.type) ? index : index + 1;
+		MACAddress mac = MACAddress.valueOf(0x020000000000L
+				| ((long)node.number << 8) | number);
+		int ip = 0, mask = 0;
+		if (node.type != Type.SWITCH)
+		{
+			if (index >= node.addresses.length)
+			{
+				throw new IllegalArgumentException(
+						"Too many links for " + node.name);
+			}
+			String[] address = node.addresses[index].split("/");
+			ip = IPv4.toIPv4Address(address[0]);
+			int prefix = (address.length > 1) ? Integer.parseInt(address[1])
+					: 24;
+			mask = (0 == prefix) ? 0 : -1 << (32 - prefix);
+		}
+		Port port = new Port(node, "eth" + number, mac, ip, mask);
+		node.ports.add(port);
+		return port;
+	}
+
+	/**
+	 * @return every node, in the order they were declared
+	 */
+	public Collection<Node> getNodes()
+	{ return this.nodes.values(); }
+
+	/**
+	 * @param name name of a node
+	 * @return the node; null if there is no such node
+	 */
+	public Node getNode(String name)
+	{ return this.nodes.get(name); }
+
+	/**
+	 * @param type a kind of node
+	 * @return the nodes of that kind, in the order they were declared
+	 */
+	public List<Node> getNodes(Type type)
+	{
+		List<Node> nodes = new ArrayList<Node>();
+		for (Node node : this.nodes.values())
+		{
+			if (node.type == type)
+			{ nodes.add(node); }
+		}
+		return nodes;
+	}
+
+	/**
+	 * Find the shortest route from a router to every subnet that is not
+	 * attached to it, counting routers crossed. Routers whose interfaces are
+	 * in the same subnet are taken to be able to reach each other.
+	 * @param router the router
+	 * @return the routes, as a route table file would list them
+	 */
+	public List<Route> getRoutes(Node router)
+	{
+		// Breadth-first search over routers, remembering for each router the
+		// first hop taken from this router to reach it
+		Map<Node,Route> firstHop = new HashMap<Node,Route>();
+		Deque<Node> queue = new ArrayDeque<Node>();
+		firstHop.put(router, null);
+		queue.add(router);
+		Map<Long,Route> routes = new LinkedHashMap<Long,Route>();
+		while (!queue.isEmpty())
+		{
+			Node current = queue.poll();
+			Route hop = firstHop.get(current);
+			for (Port port : current.ports)
+			{
+				int subnet = port.ip & port.mask;
+				long key = ((long)subnet << 32) | (port.mask & 0xffffffffL);
+				if (hop != null && !routes.containsKey(key)
+						&& !this.isAttached(router, subnet, port.mask))
+				{
+					routes.put(key, new Route(subnet, hop.gateway, port.mask,
+							hop.port));
+				}
+
+				for (Node neighbor : this.getRouters())
+				{
+					if (firstHop.containsKey(neighbor))
+					{ continue; }
+					Port neighborPort = findPortInSubnet(neighbor, subnet,
+							port.mask);
+					if (null == neighborPort)
+					{ continue; }
+					firstHop.put(neighbor, (hop != null) ? hop
+							: new Route(0, neighborPort.ip, 0, port));
+					queue.add(neighbor);
+				}
+			}
+		}
+		return new ArrayList<Route>(routes.values());
+	}
+
+	private List<Node> getRouters()
+	{ return this.getNodes(Type.ROUTER); }
+
+	private boolean isAttached(Node router, int subnet, int mask)
+	{ return findPortInSubnet(router, subnet, mask) != null; }
+
+	private static Port findPortInSubnet(Node node, int subnet, int mask)
+	{
+		for (Port port : node.ports)
+		{
+			if (port.mask == mask && (port.ip & port.mask) == subnet)
+			{ return port; }
+		}
+		return null;
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Node node : this.nodes.values())
+		{
+			sb.append(node.type.toString().toLowerCase()).append(' ')
+					.append(node.name).append(':');
+			for (Port port : node.ports)
+			{ sb.append(' ').append(port.name).append("->").append(port.peer); }
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
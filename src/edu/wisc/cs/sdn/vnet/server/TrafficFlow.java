@@ -0,0 +1,261 @@
+package edu.wisc.cs.sdn.vnet.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * A stream of UDP packets from one simulated host to another, sent at a
+ * fixed rate or as fast as the first device accepts them. Each packet
+ * carries the flow's number, a sequence number and the time it was sent,
+ * from which the receiving host's side measures loss, reordering and
+ * one-way latency.
+ */
+class TrafficFlow
+{
+	/** Marks packets that belong to a flow */
+	static final int MAGIC = 0x564e5346;
+
+	/** Size of the flow header at the start of each packet's payload */
+	static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+	/** Offset of the UDP payload in each frame */
+	static final int PAYLOAD_OFFSET = 14 + 20 + 8;
+
+	/** UDP port to which flows are sent */
+	private static final short PORT = 9;
+
+	/** Largest number of packets sent between checks of the clock */
+	private static final int BURST = 32;
+
+	/** Number of latencies kept for computing percentiles */
+	private static final int SAMPLES = 65536;
+
+	private final int id;
+	private final SimHost source;
+	private final SimHost destination;
+
+	/** Packets per second; 0 to send as fast as possible */
+	private final long rate;
+
+	/** Size of each packet's UDP payload */
+	private final int payloadSize;
+
+	private volatile long sent;
+
+	// Updated by the thread that delivers to the destination host
+	private long received;
+	private long reordered;
+	private long lastSequence;
+	private long latencyCount;
+	private long latencyMax;
+	private final long[] latencies;
+
+	private Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * @param id number of the flow
+	 * @param source host that sends the packets
+	 * @param destination host to which the packets are sent
+	 * @param rate packets per second; 0 to send as fast as possible
+	 * @param payloadSize size of each packet's UDP payload
+	 */
+	TrafficFlow(int id, SimHost source, SimHost destination, long rate,
+			int payloadSize)
+	{
+		this.id = id;
+		this.source = source;
+		this.destination = destination;
+		this.rate = rate;
+		this.payloadSize = Math.max(payloadSize, HEADER_SIZE);
+		this.latencies = new long[SAMPLES];
+	}
+
+	/**
+	 * Start sending packets.
+	 * @param duration time for which to send, in milliseconds
+	 */
+	void start(final long duration)
+	{
+		this.running = true;
+		this.thread = new Thread(new Runnable() {
+			public void run()
+			{ send(duration); }
+		}, "Flow " + this);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Wait for the flow to stop sending.
+	 */
+	void join() throws InterruptedException
+	{ this.thread.join(); }
+
+	/**
+	 * Body of the flow's thread: resolve the first hop, then send packets
+	 * until the duration has passed.
+	 */
+	private void send(long duration)
+	{
+		int dstIp = this.destination.getPort().getIpAddress();
+		MACAddress nextHop;
+		try
+		{ nextHop = this.source.resolve(this.source.nextHop(dstIp), 5000); }
+		catch (InterruptedException e)
+		{ return; }
+		if (null == nextHop)
+		{
+			System.err.println("Flow " + this + ": could not resolve next hop");
+			return;
+		}
+
+		ByteBuffer frame = ByteBuffer.wrap(this.createFrame(nextHop));
+		long start = System.nanoTime();
+		long end = start + duration * 1000000L;
+		long sequence = 0;
+		while (this.running)
+		{
+			long now = System.nanoTime();
+			if (now >= end)
+			{ break; }
+			long due = BURST;
+			if (this.rate > 0)
+			{
+				due = Math.min(BURST,
+						(now - start) * this.rate / 1000000000L - sequence);
+				if (due <= 0)
+				{
+					LockSupport.parkNanos(Math.min(1000000000L / this.rate,
+							50000));
+					continue;
+				}
+			}
+			for (int i = 0; i < due; i++)
+			{
+				frame.putLong(PAYLOAD_OFFSET + 8, ++sequence);
+				frame.putLong(PAYLOAD_OFFSET + 16, System.nanoTime());
+				if (!this.source.transmit(frame))
+				{ return; }
+			}
+			this.sent = sequence;
+		}
+		this.sent = sequence;
+	}
+
+	/**
+	 * Stop sending packets.
+	 */
+	void stop()
+	{ this.running = false; }
+
+	private byte[] createFrame(MACAddress nextHop)
+	{
+		ByteBuffer payload = ByteBuffer.allocate(this.payloadSize);
+		payload.putInt(MAGIC);
+		payload.putInt(this.id);
+
+		UDP udp = new UDP();
+		udp.setSourcePort((short)(PORT + this.id + 1));
+		udp.setDestinationPort(PORT);
+		udp.setPayload(new Data(payload.array()));
+		IPv4 ip = new IPv4();
+		ip.setTtl((byte)64);
+		ip.setProtocol(IPv4.PROTOCOL_UDP);
+		ip.setSourceAddress(this.source.getPort().getIpAddress());
+		ip.setDestinationAddress(this.destination.getPort().getIpAddress());
+		ip.setPayload(udp);
+		Ethernet ether = new Ethernet();
+		ether.setEtherType(Ethernet.TYPE_IPv4);
+		ether.setSourceMACAddress(
+				this.source.getPort().getMacAddress().toBytes());
+		ether.setDestinationMACAddress(nextHop.toBytes());
+		ether.setPayload(ip);
+		byte[] frame = ether.serialize();
+
+		// The payload changes with every packet, so send without a UDP
+		// checksum
+		ByteBuffer.wrap(frame).putShort(PAYLOAD_OFFSET - 2, (short)0);
+		return frame;
+	}
+
+	/**
+	 * Account for a packet of this flow that reached the destination.
+	 * Called by the thread that delivers frames to the destination host.
+	 * @param frame buffer whose remaining bytes are the frame
+	 */
+	synchronized void received(ByteBuffer frame)
+	{
+		long now = System.nanoTime();
+		int start = frame.position();
+		long sequence = frame.getLong(start + PAYLOAD_OFFSET + 8);
+		long latency = now - frame.getLong(start + PAYLOAD_OFFSET + 16);
+		this.received++;
+		if (sequence < this.lastSequence)
+		{ this.reordered++; }
+		this.lastSequence = Math.max(sequence, this.lastSequence);
+
+		// Keep a uniform sample of the latencies
+		if (this.latencyCount < SAMPLES)
+		{ this.latencies[(int)this.latencyCount] = latency; }
+		else
+		{
+			long slot = ThreadLocalRandom.current().nextLong(
+					this.latencyCount + 1);
+			if (slot < SAMPLES)
+			{ this.latencies[(int)slot] = latency; }
+		}
+		this.latencyCount++;
+		this.latencyMax = Math.max(this.latencyMax, latency);
+	}
+
+	/**
+	 * @return number of packets of the flow that reached the destination
+	 */
+	synchronized long getReceived()
+	{ return this.received; }
+
+	/**
+	 * @return a line reporting what the flow sent and received
+	 * @param seconds time for which the flow sent
+	 */
+	synchronized String report(double seconds)
+	{
+		long sent = this.sent;
+		int count = (int)Math.min(this.latencyCount, SAMPLES);
+		long[] sorted = Arrays.copyOf(this.latencies, count);
+		Arrays.sort(sorted);
+		double loss = (sent > 0) ? 100.0 * (sent - this.received) / sent : 0;
+		int frameSize = PAYLOAD_OFFSET + this.payloadSize;
+		return String.format("%-12s sent %d, received %d (%.2f%% lost, "
+				+ "%d reordered), %.0f pkt/s, %.1f Mbit/s, latency us "
+				+ "p50 %.1f p90 %.1f p99 %.1f max %.1f",
+				this.toString(), sent, this.received, loss, this.reordered,
+				this.received / seconds,
+				this.received * frameSize * 8 / seconds / 1e6,
+				percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.90) / 1e3,
+				percentile(sorted, 0.99) / 1e3, this.latencyMax / 1e3);
+	}
+
+	private static double percentile(long[] sorted, double fraction)
+	{
+		if (0 == sorted.length)
+		{ return 0; }
+		return sorted[(int)Math.min(sorted.length - 1,
+				Math.floor(fraction * sorted.length))];
+	}
+
+	public String toString()
+	{
+		return this.source.getNode().getName() + "->"
+				+ this.destination.getNode().getName();
+	}
+}
@@ -0,0 +1,504 @@
+package edu.wisc.cs.sdn.vnet.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.packet.IPv4;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.server.Topology.Node;
+import edu.wisc.cs.sdn.vnet.server.Topology.Port;
+import edu.wisc.cs.sdn.vnet.server.Topology.Route;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+import edu.wisc.cs.sdn.vnet.vns.BufferPool;
+import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.EventLoop;
+import edu.wisc.cs.sdn.vnet.vns.TcpTransport;
+import edu.wisc.cs.sdn.vnet.vns.Transport;
+import edu.wisc.cs.sdn.vnet.vns.UnixTransport;
+import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+
+/**
+ * A stand-in for the VNS server that POX and Mininet provide, for load
+ * testing devices on any machine. It builds the network from a topology
+ * file, gives each switch and router that connects the interfaces the
+ * topology assigns it, and carries frames between the devices as the
+ * topology's links do. Hosts are simulated by the server: they answer ARP,
+ * and can exchange UDP flows at a given rate, for which the server reports
+ * throughput, loss and latency.
+ * <p>
+ * The devices may connect from other processes (e.g., Main or MultiMain),
+ * or be run in the server's process, with static routes computed from the
+ * topology.
+ */
+public class VNSServer
+{
+	private static final short DEFAULT_PORT = 8888;
+	private static final int DEFAULT_SECONDS = 5;
+	private static final int DEFAULT_WARMUP = 1;
+	private static final int DEFAULT_PAYLOAD = 64;
+
+	/** Time between checks for packets still in flight, in milliseconds */
+	private static final long DRAIN_INTERVAL = 200;
+
+	/** Largest number of checks for packets still in flight */
+	private static final int DRAIN_CHECKS = 25;
+
+	/** Size of each in-process device's receive and send buffer */
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final Topology topology;
+
+	/** Connections of the devices with open sessions, by device */
+	private final Map<Node,DeviceConnection> connections;
+
+	/** Simulated hosts, by node */
+	private final Map<Node,SimHost> hosts;
+
+	/** Flows, by number */
+	private final List<TrafficFlow> flows;
+
+	/** Number of devices in the topology */
+	private final int deviceCount;
+
+	public VNSServer(Topology topology)
+	{
+		this.topology = topology;
+		this.connections = new ConcurrentHashMap<Node,DeviceConnection>();
+		this.hosts = new HashMap<Node,SimHost>();
+		for (Node node : topology.getNodes(Topology.Type.HOST))
+		{ this.hosts.put(node, new SimHost(this, node)); }
+		this.flows = new ArrayList<TrafficFlow>();
+		this.deviceCount = topology.getNodes().size() - this.hosts.size();
+	}
+
+	public Topology getTopology()
+	{ return this.topology; }
+
+	/**
+	 * Accept connections from devices.
+	 * @param channel a bound server channel
+	 */
+	public void listen(final ServerSocketChannel channel)
+	{
+		Thread acceptor = new Thread(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					while (true)
+					{
+						SocketChannel client = channel.accept();
+						new DeviceConnection(VNSServer.this, client).start();
+					}
+				}
+				catch (IOException e)
+				{ }
+			}
+		}, "VNS server acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Called once a device's session is open.
+	 */
+	void connected(DeviceConnection connection)
+	{
+		this.connections.put(connection.getNode(), connection);
+		synchronized (this)
+		{ this.notifyAll(); }
+	}
+
+	/**
+	 * Called once a device's connection is closed.
+	 */
+	void disconnected(DeviceConnection connection)
+	{
+		Node node = connection.getNode();
+		if (node != null)
+		{ this.connections.remove(node, connection); }
+	}
+
+	/**
+	 * @return whether a device has an open session
+	 */
+	boolean isConnected(Node node)
+	{ return this.connections.containsKey(node); }
+
+	/**
+	 * Wait for every device in the topology to open its session.
+	 * @param timeout longest time to wait, in milliseconds
+	 * @return true if every device did
+	 */
+	public synchronized boolean awaitDevices(long timeout)
+			throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+		long now;
+		while (this.connections.size() < this.deviceCount
+				&& (now = System.currentTimeMillis()) < end)
+		{ this.wait(end - now); }
+		return (this.connections.size() >= this.deviceCount);
+	}
+
+	/**
+	 * Carry a frame sent on an interface over its link.
+	 * @param port interface on which the frame was sent
+	 * @param frame buffer whose remaining bytes are the frame; it may be
+	 *        reused once this returns
+	 */
+	void relay(Port port, ByteBuffer frame)
+	{
+		Port peer = port.getPeer();
+		if (peer != null)
+		{ this.deliver(peer, frame); }
+	}
+
+	/**
+	 * Deliver a frame to an interface.
+	 * @param port interface at which the frame arrives
+	 * @param frame buffer whose remaining bytes are the frame; its position
+	 *        is left unchanged
+	 * @return false if the frame was dropped
+	 */
+	boolean deliver(Port port, ByteBuffer frame)
+	{
+		Node node = port.getNode();
+		if (Topology.Type.HOST == node.getType())
+		{
+			this.hosts.get(node).receive(frame);
+			return true;
+		}
+		DeviceConnection connection = this.connections.get(node);
+		if (null == connection)
+		{ return false; }
+		return connection.send(port, frame);
+	}
+
+	/**
+	 * Handle an IPv4 packet that reached a host.
+	 * @param host the host
+	 * @param frame buffer whose remaining bytes are the frame
+	 */
+	void hostReceived(SimHost host, ByteBuffer frame)
+	{
+		int start = frame.position();
+		if (frame.remaining() < TrafficFlow.PAYLOAD_OFFSET
+				+ TrafficFlow.HEADER_SIZE
+				|| frame.get(start + 14 + 9) != IPv4.PROTOCOL_UDP
+				|| frame.getInt(start + 14 + 16)
+						!= host.getPort().getIpAddress()
+				|| frame.getInt(start + TrafficFlow.PAYLOAD_OFFSET)
+						!= TrafficFlow.MAGIC)
+		{ return; }
+		int id = frame.getInt(start + TrafficFlow.PAYLOAD_OFFSET + 4);
+		if (id >= 0 && id < this.flows.size())
+		{ this.flows.get(id).received(frame); }
+	}
+
+	/**
+	 * Add a flow between two hosts.
+	 * @return false if either host is not in the topology
+	 */
+	public boolean addFlow(String source, String destination, long rate,
+			int payloadSize)
+	{
+		SimHost src = this.hosts.get(this.topology.getNode(source));
+		SimHost dst = this.hosts.get(this.topology.getNode(destination));
+		if (null == src || null == dst)
+		{ return false; }
+		this.flows.add(new TrafficFlow(this.flows.size(), src, dst, rate,
+				payloadSize));
+		return true;
+	}
+
+	/**
+	 * Send every flow's packets for a time, then report on each flow.
+	 * @param seconds time for which to send
+	 * @param out stream on which to report
+	 */
+	public void runFlows(int seconds, PrintStream out)
+			throws InterruptedException
+	{
+		for (TrafficFlow flow : this.flows)
+		{ flow.start(seconds * 1000L); }
+		for (TrafficFlow flow : this.flows)
+		{ flow.join(); }
+
+		// Let packets still in flight arrive, until none have for a while
+		long received = -1;
+		for (int i = 0; i < DRAIN_CHECKS; i++)
+		{
+			Thread.sleep(DRAIN_INTERVAL);
+			long total = 0;
+			for (TrafficFlow flow : this.flows)
+			{ total += flow.getReceived(); }
+			if (total == received)
+			{ break; }
+			received = total;
+		}
+		for (TrafficFlow flow : this.flows)
+		{ out.println(flow.report(seconds)); }
+	}
+
+	/**
+	 * Close every device's session.
+	 */
+	public void closeAll()
+	{
+		for (DeviceConnection connection : this.connections.values())
+		{ connection.close(); }
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("VNS server connections:");
+		for (DeviceConnection connection : this.connections.values())
+		{ sb.append("\n  ").append(connection); }
+		return sb.toString();
+	}
+
+	/**
+	 * Give a router a route to each subnet it is attached to, and the
+	 * shortest route through the topology to every other subnet.
+	 * @param router the router, with the interfaces of its node
+	 * @param topology the topology
+	 * @param node the router's node in the topology
+	 */
+	public static void addRoutes(Router router, Topology topology, Node node)
+	{
+		for (Port port : node.getPorts())
+		{
+			Iface iface = router.getInterface(port.getName());
+			router.getRouteTable().insert(
+					port.getIpAddress() & port.getSubnetMask(), 0,
+					port.getSubnetMask(), iface, 0);
+		}
+		for (Route route : topology.getRoutes(node))
+		{
+			router.getRouteTable().insert(route.destination,
+					route.gateway, route.mask,
+					router.getInterface(route.port.getName()), 1);
+		}
+	}
+
+	/**
+	 * Run the topology's switches and routers in this process, served by
+	 * one event loop, with static routes computed from the topology.
+	 * @return the devices; null if a device failed to connect
+	 */
+	private static List<Device> startDevices(Topology topology,
+			Transport transport, boolean fastPath, boolean flatTable)
+			throws IOException
+	{
+		EventLoop loop = new EventLoop("Event loop",
+				new BufferPool(BUFFER_SIZE, 16));
+		List<Device> devices = new ArrayList<Device>();
+		for (Node node : topology.getNodes())
+		{
+			Device dev;
+			if (Topology.Type.SWITCH == node.getType())
+			{
+				dev = new Switch(node.getName(), null);
+				if (fastPath)
+				{ ((Switch)dev).enableFastPath(); }
+			}
+			else if (Topology.Type.ROUTER == node.getType())
+			{
+				dev = new Router(node.getName(), null);
+				if (flatTable)
+				{ ((Router)dev).useFlatForwardingTable(); }
+				if (fastPath)
+				{ ((Router)dev).enableFastPath(); }
+			}
+			else
+			{ continue; }
+
+			VNSComm vnsComm = new VNSComm(dev, loop);
+			if (!vnsComm.connectToServer(transport)
+					|| !vnsComm.readFromServerExpect(Command.VNS_HW_INFO))
+			{ return null; }
+
+			if (dev instanceof Router)
+			{ addRoutes((Router)dev, topology, node); }
+			loop.register(vnsComm);
+			devices.add(dev);
+		}
+		loop.start();
+		return devices;
+	}
+
+	public static void main(String[] args)
+	{
+		String topoFile = null;
+		short port = DEFAULT_PORT;
+		String socketPath = null;
+		boolean inProcess = false;
+		boolean fastPath = false;
+		boolean flatTable = false;
+		boolean quiet = false;
+		List<String> flowSpecs = new ArrayList<String>();
+		long rate = 0;
+		int seconds = DEFAULT_SECONDS;
+		int warmup = DEFAULT_WARMUP;
+		int payloadSize = DEFAULT_PAYLOAD;
+
+		// Parse arguments
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-t"))
+			{ topoFile = args[++i]; }
+			else if (arg.equals("-p"))
+			{ port = Short.parseShort(args[++i]); }
+			else if (arg.equals("-u"))
+			{ socketPath = args[++i]; }
+			else if (arg.equals("-i"))
+			{ inProcess = true; }
+			else if (arg.equals("-f"))
+			{ fastPath = true; }
+			else if (arg.equals("-d"))
+			{ flatTable = true; }
+			else if (arg.equals("-q"))
+			{ quiet = true; }
+			else if (arg.equals("-g"))
+			{ flowSpecs.add(args[++i]); }
+			else if (arg.equals("-r"))
+			{ rate = Long.parseLong(args[++i]); }
+			else if (arg.equals("-s"))
+			{ seconds = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{ warmup = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-z"))
+			{ payloadSize = Integer.parseInt(args[++i]); }
+			else
+			{
+				usage();
+				return;
+			}
+		}
+
+		if (null == topoFile)
+		{
+			usage();
+			return;
+		}
+
+		Topology topology = Topology.load(topoFile);
+		if (null == topology)
+		{ System.exit(1); }
+		VNSServer server = new VNSServer(topology);
+		for (String spec : flowSpecs)
+		{
+			String[] hosts = spec.split(":");
+			if (hosts.length != 2
+					|| !server.addFlow(hosts[0], hosts[1], rate, payloadSize))
+			{
+				System.err.println("Invalid flow " + spec);
+				System.exit(1);
+			}
+		}
+
+		// Devices log every packet they handle; discard their output
+		PrintStream out = System.out;
+		if (quiet)
+		{ System.setOut(new PrintStream(OutputStream.nullOutputStream())); }
+
+		try
+		{
+			// Listen for devices
+			ServerSocketChannel channel;
+			Transport transport;
+			if (socketPath != null)
+			{
+				Files.deleteIfExists(Paths.get(socketPath));
+				channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+				channel.bind(UnixDomainSocketAddress.of(socketPath));
+				transport = new UnixTransport(socketPath);
+			}
+			else
+			{
+				channel = ServerSocketChannel.open();
+				channel.bind(new InetSocketAddress("127.0.0.1", port));
+				transport = new TcpTransport("127.0.0.1", port);
+			}
+			server.listen(channel);
+			out.println(String.format("Serving %d devices on %s",
+					server.deviceCount, transport));
+
+			List<Device> devices = null;
+			if (inProcess)
+			{
+				devices = startDevices(topology, transport, fastPath,
+						flatTable);
+				if (null == devices)
+				{ System.exit(1); }
+			}
+
+			if (!flowSpecs.isEmpty())
+			{
+				if (!server.awaitDevices(60000))
+				{
+					out.println("Not every device connected");
+					System.exit(1);
+				}
+				Thread.sleep(warmup * 1000L);
+				server.runFlows(seconds, out);
+				out.println(server);
+				server.closeAll();
+				channel.close();
+			}
+			else
+			{
+				// Serve until killed
+				while (true)
+				{ Thread.sleep(Long.MAX_VALUE); }
+			}
+
+			if (devices != null)
+			{
+				for (Device dev : devices)
+				{ dev.destroy(); }
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	static void usage()
+	{
+		System.out.println("VNS server stand-in");
+		System.out.println("VNSServer -t topo_file [-p port] [-u socket_path] [-i] [-f] [-d] [-q]");
+		System.out.println("     [-g src_host:dst_host]... [-r rate] [-s seconds] [-w warmup] [-z payload]");
+		System.out.println("     [-i]  run the topology's switches and routers in this process");
+		System.out.println("     [-f]  forward from raw frames in place (with -i)");
+		System.out.println("     [-d]  use DIR-24-8 flat forwarding table (routers, with -i; 64 MB of heap each)");
+		System.out.println("     [-q]  discard what the devices print");
+		System.out.println("     [-g src_host:dst_host]  send a UDP flow, once every device has connected");
+		System.out.println("     [-r rate]  packets per second in each flow; 0 for as fast as possible");
+		System.out.println(String.format("  defaults port=%d seconds=%d warmup=%d payload=%d",
+				DEFAULT_PORT, DEFAULT_SECONDS, DEFAULT_WARMUP, DEFAULT_PAYLOAD));
+	}
+}
@@ -4,6 +4,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.SharedTimer;
 
 import net.floodlightcontroller.packet.MACAddress;
 
@@ -16,11 +17,11 @@ public class MACTable implements Runnable
 	/** Timeout (in milliseconds) for entries in the MAC table */
 	public static final int TIMEOUT = 15 * 1000;
 	
-	/** Entries in the MAC table */
-	private Map<MACAddress,MACTableEntry> entries;
+	/** Entries in the MAC table, keyed by MAC address as a long */
+	private Map<Long,MACTableEntry> entries;
 	
-	/** Thread for timing out requests and entries in the cache */
-	private Thread timeoutThread;
+	/** Task on the shared timer for timing out entries in the table */
+	private SharedTimer.Timeout timeoutTask;
 
 	/**
 	 * Initializes an empty MAC learning table for a switch.
@@ -28,50 +29,50 @@ public class MACTable implements Runnable
 	 */
 	public MACTable()
 	{
-		this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
-		timeoutThread = new Thread(this);
-		timeoutThread.start();
+		this.entries = new ConcurrentHashMap<Long, MACTableEntry>();
+		timeoutTask = SharedTimer.scheduleAtFixedRate(this, 1000, 1000);
 	}
 	
 	public void insert(MACAddress macAddress, Iface iface)
+	{ this.insert(macAddress.toLong(), iface); }
+	
+	/**
+	 * @param macAddress MAC address in the low order bytes of a long
+	 * @param iface switch interface on which the MAC address was seen
+	 */
+	public void insert(long macAddress, Iface iface)
 	{
 		MACTableEntry entry = this.lookup(macAddress);
 		if(entry != null)
 		{ entry.update(iface); }
 		else
 		{ 
-			entry = new MACTableEntry(macAddress, iface);
+			entry = new MACTableEntry(MACAddress.valueOf(macAddress), iface);
 			this.entries.put(macAddress, entry); 
 		}
 	}
 	
 	public MACTableEntry lookup(MACAddress macAddress) 
-	{
-		if (this.entries.containsKey(macAddress))
-		{ return this.entries.get(macAddress); }
-		return null;
-	}
+	{ return this.lookup(macAddress.toLong()); }
+	
+	/**
+	 * @param macAddress MAC address in the low order bytes of a long
+	 * @return the entry for the MAC address; null if none exists
+	 */
+	public MACTableEntry lookup(long macAddress) 
+	{ return this.entries.get(macAddress); }
 	
 	/**
 	 * Every second: timeout MAC table entries.
 	 */
 	public void run()
 	{
-		while (true)
+		// Timeout entries
+		for (MACTableEntry entry : this.entries.values())
 		{
-			// Run every second
-			try 
-			{ Thread.sleep(1000); }
-			catch (InterruptedException e) 
-			{ break; }
-			
-			// Timeout entries
-			for (MACTableEntry entry : this.entries.values())
-			{
-				if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getMACAddress()); }
-			}
+			if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
+					> TIMEOUT)
+			{ this.entries.remove(entry.getMACAddress().toLong()); }
 		}
 	}
 }
@@ -1,6 +1,9 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
+import java.nio.ByteBuffer;
+
 import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
@@ -12,6 +15,12 @@ public class Switch extends Device
 {
 	private MACTable macTable;
 	
+	/** Whether frames are switched from the raw received bytes */
+	private boolean fastPathEnabled;
+	
+	/** Reusable view for parsing raw frames on the fast path */
+	private EthernetView etherView;
+	
 	/**
 	 * Creates a router for a specific host.
 	 * @param host hostname for the router
@@ -20,6 +29,48 @@ public class Switch extends Device
 	{
 		super(host,logfile);
 		this.macTable = new MACTable();
+		this.fastPathEnabled = false;
+		this.etherView = new EthernetView();
+	}
+	
+	/**
+	 * Switch frames using only their raw bytes, without building packet
+	 * objects.
+	 */
+	public void enableFastPath()
+	{ this.fastPathEnabled = true; }
+	
+	/**
+	 * Learn the source and forward or flood a raw frame, sending the received
+	 * buffer itself.
+	 * @param frame buffer whose remaining bytes are the received frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, otherwise false
+	 */
+	public boolean handleRawPacket(ByteBuffer frame, Iface inIface)
+	{
+		if (!this.fastPathEnabled)
+		{ return false; }
+		
+		EthernetView ether = this.etherView;
+		ether.wrap(frame);
+		if (ether.getViewLength() < 14)
+		{ return false; }
+		
+		this.macTable.insert(ether.getSourceMAC(), inIface);
+		
+		MACTableEntry entry = this.macTable.lookup(ether.getDestinationMAC());
+		if (entry != null)
+		{ this.sendRawPacket(frame, entry.getInterface()); }
+		else
+		{
+			for (Iface iface : this.interfaces.values()) 
+			{
+				if (iface != inIface)
+				{ this.sendRawPacket(frame, iface); }
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -0,0 +1,96 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of equally sized direct buffers shared by many connections. Buffers
+ * are cut from large direct slabs, so the per-buffer cost of allocating
+ * direct memory is paid once per slab, and buffers returned by closed
+ * connections are reused by new ones.
+ */
+public class BufferPool
+{
+	/** Size of each buffer */
+	private final int bufferSize;
+
+	/** Number of buffers cut from each slab */
+	private final int buffersPerSlab;
+
+	/** Buffers that are not in use */
+	private final Deque<ByteBuffer> free;
+
+	/** Number of buffers cut from slabs so far */
+	private int allocated;
+
+	/**
+	 * Create an empty pool.
+	 * @param bufferSize size of each buffer
+	 * @param buffersPerSlab number of buffers to allocate at a time
+	 */
+	public BufferPool(int bufferSize, int buffersPerSlab)
+	{
+		this.bufferSize = bufferSize;
+		this.buffersPerSlab = Math.max(buffersPerSlab, 1);
+		this.free = new ArrayDeque<ByteBuffer>();
+		this.allocated = 0;
+	}
+
+	/**
+	 * @return size of each buffer
+	 */
+	public int getBufferSize()
+	{ return this.bufferSize; }
+
+	/**
+	 * Take a buffer from the pool, allocating a new slab if none are free.
+	 * @return a cleared buffer
+	 */
+	public synchronized ByteBuffer acquire()
+	{
+		if (this.free.isEmpty())
+		{
+			ByteBuffer slab = ByteBuffer.allocateDirect(
+					this.bufferSize * this.buffersPerSlab);
+			for (int i = 0; i < this.buffersPerSlab; i++)
+			{
+				this.free.add(slab.slice(i * this.bufferSize,
+						this.bufferSize));
+			}
+			this.allocated += this.buffersPerSlab;
+		}
+		ByteBuffer buffer = this.free.poll();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool. The buffer must not be used afterwards.
+	 * @param buffer a buffer taken from this pool
+	 */
+	public synchronized void release(ByteBuffer buffer)
+	{
+		if (buffer.capacity() != this.bufferSize || !buffer.isDirect())
+		{ throw new IllegalArgumentException("Buffer is not from this pool"); }
+		this.free.push(buffer);
+	}
+
+	/**
+	 * @return number of buffers cut from slabs so far
+	 */
+	public synchronized int getAllocated()
+	{ return this.allocated; }
+
+	/**
+	 * @return number of buffers in use
+	 */
+	public synchronized int getInUse()
+	{ return this.allocated - this.free.size(); }
+
+	public String toString()
+	{
+		return String.format("Buffer pool: %d of %d %dKB buffers in use",
+				this.getInUse(), this.getAllocated(), this.bufferSize / 1024);
+	}
+}
@@ -12,6 +12,20 @@ public class CommandHwEntry
 	protected int mKey;
 	protected byte [] value;
 	
+	public CommandHwEntry()
+	{ }
+	
+	/**
+	 * @param key the kind of entry
+	 * @param value the entry's value, at most 32 bytes
+	 */
+	public CommandHwEntry(int key, byte[] value)
+	{
+		this.mKey = key;
+		this.value = new byte[32];
+		System.arraycopy(value, 0, this.value, 0, Math.min(value.length, 32));
+	}
+	
 	protected CommandHwEntry deserialize(ByteBuffer buf)
 	{
 		this.mKey = buf.getInt();
@@ -21,4 +35,13 @@ public class CommandHwEntry
 		
 		return this;
 	}
+	
+	protected void serializeInto(ByteBuffer buf)
+	{
+		buf.putInt(this.mKey);
+		buf.put(this.value);
+	}
+	
+	protected int getSize()
+	{ return 4 + 32; }
 }
@@ -13,6 +13,16 @@ public class CommandHwInfo extends Command
 	public CommandHwInfo()
 	{ super(Command.VNS_HW_INFO); }
 	
+	/**
+	 * @param hwInfo entries describing the device's interfaces
+	 */
+	public CommandHwInfo(List<CommandHwEntry> hwInfo)
+	{
+		this();
+		this.mHwInfo = hwInfo;
+		this.mLen = this.getSize();
+	}
+	
 	protected CommandHwInfo deserialize(ByteBuffer buf)
 	{
 		super.deserialize(buf);
@@ -27,4 +37,25 @@ public class CommandHwInfo extends Command
 						
 		return this;
 	}
+	
+	public byte[] serialize()
+	{
+		byte[] data = new byte[this.getSize()];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.put(super.serialize());
+		for (CommandHwEntry hwEntry : this.mHwInfo)
+		{ hwEntry.serializeInto(bb); }
+		return data;
+	}
+	
+	protected int getSize()
+	{
+		int size = super.getSize();
+		if (this.mHwInfo != null)
+		{
+			for (CommandHwEntry hwEntry : this.mHwInfo)
+			{ size += hwEntry.getSize(); }
+		}
+		return size;
+	}
 }
@@ -12,7 +12,7 @@ public class CommandOpen extends Command
 		this.mLen = this.getSize();
 	}
 	
-	protected CommandOpen deserialize(ByteBuffer buf)
+	public CommandOpen deserialize(ByteBuffer buf)
 	{
 		super.deserialize(buf);
 		byte[] tmpBytes = new byte[Command.ID_SIZE];
@@ -37,6 +37,12 @@ public class CommandOpen extends Command
         return data;
 	}
 	
+	/**
+	 * @return name of the device opening the session
+	 */
+	public String getVirtualHostId()
+	{ return this.mVirtualHostId.trim(); }
+	
 	protected int getSize()
 	{ return super.getSize() + Command.ID_SIZE; }
 }
@@ -6,6 +6,12 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Size of the interface name field */
+	public static final int IFACE_NAME_SIZE = 16;
+	
+	/** Size of the command header that precedes the Ethernet frame */
+	public static final int HEADER_SIZE = 4 + 4 + IFACE_NAME_SIZE;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -28,26 +34,67 @@ public class CommandPacket extends Command
 	}
 	
 	protected int getSize()
-	{ return super.getSize() + 16; }
+	{ return super.getSize() + IFACE_NAME_SIZE; }
+	
+	/**
+	 * Write a command header for an Ethernet frame that directly follows the
+	 * header in the same buffer; the buffer's position is not changed.
+	 * @param bb buffer in which to write the header
+	 * @param offset absolute position of the header in the buffer
+	 * @param ifaceName name of the interface, at most 16 bytes
+	 * @param frameLength length of the Ethernet frame
+	 */
+	public static void writeHeader(ByteBuffer bb, int offset, 
+			byte[] ifaceName, int frameLength)
+	{
+		bb.putInt(offset, HEADER_SIZE + frameLength);
+		bb.putInt(offset + 4, Command.VNS_PACKET);
+		int nameLength = Math.min(ifaceName.length, IFACE_NAME_SIZE);
+		for (int i = 0; i < IFACE_NAME_SIZE; i++)
+		{ bb.put(offset + 8 + i, (i < nameLength) ? ifaceName[i] : 0); }
+	}
+	
+	/**
+	 * Write a command header for an Ethernet frame at a buffer's current
+	 * position, advancing the position to where the frame belongs.
+	 * @param bb buffer in which to write the header
+	 * @param ifaceName name of the interface, at most 16 bytes
+	 * @param frameLength length of the Ethernet frame
+	 */
+	public static void writeHeader(ByteBuffer bb, byte[] ifaceName,
+			int frameLength)
+	{
+		bb.putInt(HEADER_SIZE + frameLength);
+		bb.putInt(Command.VNS_PACKET);
+		int nameLength = Math.min(ifaceName.length, IFACE_NAME_SIZE);
+		bb.put(ifaceName, 0, nameLength);
+		for (int i = nameLength; i < IFACE_NAME_SIZE; i++)
+		{ bb.put((byte)0); }
+	}
 	
 	protected byte[] serialize()
 	{
-		byte[] packet = this.etherPacket.serialize();
-		int size = this.getSize() + packet.length;
-		this.mLen = size;
-		
-		byte[] data = new byte[size];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        
-        byte[] parentData = super.serialize();
-        
-        bb.put(parentData);
-        byte[] tmp = new byte[16];
-        System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
-                this.mInterfaceName.length());
-        bb.put(tmp);
-        bb.put(packet);
-        
-        return data;
+		byte[] data = new byte[this.getSerializedLength()];
+		this.serializeInto(ByteBuffer.wrap(data));
+		return data;
+	}
+	
+	/**
+	 * @return number of bytes in the serialized command, including the frame
+	 */
+	protected int getSerializedLength()
+	{ return this.getSize() + this.etherPacket.getSerializedLength(); }
+	
+	/**
+	 * Write the command header followed by the Ethernet frame at a buffer's
+	 * current position; the frame is serialized directly into the buffer.
+	 * @param bb buffer in which to write the command
+	 */
+	protected void serializeInto(ByteBuffer bb)
+	{
+		int frameLength = this.etherPacket.getSerializedLength();
+		this.mLen = this.getSize() + frameLength;
+		writeHeader(bb, this.mInterfaceName.getBytes(), frameLength);
+		this.etherPacket.serializeInto(bb);
 	}
 }
@@ -0,0 +1,173 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves many connections to the server from one thread and one selector.
+ * Whenever a connection has bytes to read, the loop reads them and hands
+ * every complete command to the connection's device. The loop also writes
+ * commands that devices sent from other threads (e.g., timers) once they
+ * have waited for their connection's flush deadline, so connections served
+ * by a loop need no flusher thread of their own. Commands a connection
+ * cannot write without waiting are left to the loop, which writes them once
+ * the connection is writable again.
+ * <p>
+ * The loop ends once every connection registered with it has closed.
+ */
+public class EventLoop
+{
+	private final Selector selector;
+	private final Thread thread;
+
+	/** Connections served by the loop; only used by the loop's thread */
+	private final List<VNSComm> connections;
+
+	/** Connections waiting to be registered with the selector */
+	private final Queue<VNSComm> registrations;
+
+	/** Buffers used by the connections served by the loop */
+	private final BufferPool bufferPool;
+
+	/**
+	 * Create an event loop.
+	 * @param name name of the loop's thread
+	 * @param bufferPool pool from which connections served by the loop take
+	 *        their receive and send buffers
+	 */
+	public EventLoop(String name, BufferPool bufferPool) throws IOException
+	{
+		this.selector = Selector.open();
+		this.connections = new ArrayList<VNSComm>();
+		this.registrations = new ConcurrentLinkedQueue<VNSComm>();
+		this.bufferPool = bufferPool;
+		this.thread = new Thread(new Runnable() {
+			public void run()
+			{ loop(); }
+		}, name);
+	}
+
+	/**
+	 * @return pool from which connections served by the loop take their
+	 *         buffers
+	 */
+	public BufferPool getBufferPool()
+	{ return this.bufferPool; }
+
+	/**
+	 * Hand a connection to the loop. The connection must have been created
+	 * for this loop and be connected to the server; from now on only the
+	 * loop reads from it.
+	 * @param vnsComm the connection
+	 */
+	public void register(VNSComm vnsComm)
+	{
+		this.registrations.add(vnsComm);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Start serving registered connections.
+	 */
+	public void start()
+	{ this.thread.start(); }
+
+	/**
+	 * Wait for the loop to end.
+	 */
+	public void join() throws InterruptedException
+	{ this.thread.join(); }
+
+	/**
+	 * Make the loop recheck its connections' flush deadlines.
+	 */
+	void wakeup()
+	{ this.selector.wakeup(); }
+
+	private void loop()
+	{
+		try
+		{
+			while (this.registerPending() || !this.connections.isEmpty())
+			{
+				// Wait until a connection is readable or the next flush is due
+				long wait = this.flushDue();
+				if (Long.MAX_VALUE == wait)
+				{ this.selector.select(); }
+				else
+				{
+					this.selector.select(Math.max(1,
+							TimeUnit.NANOSECONDS.toMillis(wait)));
+				}
+
+				Iterator<SelectionKey> keys =
+						this.selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					VNSComm vnsComm = (VNSComm)key.attachment();
+					boolean open = key.isValid();
+					if (open && key.isWritable())
+					{ open = vnsComm.writeAvailable(); }
+					if (open && key.isReadable())
+					{ open = vnsComm.readAvailable(); }
+					if (!open)
+					{
+						key.cancel();
+						this.connections.remove(vnsComm);
+						vnsComm.close();
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{ e.printStackTrace(); }
+		finally
+		{
+			try { this.selector.close(); } catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * Register connections handed to the loop since it last checked.
+	 * @return true if any were registered
+	 */
+	private boolean registerPending() throws IOException
+	{
+		boolean registered = false;
+		VNSComm vnsComm;
+		while ((vnsComm = this.registrations.poll()) != null)
+		{
+			vnsComm.registerWith(this.selector);
+			this.connections.add(vnsComm);
+			registered = true;
+		}
+		return registered;
+	}
+
+	/**
+	 * Write the buffered commands of connections whose flush deadline has
+	 * passed.
+	 * @return nanoseconds until the next flush deadline; Long.MAX_VALUE if
+	 *         no connection has buffered commands
+	 */
+	private long flushDue()
+	{
+		long now = System.nanoTime();
+		long wait = Long.MAX_VALUE;
+		for (VNSComm vnsComm : this.connections)
+		{ wait = Math.min(wait, vnsComm.flushIfDue(now)); }
+		return wait;
+	}
+
+	public String toString()
+	{ return String.format("Event loop %s", this.thread.getName()); }
+}
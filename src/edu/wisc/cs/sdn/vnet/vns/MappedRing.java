@@ -0,0 +1,294 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Single-producer, single-consumer ring of variable-length frames in a
+ * memory-mapped file, through which two threads exchange frames whether or
+ * not they are in the same process. As in {@link SpscRing}, each side only
+ * advances its own index and publishes it with an ordered store, so neither
+ * side locks or makes a system call per frame.
+ * <p>
+ * The file starts with a header holding the ring's size and the two indexes,
+ * each on its own cache line, followed by the records. Each record is the
+ * frame's length followed by the frame, starting {@link #RECORD_HEADER}
+ * bytes in; the bytes in between belong to the record, so a command header
+ * may be written in front of the frame without copying it. Records never
+ * wrap around the end of the ring: a record that does not fit before the
+ * end is preceded by a marker that makes the consumer skip to the start.
+ */
+public class MappedRing
+{
+	/** Identifies an initialized ring file */
+	private static final int MAGIC = 0x564e4552;
+
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 4;
+
+	/** Offset of the index of the next byte to be released by the consumer */
+	private static final int HEAD_OFFSET = 64;
+
+	/** Offset of the index of the next byte to be published by the producer */
+	private static final int TAIL_OFFSET = 128;
+
+	/** Size of the file header; the records follow it */
+	private static final int FILE_HEADER = 192;
+
+	/** Offset of the frame within a record, which leaves room for the
+	 * frame's length and a command header */
+	public static final int RECORD_HEADER = 8 + CommandPacket.HEADER_SIZE;
+
+	/** Records start on multiples of this */
+	private static final int ALIGNMENT = 8;
+
+	/** Length that marks the rest of the ring as unused */
+	private static final int WRAP = -1;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(
+			long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(
+			int[].class, ByteOrder.nativeOrder());
+
+	/** The mapped file */
+	private final MappedByteBuffer file;
+
+	/** Records; a view of the mapped file that starts after the header */
+	private final ByteBuffer records;
+
+	/** Size of the record area; a power of two */
+	private final int capacity;
+
+	/** Mask for turning an index into an offset in the record area */
+	private final int mask;
+
+	/** View through which the producer builds records */
+	private final ByteBuffer producerView;
+
+	/** View through which the consumer reads records */
+	private final ByteBuffer consumerView;
+
+	/** Producer's most recent view of the head index */
+	private long cachedHead;
+
+	/** Index at which the record being built by the producer ends */
+	private long claimedTail;
+
+	/** Index at which the record returned by {@link #peek()} ends */
+	private long peekedHead;
+
+	private MappedRing(MappedByteBuffer file)
+	{
+		this.file = file;
+		this.capacity = file.getInt(CAPACITY_OFFSET);
+		this.mask = this.capacity - 1;
+		this.records = file.slice(FILE_HEADER, this.capacity)
+				.order(ByteOrder.nativeOrder());
+		this.producerView = this.records.duplicate();
+		this.consumerView = this.records.duplicate();
+		this.cachedHead = this.head();
+	}
+
+	/**
+	 * Map a ring file, creating and initializing the file if needed. Either
+	 * side may open the file first; an existing ring keeps its size.
+	 * @param path path of the ring file; best placed on a memory-backed file
+	 *        system, such as /dev/shm
+	 * @param capacity size of the record area for a new ring; rounded up to
+	 *        a power of two
+	 * @return the ring
+	 */
+	public static MappedRing open(Path path, int capacity) throws IOException
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 65536) - 1) << 1;
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		try
+		{
+			// Keep the other side from initializing the file at the same time
+			FileLock lock = channel.lock();
+			try
+			{
+				MappedByteBuffer file;
+				if (channel.size() >= FILE_HEADER)
+				{
+					file = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+							FILE_HEADER);
+					file.order(ByteOrder.nativeOrder());
+					if (MAGIC == (int)INTS.getAcquire(file, MAGIC_OFFSET))
+					{ size = file.getInt(CAPACITY_OFFSET); }
+				}
+				file = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+						FILE_HEADER + size);
+				file.order(ByteOrder.nativeOrder());
+				if ((int)INTS.getAcquire(file, MAGIC_OFFSET) != MAGIC)
+				{
+					file.putInt(CAPACITY_OFFSET, size);
+					file.putLong(HEAD_OFFSET, 0);
+					file.putLong(TAIL_OFFSET, 0);
+					INTS.setRelease(file, MAGIC_OFFSET, MAGIC);
+				}
+				return new MappedRing(file);
+			}
+			finally
+			{ lock.release(); }
+		}
+		finally
+		{ channel.close(); }
+	}
+
+	/**
+	 * @return largest frame the ring accepts
+	 */
+	public int getMaxFrameSize()
+	{ return this.capacity / 4 - RECORD_HEADER; }
+
+	/**
+	 * Reserve room for a frame. Only the producer may call this.
+	 * @param length length of the frame
+	 * @return a buffer whose position and limit enclose the room for the
+	 *         frame; null if the ring is full or the frame is too large
+	 */
+	public ByteBuffer claim(int length)
+	{
+		if (length > this.getMaxFrameSize() || length < 0)
+		{ return null; }
+		int needed = align(RECORD_HEADER + length);
+		long tail = this.tail();
+		int offset = (int)tail & this.mask;
+		if (offset + needed > this.capacity)
+		{
+			// Skip the rest of the ring, once the consumer is past it
+			long start = tail + this.capacity - offset;
+			if (!this.hasRoom(start + needed))
+			{ return null; }
+			this.records.putInt(offset, WRAP);
+			LONGS.setRelease(this.file, TAIL_OFFSET, start);
+			tail = start;
+			offset = 0;
+		}
+		else if (!this.hasRoom(tail + needed))
+		{ return null; }
+
+		this.records.putInt(offset, length);
+		this.claimedTail = tail + needed;
+		this.producerView.limit(offset + RECORD_HEADER + length);
+		this.producerView.position(offset + RECORD_HEADER);
+		return this.producerView;
+	}
+
+	/**
+	 * Make the frame built in the room returned by the last call to
+	 * {@link #claim(int)} visible to the consumer. Only the producer may
+	 * call this.
+	 */
+	public void publish()
+	{ LONGS.setRelease(this.file, TAIL_OFFSET, this.claimedTail); }
+
+	/**
+	 * Copy a frame into the ring and publish it. Only the producer may call
+	 * this.
+	 * @param frame buffer whose remaining bytes are the frame; its position
+	 *        is left unchanged
+	 * @return false if the ring is full or the frame is too large
+	 */
+	public boolean offer(ByteBuffer frame)
+	{
+		int length = frame.remaining();
+		ByteBuffer room = this.claim(length);
+		if (null == room)
+		{ return false; }
+		room.put(room.position(), frame, frame.position(), length);
+		this.publish();
+		return true;
+	}
+
+	/**
+	 * Get the oldest published frame. Only the consumer may call this.
+	 * @return a buffer whose position and limit enclose the frame, with
+	 *         room in front of it for a command header; null if the ring is
+	 *         empty. The frame, which may be modified in place, stays valid
+	 *         until {@link #release()} is called.
+	 */
+	public ByteBuffer peek()
+	{
+		long head = this.head();
+		while (true)
+		{
+			if (head == (long)LONGS.getAcquire(this.file, TAIL_OFFSET))
+			{ return null; }
+			int offset = (int)head & this.mask;
+			int length = this.records.getInt(offset);
+			if (WRAP == length)
+			{
+				head += this.capacity - offset;
+				LONGS.setRelease(this.file, HEAD_OFFSET, head);
+				continue;
+			}
+			this.peekedHead = head + align(RECORD_HEADER + length);
+			this.consumerView.limit(offset + RECORD_HEADER + length);
+			this.consumerView.position(offset + RECORD_HEADER);
+			return this.consumerView;
+		}
+	}
+
+	/**
+	 * Free the frame returned by the last call to {@link #peek()}. Only the
+	 * consumer may call this.
+	 */
+	public void release()
+	{ LONGS.setRelease(this.file, HEAD_OFFSET, this.peekedHead); }
+
+	/**
+	 * Throw away every published frame, e.g., frames sent while the
+	 * consumer was not running. Only the consumer may call this.
+	 */
+	public void discard()
+	{
+		LONGS.setRelease(this.file, HEAD_OFFSET,
+				(long)LONGS.getAcquire(this.file, TAIL_OFFSET));
+	}
+
+	/**
+	 * @return number of bytes of published records not yet released
+	 */
+	public long getUsed()
+	{
+		return (long)LONGS.getAcquire(this.file, TAIL_OFFSET)
+				- (long)LONGS.getAcquire(this.file, HEAD_OFFSET);
+	}
+
+	private boolean hasRoom(long end)
+	{
+		if (end - this.cachedHead > this.capacity)
+		{
+			this.cachedHead = this.head();
+			if (end - this.cachedHead > this.capacity)
+			{ return false; }
+		}
+		return true;
+	}
+
+	private long head()
+	{ return (long)LONGS.getAcquire(this.file, HEAD_OFFSET); }
+
+	private long tail()
+	{ return (long)LONGS.getOpaque(this.file, TAIL_OFFSET); }
+
+	private static int align(int size)
+	{ return (size + ALIGNMENT - 1) & -ALIGNMENT; }
+
+	public String toString()
+	{
+		return String.format("Mapped ring: %d of %d bytes in use",
+				this.getUsed(), this.capacity);
+	}
+}
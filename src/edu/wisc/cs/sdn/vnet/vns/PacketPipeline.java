@@ -0,0 +1,510 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.EthernetView;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.IPv4View;
+import net.floodlightcontroller.packet.UdpView;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Runs packet processing and transmission on their own threads, so that
+ * reading from the server is never held up by a slow device, a slow write or
+ * a slow dump file. The thread reading from the server copies each received
+ * frame into an ingress ring; a worker thread takes frames from that ring and
+ * passes them to the device; frames the device sends are copied into an
+ * egress ring, from which a writer thread sends them to the server.
+ * <p>
+ * A pipeline may have several workers, each with its own ingress and egress
+ * ring, so a device can process packets on several cores. Received IPv4
+ * frames are assigned to a worker by hashing their addresses, protocol and,
+ * for TCP and UDP, ports; all frames of a flow therefore go to the same
+ * worker and leave in the order they arrived. The exception is frames a
+ * router held while resolving their next hop: whichever worker handles the
+ * ARP reply sends them, so they may leave after later frames of their flow
+ * that the flow's own worker forwarded once the reply was in the ARP cache.
+ * That only happens to the frames of one resolution, which a router
+ * without workers can also hold for a whole second, and IP never promised
+ * to keep order. The device must be safe for concurrent calls when there is
+ * more than one worker.
+ * <p>
+ * The rings absorb bursts. When a ring is full its producer waits for the
+ * consumer to catch up, which in turn stops reading from the server, so the
+ * server's sends are held back by TCP flow control rather than frames being
+ * dropped. The number of times each side had to wait is counted.
+ */
+public class PacketPipeline
+{
+	/** Default number of slots in each ring */
+	public static final int DEFAULT_RING_SIZE = 1024;
+
+	/** Size of the frame held by a slot before it has to grow */
+	public static final int SLOT_SIZE = 2048;
+
+	/** Longest time an idle thread parks before checking its rings */
+	private static final long IDLE_PARK_NANOS = 50000;
+
+	/** Most frames the writer sends from one ring before checking others */
+	private static final int WRITE_BATCH = 64;
+
+	/** A frame in a ring, with room for the command header in front of it */
+	static class FrameSlot
+	{
+		/** Holds the command header followed by the frame */
+		private byte[] data;
+
+		/** Buffer over the data */
+		private ByteBuffer buffer;
+
+		/** Length of the frame */
+		private int length;
+
+		/** Interface on which the frame was received */
+		private Iface iface;
+
+		/** Name of the interface on which to send the frame */
+		private String ifaceName;
+
+		FrameSlot()
+		{ this.allocate(SLOT_SIZE); }
+
+		private void allocate(int frameLength)
+		{
+			this.data = new byte[CommandPacket.HEADER_SIZE + frameLength];
+			this.buffer = ByteBuffer.wrap(this.data);
+		}
+
+		/**
+		 * Prepare the slot to receive a frame.
+		 * @param frameLength length of the frame
+		 * @return a buffer positioned where the frame belongs and limited to
+		 *         its length
+		 */
+		ByteBuffer fill(int frameLength)
+		{
+			if (CommandPacket.HEADER_SIZE + frameLength > this.data.length)
+			{ this.allocate(frameLength); }
+			this.length = frameLength;
+			return this.frame();
+		}
+
+		/**
+		 * @return a buffer whose remaining bytes are the frame in the slot
+		 */
+		ByteBuffer frame()
+		{
+			this.buffer.clear();
+			this.buffer.position(CommandPacket.HEADER_SIZE);
+			this.buffer.limit(CommandPacket.HEADER_SIZE + this.length);
+			return this.buffer;
+		}
+	}
+
+	/** A thread that passes received frames to the device */
+	private class Worker extends Thread
+	{
+		/** Frames received from the server, waiting for this worker */
+		private final SpscRing<FrameSlot> ingress;
+
+		/** Frames sent by this worker, waiting for the writer */
+		private final SpscRing<FrameSlot> egress;
+
+		/** Rings this worker waits on when idle */
+		private final SpscRing<?>[] idleRings;
+
+		Worker(int index, int ingressSize, int egressSize)
+		{
+			super("Pipeline worker " + index);
+			this.ingress = new SpscRing<FrameSlot>(ingressSize, FrameSlot::new);
+			this.egress = new SpscRing<FrameSlot>(egressSize, FrameSlot::new);
+			this.idleRings = new SpscRing<?>[] { this.ingress };
+			this.setDaemon(true);
+		}
+
+		/**
+		 * @return the pipeline to which this worker belongs
+		 */
+		PacketPipeline getPipeline()
+		{ return PacketPipeline.this; }
+
+		public void run()
+		{ process(this); }
+	}
+
+	private final VNSComm vnsComm;
+
+	/** Threads that pass received frames to the device */
+	private final Worker[] workers;
+
+	/** Frames sent by other threads (e.g., timers), waiting for the writer */
+	private final SpscRing<FrameSlot> controlEgress;
+
+	/** Serializes the threads producing into the control egress ring */
+	private final Object controlLock;
+
+	/** Rings the writer waits on when idle */
+	private final SpscRing<?>[] writerRings;
+
+	private final Thread writer;
+	private volatile boolean running;
+
+	/** Views used by the reader to hash frames to workers */
+	private final EthernetView etherView;
+	private final IPv4View ipView;
+	private final UdpView portView;
+
+	/** Number of times the reader waited because the ingress ring was full */
+	private volatile long ingressStalls;
+
+	/** Number of times a sender waited because an egress ring was full */
+	private final AtomicLong egressStalls;
+
+	/**
+	 * Create a pipeline with a single worker for a connection to the server.
+	 * @param vnsComm the connection to the server
+	 * @param ingressSize number of slots in the ingress ring
+	 * @param egressSize number of slots in each egress ring
+	 */
+	public PacketPipeline(VNSComm vnsComm, int ingressSize, int egressSize)
+	{ this(vnsComm, ingressSize, egressSize, 1); }
+
+	/**
+	 * Create a pipeline for a connection to the server.
+	 * @param vnsComm the connection to the server
+	 * @param ingressSize number of slots in each worker's ingress ring
+	 * @param egressSize number of slots in each egress ring
+	 * @param workerCount number of worker threads
+	 */
+	public PacketPipeline(VNSComm vnsComm, int ingressSize, int egressSize,
+			int workerCount)
+	{
+		if (workerCount < 1)
+		{ throw new IllegalArgumentException("Need at least one worker"); }
+		this.vnsComm = vnsComm;
+		this.workers = new Worker[workerCount];
+		this.writerRings = new SpscRing<?>[workerCount + 1];
+		for (int i = 0; i < workerCount; i++)
+		{
+			this.workers[i] = new Worker(i, ingressSize, egressSize);
+			this.writerRings[i] = this.workers[i].egress;
+		}
+		this.controlEgress = new SpscRing<FrameSlot>(egressSize,
+				FrameSlot::new);
+		this.writerRings[workerCount] = this.controlEgress;
+		this.controlLock = new Object();
+		this.egressStalls = new AtomicLong();
+		this.writer = new Thread(new Runnable() {
+			public void run()
+			{ transmit(); }
+		}, "Pipeline writer");
+		this.writer.setDaemon(true);
+		this.etherView = new EthernetView();
+		this.ipView = new IPv4View();
+		this.portView = new UdpView();
+	}
+
+	/**
+	 * @return number of worker threads
+	 */
+	public int getWorkerCount()
+	{ return this.workers.length; }
+
+	/**
+	 * Start the worker and writer threads and begin routing the
+	 * connection's packets through the pipeline.
+	 */
+	public void start()
+	{
+		this.running = true;
+		for (Worker worker : this.workers)
+		{ worker.start(); }
+		this.writer.start();
+		this.vnsComm.setPipeline(this);
+	}
+
+	/**
+	 * Stop routing packets through the pipeline. Frames already sent by the
+	 * device are written to the server before this returns.
+	 */
+	public void stop()
+	{
+		this.vnsComm.setPipeline(null);
+		this.running = false;
+		for (Worker worker : this.workers)
+		{ LockSupport.unpark(worker); }
+		LockSupport.unpark(this.writer);
+		try
+		{
+			for (Worker worker : this.workers)
+			{ worker.join(); }
+			this.writer.join();
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		this.vnsComm.flush();
+	}
+
+	/**
+	 * Queue a frame received from the server for the worker that handles
+	 * its flow. Called by the thread reading from the server.
+	 * @param frame buffer whose remaining bytes are the frame
+	 * @param inIface interface on which the frame was received
+	 * @return true if the frame was queued; false if the pipeline stopped
+	 */
+	boolean receive(ByteBuffer frame, Iface inIface)
+	{
+		SpscRing<FrameSlot> ingress = this.workers[0].ingress;
+		if (this.workers.length > 1)
+		{
+			int hash = this.flowHash(frame);
+			ingress = this.workers[Math.floorMod(hash, this.workers.length)]
+					.ingress;
+		}
+		
+		FrameSlot slot = ingress.claim();
+		if (null == slot)
+		{
+			// Wait for the worker to make room
+			this.ingressStalls++;
+			while (null == (slot = ingress.claim()))
+			{
+				if (!this.running)
+				{ return false; }
+				Thread.yield();
+			}
+		}
+		slot.fill(frame.remaining()).put(frame);
+		slot.iface = inIface;
+		ingress.publish();
+		return true;
+	}
+
+	/**
+	 * Hash the flow to which a frame belongs. IPv4 frames are hashed on their
+	 * addresses and protocol, plus their ports if they are unfragmented TCP or
+	 * UDP; ARP frames on their sender and target addresses; anything else
+	 * hashes to zero.
+	 * @param frame buffer whose remaining bytes are the frame
+	 * @return the hash
+	 */
+	private int flowHash(ByteBuffer frame)
+	{
+		EthernetView ether = this.etherView;
+		ether.wrap(frame);
+		if (ether.getViewLength() < 14)
+		{ return 0; }
+		int hash;
+		switch (ether.getEtherType())
+		{
+		case Ethernet.TYPE_IPv4:
+			IPv4View ip = ether.payload(this.ipView);
+			if (ip.getViewLength() < 20)
+			{ return 0; }
+			byte protocol = ip.getProtocol();
+			hash = mix(ip.getSourceAddress(), ip.getDestinationAddress())
+					+ protocol;
+			// Fragments other than the first carry no ports, so hash all
+			// fragments (offset or more fragments flag set) without them
+			boolean fragmented = (ip.getFragmentOffset() != 0)
+					|| (ip.getFlags() & 0x1) != 0;
+			if (!fragmented && (protocol == IPv4.PROTOCOL_TCP 
+					|| protocol == IPv4.PROTOCOL_UDP))
+			{
+				UdpView ports = ip.payload(this.portView);
+				if (ports.getViewLength() >= 4)
+				{ hash = mix(hash, frame.getInt(ports.getOffset())); }
+			}
+			break;
+		case Ethernet.TYPE_ARP:
+			if (ether.getPayloadLength() < 28)
+			{ return 0; }
+			int arp = ether.getPayloadOffset();
+			hash = mix(frame.getInt(arp + 14), frame.getInt(arp + 24));
+			break;
+		default:
+			return 0;
+		}
+		return mix(hash, 0);
+	}
+
+	/**
+	 * Combine two values into a well-distributed hash.
+	 */
+	private static int mix(int a, int b)
+	{
+		int h = a * 0x9e3779b9 + b;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * Queue a frame for the writer.
+	 * @param etherPacket the frame to serialize; null to copy a raw frame
+	 * @param frame buffer whose remaining bytes are the raw frame; its
+	 *        position is left unchanged
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @return true if the frame was queued; false if the pipeline stopped
+	 */
+	boolean send(Ethernet etherPacket, ByteBuffer frame, String ifaceName)
+	{
+		Thread current = Thread.currentThread();
+		if (current instanceof Worker 
+				&& ((Worker)current).getPipeline() == this)
+		{
+			return this.enqueue(((Worker)current).egress, etherPacket, frame,
+					ifaceName);
+		}
+		synchronized (this.controlLock)
+		{
+			return this.enqueue(this.controlEgress, etherPacket, frame,
+					ifaceName);
+		}
+	}
+
+	private boolean enqueue(SpscRing<FrameSlot> ring, Ethernet etherPacket,
+			ByteBuffer frame, String ifaceName)
+	{
+		FrameSlot slot = ring.claim();
+		if (null == slot)
+		{
+			// Wait for the writer to make room
+			this.egressStalls.incrementAndGet();
+			while (null == (slot = ring.claim()))
+			{
+				if (!this.running)
+				{ return false; }
+				Thread.yield();
+			}
+		}
+
+		if (etherPacket != null)
+		{ etherPacket.serializeInto(slot.fill(etherPacket.getSerializedLength())); }
+		else
+		{
+			int position = frame.position();
+			slot.fill(frame.remaining()).put(frame);
+			frame.position(position);
+		}
+		slot.ifaceName = ifaceName;
+		ring.publish();
+		return true;
+	}
+
+	/**
+	 * Body of a worker thread: pass received frames to the device.
+	 */
+	private void process(Worker worker)
+	{
+		SpscRing<FrameSlot> ingress = worker.ingress;
+		while (this.running)
+		{
+			FrameSlot slot = ingress.peek();
+			if (null == slot)
+			{
+				this.idle(worker.idleRings);
+				continue;
+			}
+			try
+			{ this.vnsComm.receivePacket(slot.frame(), slot.iface); }
+			catch (RuntimeException e)
+			{ e.printStackTrace(); }
+			slot.iface = null;
+			ingress.release();
+		}
+	}
+
+	/**
+	 * Body of the writer thread: send queued frames to the server, flushing
+	 * whenever there is nothing left to send.
+	 */
+	private void transmit()
+	{
+		while (true)
+		{
+			boolean sent = false;
+			for (Worker worker : this.workers)
+			{ sent |= this.drain(worker.egress); }
+			sent |= this.drain(this.controlEgress);
+			if (!sent)
+			{
+				this.vnsComm.flush();
+				if (!this.running && allEmpty(this.writerRings))
+				{ return; }
+				this.idle(this.writerRings);
+			}
+		}
+	}
+
+	private boolean drain(SpscRing<FrameSlot> ring)
+	{
+		int count = 0;
+		FrameSlot slot;
+		while (count < WRITE_BATCH && (slot = ring.peek()) != null)
+		{
+			this.vnsComm.transmitRawPacket(slot.frame(), slot.ifaceName);
+			ring.release();
+			count++;
+		}
+		return (count > 0);
+	}
+
+	/**
+	 * Park the calling consumer until a slot is published in one of its
+	 * rings, or for a short time.
+	 */
+	private void idle(SpscRing<?>[] rings)
+	{
+		Thread self = Thread.currentThread();
+		for (SpscRing<?> ring : rings)
+		{ ring.setWaiter(self); }
+		if (allEmpty(rings) && this.running)
+		{ LockSupport.parkNanos(IDLE_PARK_NANOS); }
+		for (SpscRing<?> ring : rings)
+		{ ring.setWaiter(null); }
+	}
+
+	private static boolean allEmpty(SpscRing<?>[] rings)
+	{
+		for (SpscRing<?> ring : rings)
+		{
+			if (!ring.isEmpty())
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of times the reader waited because the ingress ring
+	 *         was full
+	 */
+	public long getIngressStalls()
+	{ return this.ingressStalls; }
+
+	/**
+	 * @return number of times a sender waited because an egress ring was
+	 *         full
+	 */
+	public long getEgressStalls()
+	{ return this.egressStalls.get(); }
+
+	public String toString()
+	{
+		String result = String.format("Pipeline: %d ingress stalls, "
+				+ "%d egress stalls; control egress %s", 
+				this.getIngressStalls(), this.getEgressStalls(),
+				this.controlEgress);
+		for (Worker worker : this.workers)
+		{
+			result += String.format("\n  %s: ingress %s; egress %s", 
+					worker.getName(), worker.ingress, worker.egress);
+		}
+		return result;
+	}
+}
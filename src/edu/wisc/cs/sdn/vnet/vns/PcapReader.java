@@ -0,0 +1,132 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the frames of a PCAP file, such as one written by a DumpFile, from
+ * a memory mapping of the file. Stepping through the frames allocates
+ * nothing: each call to {@link #next()} positions a view of the mapping on
+ * the following frame. Files written in either byte order, with micro- or
+ * nanosecond timestamps, are accepted.
+ */
+public class PcapReader
+{
+	private static final int MAGIC_MICROS = 0xa1b2c3d4;
+	private static final int MAGIC_NANOS = 0xa1b23c4d;
+	private static final int LINKTYPE_ETHERNET = 1;
+	private static final int FILE_HEADER_SIZE = 24;
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	/** The whole file, in the byte order in which it was written */
+	private final MappedByteBuffer buffer;
+
+	/** View of the mapping positioned on the current frame */
+	private final ByteBuffer frame;
+
+	/** Whether timestamps have nanosecond rather than microsecond parts */
+	private final boolean nanos;
+
+	/** Offset of the next record */
+	private int offset;
+
+	/** Time at which the current frame was captured, in nanoseconds */
+	private long timestamp;
+
+	private PcapReader(MappedByteBuffer buffer, boolean nanos)
+	{
+		this.buffer = buffer;
+		this.frame = buffer.duplicate();
+		this.nanos = nanos;
+		this.rewind();
+	}
+
+	/**
+	 * Map a PCAP file for reading.
+	 * @param filename name of the file
+	 * @return a reader positioned before the first frame
+	 * @throws IOException if the file cannot be read or is not a capture of
+	 *         Ethernet frames
+	 */
+	public static PcapReader open(String filename) throws IOException
+	{
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.READ))
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+			{ throw new IOException(filename + " is too large to map"); }
+			if (channel.size() < FILE_HEADER_SIZE)
+			{ throw new IOException(filename + " is not a PCAP file"); }
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		}
+
+		int magic = buffer.getInt(0);
+		if (Integer.reverseBytes(magic) == MAGIC_MICROS
+				|| Integer.reverseBytes(magic) == MAGIC_NANOS)
+		{
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			magic = Integer.reverseBytes(magic);
+		}
+		if (magic != MAGIC_MICROS && magic != MAGIC_NANOS)
+		{ throw new IOException(filename + " is not a PCAP file"); }
+		if (buffer.getInt(20) != LINKTYPE_ETHERNET)
+		{ throw new IOException(filename + " does not hold Ethernet frames"); }
+		return new PcapReader(buffer, MAGIC_NANOS == magic);
+	}
+
+	/**
+	 * Move to the next frame. A record cut short at the end of the file, as
+	 * a capture interrupted mid-write may leave, ends the frames.
+	 * @return false if there are no more frames
+	 */
+	public boolean next()
+	{
+		int limit = this.buffer.limit();
+		if (limit - this.offset < RECORD_HEADER_SIZE)
+		{ return false; }
+		long seconds = this.buffer.getInt(this.offset) & 0xffffffffL;
+		long fraction = this.buffer.getInt(this.offset + 4) & 0xffffffffL;
+		int length = this.buffer.getInt(this.offset + 8);
+		int start = this.offset + RECORD_HEADER_SIZE;
+		if (length <= 0 || length > limit - start)
+		{ return false; }
+
+		this.timestamp = seconds * 1000000000L
+				+ (this.nanos ? fraction : fraction * 1000);
+		this.frame.limit(start + length);
+		this.frame.position(start);
+		this.offset = start + length;
+		return true;
+	}
+
+	/**
+	 * @return view whose remaining bytes are the current frame; it is
+	 *         read-only, and repositioned by the next call to next()
+	 */
+	public ByteBuffer getFrame()
+	{ return this.frame; }
+
+	/**
+	 * @return time at which the current frame was captured, in nanoseconds
+	 *         since the epoch
+	 */
+	public long getTimestamp()
+	{ return this.timestamp; }
+
+	/**
+	 * Go back to before the first frame.
+	 */
+	public void rewind()
+	{
+		this.offset = FILE_HEADER_SIZE;
+		this.timestamp = 0;
+		this.frame.limit(0);
+	}
+}
@@ -0,0 +1,550 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+import edu.wisc.cs.sdn.vnet.server.Topology;
+import edu.wisc.cs.sdn.vnet.server.Topology.Node;
+import edu.wisc.cs.sdn.vnet.server.Topology.Port;
+import edu.wisc.cs.sdn.vnet.server.VNSServer;
+import edu.wisc.cs.sdn.vnet.sw.Switch;
+
+/**
+ * Replays a capture through a switch or router, with no server involved,
+ * and reports how fast and how steadily the device handled the frames.
+ * Frames take the same path as frames read from the server: raw handling if
+ * the device offers it, otherwise decoding and handlePacket. What the device
+ * sends is counted and discarded.
+ * <p>
+ * The device's interfaces and ARP entries come from the topology the capture
+ * was taken in. Routers run RIP, as they do when started without a route
+ * table, unless given one or told to take static routes from the topology.
+ * <p>
+ * A capture written by a DumpFile holds the frames the device sent as well
+ * as those it received, without saying which interface each was on, so each
+ * frame is attributed as follows: frames from one of the device's own MAC
+ * addresses, and copies of the frame just replayed (which is how a switch's
+ * forwarded frames appear, at most with a transport checksum filled in),
+ * were sent by the device and are skipped; frames
+ * to one of its MAC addresses, ARP requests for one of its IP addresses and
+ * IPv4 packets from one of its subnets arrived on that interface; any other
+ * frame is taken to have arrived on an interface chosen by its source MAC
+ * address.
+ * <p>
+ * Usage: PcapReplay -c capture -t topo -v host [-r routing_table | -s]
+ * [-a arp_cache] [-d] [-f] [-n passes] [-w warmup_passes] [-T] [-x speed]
+ */
+public class PcapReplay
+{
+	/** Number of handling times kept for computing percentiles */
+	private static final int SAMPLES = 1 << 20;
+
+	/** Offset and length of the bytes in which a frame a device forwards may
+	 * differ from the one it received: the transport header, whose checksum
+	 * is filled in when the packet is serialized again */
+	private static final int TRANSPORT_OFFSET = 14 + 20;
+	private static final int TRANSPORT_LENGTH = 20;
+
+	/** Shortest wait, in nanoseconds, for which the replay thread parks
+	 * rather than spins when replaying at the recorded times */
+	private static final long PARK_THRESHOLD = 100000;
+
+	/** Stands in for the connection to the server */
+	private static class Sink extends VNSComm
+	{
+		/** Buffer into which decoded packets are serialized, as they would
+		 * be into the send buffer */
+		private final ByteBuffer scratch;
+
+		/** Number of frames sent by the device */
+		private long sent;
+
+		Sink(Device device)
+		{
+			super(device);
+			this.scratch = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+		}
+
+		@Override
+		boolean transmitRawPacket(ByteBuffer frame, String ifaceName)
+		{
+			this.sent++;
+			return true;
+		}
+
+		@Override
+		public boolean sendPacket(Ethernet etherPacket, String ifaceName)
+		{
+			if (etherPacket.getSerializedLength() <= this.scratch.capacity())
+			{
+				this.scratch.clear();
+				etherPacket.serializeInto(this.scratch);
+			}
+			this.sent++;
+			return true;
+		}
+
+		@Override
+		public boolean flush()
+		{ return true; }
+	}
+
+	private final Device device;
+	private final Sink sink;
+	private final PcapReader reader;
+
+	/** Interfaces of the device, in the order their names sort */
+	private final Iface[] ifaces;
+
+	/** Index in ifaces of the interface on which each frame of the capture
+	 * arrived; -1 for frames the device sent */
+	private final int[] ingress;
+
+	/** Number of frames the device received in one pass of the capture */
+	private final int received;
+
+	/** Buffer each frame is copied into before it is handled, with room in
+	 * front for a command header as in the receive buffer */
+	private final ByteBuffer work;
+
+	/** Handling times, in nanoseconds, sampled uniformly */
+	private final long[] latencies;
+	private long latencyCount;
+	private long latencyMax;
+
+	/** Number of frames whose handling threw an exception */
+	private long failures;
+
+	private PcapReplay(Device device, PcapReader reader)
+	{
+		this.device = device;
+		this.sink = new Sink(device);
+		this.reader = reader;
+		List<String> names = new ArrayList<String>(
+				device.getInterfaces().keySet());
+		names.sort(null);
+		this.ifaces = new Iface[names.size()];
+		for (int i = 0; i < this.ifaces.length; i++)
+		{ this.ifaces[i] = device.getInterface(names.get(i)); }
+
+		int frames = 0;
+		while (reader.next())
+		{ frames++; }
+		this.ingress = new int[frames];
+		this.received = this.attribute();
+		this.work = ByteBuffer.allocateDirect(
+				CommandPacket.HEADER_SIZE + 65536);
+		this.latencies = new long[SAMPLES];
+	}
+
+	/**
+	 * Work out the interface on which each frame of the capture arrived.
+	 * @return number of frames the device received
+	 */
+	private int attribute()
+	{
+		this.reader.rewind();
+		ByteBuffer previous = null;
+		int received = 0;
+		for (int i = 0; this.reader.next(); i++)
+		{
+			ByteBuffer frame = this.reader.getFrame();
+			int index = this.findIngress(frame);
+			if (index >= 0 && previous != null && isCopy(previous, frame))
+			{ index = -1; }
+			this.ingress[i] = index;
+			if (index >= 0)
+			{
+				previous = frame.duplicate();
+				received++;
+			}
+		}
+		return received;
+	}
+
+	private int findIngress(ByteBuffer frame)
+	{
+		int start = frame.position();
+		if (frame.remaining() < 14)
+		{ return -1; }
+		long dstMac = getMac(frame, start);
+		long srcMac = getMac(frame, start + 6);
+		for (int i = 0; i < this.ifaces.length; i++)
+		{
+			if (this.ifaces[i].getMacAddress() != null
+					&& this.ifaces[i].getMacAddress().toLong() == srcMac)
+			{ return -1; }
+		}
+		for (int i = 0; i < this.ifaces.length; i++)
+		{
+			if (this.ifaces[i].getMacAddress() != null
+					&& this.ifaces[i].getMacAddress().toLong() == dstMac)
+			{ return i; }
+		}
+
+		short etherType = frame.getShort(start + 12);
+		for (int i = 0; i < this.ifaces.length; i++)
+		{
+			Iface iface = this.ifaces[i];
+			if (0 == iface.getIpAddress())
+			{ continue; }
+			if (Ethernet.TYPE_ARP == etherType && frame.remaining() >= 42
+					&& frame.getInt(start + 38) == iface.getIpAddress())
+			{ return i; }
+			if (Ethernet.TYPE_IPv4 == etherType && frame.remaining() >= 34
+					&& (frame.getInt(start + 26) & iface.getSubnetMask())
+					== (iface.getIpAddress() & iface.getSubnetMask()))
+			{ return i; }
+		}
+		return Math.floorMod(Long.hashCode(srcMac), this.ifaces.length);
+	}
+
+	/**
+	 * @return whether two frames are the same, apart perhaps from their
+	 *         transport headers
+	 */
+	private static boolean isCopy(ByteBuffer a, ByteBuffer b)
+	{
+		int length = a.remaining();
+		if (b.remaining() != length)
+		{ return false; }
+		for (int i = 0; i < length; i++)
+		{
+			if (i == TRANSPORT_OFFSET)
+			{ i = Math.min(length, TRANSPORT_OFFSET + TRANSPORT_LENGTH) - 1; }
+			else if (a.get(a.position() + i) != b.get(b.position() + i))
+			{ return false; }
+		}
+		return true;
+	}
+
+	private static long getMac(ByteBuffer frame, int offset)
+	{
+		return ((frame.getInt(offset) & 0xffffffffL) << 16)
+				| (frame.getShort(offset + 4) & 0xffff);
+	}
+
+	/**
+	 * Replay the capture once.
+	 * @param speed how many times faster than recorded to replay; 0 to
+	 *        replay as fast as the device handles the frames
+	 * @param measure whether to record handling times
+	 */
+	private void replay(double speed, boolean measure)
+	{
+		this.reader.rewind();
+		long firstTimestamp = -1;
+		long start = System.nanoTime();
+		for (int i = 0; this.reader.next(); i++)
+		{
+			int index = this.ingress[i];
+			if (index < 0)
+			{ continue; }
+
+			if (speed > 0)
+			{
+				if (firstTimestamp < 0)
+				{ firstTimestamp = this.reader.getTimestamp(); }
+				long due = start + (long)((this.reader.getTimestamp()
+						- firstTimestamp) / speed);
+				long wait;
+				while ((wait = due - System.nanoTime()) > 0)
+				{
+					if (wait > PARK_THRESHOLD)
+					{ LockSupport.parkNanos(wait - PARK_THRESHOLD / 2); }
+					else
+					{ Thread.onSpinWait(); }
+				}
+			}
+
+			// Copy the frame as if it had just been read from the server
+			ByteBuffer frame = this.reader.getFrame();
+			int position = frame.position();
+			this.work.clear();
+			this.work.position(CommandPacket.HEADER_SIZE);
+			this.work.put(frame);
+			frame.position(position);
+			this.work.flip();
+			this.work.position(CommandPacket.HEADER_SIZE);
+
+			long before = System.nanoTime();
+			try
+			{ this.sink.receivePacket(this.work, this.ifaces[index]); }
+			catch (RuntimeException e)
+			{
+				if (0 == this.failures++)
+				{ e.printStackTrace(); }
+			}
+			if (measure)
+			{ this.record(System.nanoTime() - before); }
+		}
+	}
+
+	/**
+	 * Keep a uniform sample of the handling times.
+	 */
+	private void record(long latency)
+	{
+		if (this.latencyCount < SAMPLES)
+		{ this.latencies[(int)this.latencyCount] = latency; }
+		else
+		{
+			long slot = ThreadLocalRandom.current().nextLong(
+					this.latencyCount + 1);
+			if (slot < SAMPLES)
+			{ this.latencies[(int)slot] = latency; }
+		}
+		this.latencyCount++;
+		this.latencyMax = Math.max(this.latencyMax, latency);
+	}
+
+	private static double percentile(long[] sorted, double fraction)
+	{
+		if (0 == sorted.length)
+		{ return 0; }
+		return sorted[(int)Math.min(sorted.length - 1,
+				Math.floor(fraction * sorted.length))];
+	}
+
+	/**
+	 * @return bytes allocated so far by the calling thread; -1 if the JVM
+	 *         does not say
+	 */
+	private static long getAllocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean =
+				ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+		{
+			return ((com.sun.management.ThreadMXBean)bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Replay the capture the given number of times after warming up, and
+	 * print what was measured.
+	 */
+	private void run(int warmupPasses, int passes, double speed,
+			PrintStream out)
+	{
+		out.println(String.format("%d frames in capture, %d received by %s "
+				+ "on %d interfaces", this.ingress.length, this.received,
+				this.device.getHost(), this.ifaces.length));
+		for (int i = 0; i < warmupPasses; i++)
+		{ this.replay(speed, false); }
+
+		long sentBefore = this.sink.sent;
+		long allocatedBefore = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < passes; i++)
+		{ this.replay(speed, true); }
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long allocated = getAllocatedBytes() - allocatedBefore;
+		long frames = (long)this.received * passes;
+
+		long[] sorted = Arrays.copyOf(this.latencies,
+				(int)Math.min(this.latencyCount, SAMPLES));
+		Arrays.sort(sorted);
+		out.println(String.format("Replayed %d frames in %.3f s: %.0f "
+				+ "frames/s, %d sent", frames, elapsed, frames / elapsed,
+				this.sink.sent - sentBefore));
+		out.println(String.format("Handling time us: p50 %.2f p90 %.2f "
+				+ "p99 %.2f p99.9 %.2f max %.2f",
+				percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.90) / 1e3,
+				percentile(sorted, 0.99) / 1e3, percentile(sorted, 0.999) / 1e3,
+				this.latencyMax / 1e3));
+		if (this.failures > 0)
+		{
+			out.println(String.format("Handling %d frames threw an exception",
+					this.failures));
+		}
+		if (allocatedBefore >= 0 && frames > 0)
+		{
+			out.println(String.format("Allocated %.1f bytes/frame, %.1f MB/s "
+					+ "on the replay thread", (double)allocated / frames,
+					allocated / elapsed / 1e6));
+		}
+	}
+
+	/**
+	 * Create a switch or router with the interfaces of a node of the
+	 * topology.
+	 */
+	private static Device createDevice(Topology topology, Node node,
+			boolean fastPath, boolean flatTable)
+	{
+		Device dev;
+		if (Topology.Type.SWITCH == node.getType())
+		{
+			dev = new Switch(node.getName(), null);
+			if (fastPath)
+			{ ((Switch)dev).enableFastPath(); }
+		}
+		else
+		{
+			dev = new Router(node.getName(), null);
+			if (flatTable)
+			{ ((Router)dev).useFlatForwardingTable(); }
+			if (fastPath)
+			{ ((Router)dev).enableFastPath(); }
+		}
+
+		for (Port port : node.getPorts())
+		{
+			Iface iface = dev.addInterface(port.getName());
+			iface.setMacAddress(port.getMacAddress());
+			iface.setIpAddress(port.getIpAddress());
+			iface.setSubnetMask(port.getSubnetMask());
+		}
+		return dev;
+	}
+
+	private static void addArpEntries(Router router, Topology topology)
+	{
+		for (Node node : topology.getNodes())
+		{
+			for (Port port : node.getPorts())
+			{
+				if (port.getIpAddress() != 0)
+				{
+					router.getArpCache().insertStatic(port.getMacAddress(),
+							port.getIpAddress());
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		String captureFile = null;
+		String topoFile = null;
+		String host = null;
+		String routeTableFile = null;
+		String arpCacheFile = null;
+		boolean fastPath = false;
+		boolean flatTable = false;
+		boolean staticRoutes = false;
+		int passes = 1;
+		int warmupPasses = 1;
+		double speed = 0;
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-c"))
+			{ captureFile = args[++i]; }
+			else if (arg.equals("-t"))
+			{ topoFile = args[++i]; }
+			else if (arg.equals("-v"))
+			{ host = args[++i]; }
+			else if (arg.equals("-r"))
+			{ routeTableFile = args[++i]; }
+			else if (arg.equals("-a"))
+			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-s"))
+			{ staticRoutes = true; }
+			else if (arg.equals("-f"))
+			{ fastPath = true; }
+			else if (arg.equals("-d"))
+			{ flatTable = true; }
+			else if (arg.equals("-n"))
+			{ passes = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{ warmupPasses = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-T"))
+			{ speed = (0 == speed) ? 1 : speed; }
+			else if (arg.equals("-x"))
+			{ speed = Double.parseDouble(args[++i]); }
+			else
+			{
+				usage();
+				return;
+			}
+		}
+
+		if (null == captureFile || null == topoFile || null == host)
+		{
+			usage();
+			return;
+		}
+
+		Topology topology = Topology.load(topoFile);
+		if (null == topology)
+		{ System.exit(1); }
+		Node node = topology.getNode(host);
+		if (null == node || Topology.Type.HOST == node.getType())
+		{
+			System.err.println("No switch or router " + host + " in "
+					+ topoFile);
+			System.exit(1);
+		}
+
+		PcapReader reader;
+		try
+		{ reader = PcapReader.open(captureFile); }
+		catch (IOException e)
+		{
+			System.err.println("Cannot read " + captureFile + ": "
+					+ e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		// The device logs every packet it handles; discard the output
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		Device dev = createDevice(topology, node, fastPath, flatTable);
+		PcapReplay replay = new PcapReplay(dev, reader);
+		if (dev instanceof Router)
+		{
+			Router router = (Router)dev;
+			if (routeTableFile != null)
+			{ router.loadRouteTable(routeTableFile); }
+			else if (staticRoutes)
+			{ VNSServer.addRoutes(router, topology, node); }
+			else
+			{ router.initRip(); }
+			if (arpCacheFile != null)
+			{ router.loadArpCache(arpCacheFile); }
+			else
+			{ addArpEntries(router, topology); }
+		}
+
+		replay.run(warmupPasses, passes, speed, out);
+		dev.destroy();
+		System.setOut(out);
+	}
+
+	static void usage()
+	{
+		System.out.println("Replay a capture through a switch or router");
+		System.out.println("PcapReplay -c capture -t topo -v host [-r routing_table | -s] [-a arp_cache]");
+		System.out.println("     [-d] [-f] [-n passes] [-w warmup_passes] [-T] [-x speed]");
+		System.out.println("     [-t topo]  topology the capture was taken in, which gives the device's interfaces");
+		System.out.println("     [-r routing_table]  routes to use instead of running RIP");
+		System.out.println("     [-s]  use the shortest static routes through the topology instead of running RIP");
+		System.out.println("     [-a arp_cache]  ARP entries to use instead of every address in the topology");
+		System.out.println("     [-d]  use DIR-24-8 flat forwarding table (routers; 64 MB of heap each)");
+		System.out.println("     [-f]  forward from raw frames in place");
+		System.out.println("     [-n passes]  number of times to replay the capture while measuring");
+		System.out.println("     [-w warmup_passes]  number of times to replay it first, unmeasured");
+		System.out.println("     [-T]  replay frames at the times they were captured");
+		System.out.println("     [-x speed]  replay at the capture's timing sped up by this factor");
+		System.out.println("  defaults passes=1 warmup_passes=1, as fast as possible");
+	}
+}
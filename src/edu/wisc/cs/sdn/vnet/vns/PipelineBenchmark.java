@@ -0,0 +1,227 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.MACAddress;
+import net.floodlightcontroller.packet.UDP;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.rt.Router;
+
+/**
+ * Measures how a router's throughput grows with the number of pipeline
+ * workers. Frames for many UDP flows are fed into a pipeline as fast as it
+ * accepts them, with no server involved; the frames the router sends are
+ * counted, and each flow's frames are checked to leave in the order they
+ * arrived.
+ * <p>
+ * Usage: PipelineBenchmark [-f] [-w max_workers] [-n flows] [-s seconds]
+ */
+public class PipelineBenchmark
+{
+	/** Number of interfaces on the router; frames arrive on the first */
+	private static final int IFACE_COUNT = 4;
+
+	/** Offset of the flow number and sequence number in each frame */
+	private static final int SEQUENCE_OFFSET = 14 + 20 + 8;
+
+	/** Stands in for the connection to the server */
+	private static class Sink extends VNSComm
+	{
+		/** Last sequence number sent for each flow */
+		private final int[] lastSequence;
+
+		/** Number of frames sent by the device */
+		private volatile long sent;
+
+		/** Number of frames sent before an earlier frame of their flow */
+		private long reordered;
+
+		Sink(Device device, int flows)
+		{
+			super(device);
+			this.lastSequence = new int[flows];
+		}
+
+		@Override
+		boolean transmitRawPacket(ByteBuffer frame, String ifaceName)
+		{
+			int offset = frame.position() + SEQUENCE_OFFSET;
+			int flow = frame.getInt(offset);
+			int sequence = frame.getInt(offset + 4);
+			if (sequence <= this.lastSequence[flow])
+			{ this.reordered++; }
+			this.lastSequence[flow] = sequence;
+			this.sent++;
+			return true;
+		}
+
+		@Override
+		public boolean flush()
+		{ return true; }
+	}
+
+	public static void main(String[] args)
+	{
+		boolean fastPath = false;
+		int maxWorkers = Runtime.getRuntime().availableProcessors();
+		int flows = 1024;
+		int seconds = 3;
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-f"))
+			{ fastPath = true; }
+			else if (args[i].equals("-w"))
+			{ maxWorkers = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-n"))
+			{ flows = Integer.parseInt(args[++i]); }
+			else if (args[i].equals("-s"))
+			{ seconds = Integer.parseInt(args[++i]); }
+			else
+			{
+				System.out.println("PipelineBenchmark [-f] [-w max_workers] "
+						+ "[-n flows] [-s seconds]");
+				return;
+			}
+		}
+
+		// The router logs every packet it handles; discard the output
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		out.println(String.format("%d flows, %s path, %d processors",
+				flows, (fastPath ? "fast" : "regular"),
+				Runtime.getRuntime().availableProcessors()));
+		out.println("workers\tframes/s\tspeedup\treordered");
+		double base = 0;
+		for (int workers = 1; workers <= maxWorkers;
+				workers = (workers == maxWorkers) ? workers + 1
+						: Math.min(workers * 2, maxWorkers))
+		{
+			double rate = run(workers, flows, seconds, fastPath, base, out);
+			if (1 == workers)
+			{ base = rate; }
+		}
+		System.setOut(out);
+	}
+
+	/**
+	 * Feed frames to a router through a pipeline with a given number of
+	 * workers, and print the rate at which the router sends them.
+	 * @param base frames sent per second with one worker; 0 if not known
+	 * @return frames sent per second
+	 */
+	private static double run(int workers, int flows, int seconds,
+			boolean fastPath, double base, PrintStream out)
+	{
+		Router router = createRouter(fastPath);
+		Sink sink = new Sink(router, flows);
+		ByteBuffer[] frames = createFrames(router, flows);
+		int[] sequences = new int[flows];
+		PacketPipeline pipeline = new PacketPipeline(sink,
+				PacketPipeline.DEFAULT_RING_SIZE,
+				PacketPipeline.DEFAULT_RING_SIZE, workers);
+		Iface inIface = router.getInterface("eth0");
+		pipeline.start();
+
+		// Warm up for a second, then measure
+		long warmupEnd = System.nanoTime() + 1000000000L;
+		long end = warmupEnd + seconds * 1000000000L;
+		long startSent = -1;
+		long startTime = 0;
+		int flow = 0;
+		while (true)
+		{
+			for (int i = 0; i < 1024; i++)
+			{
+				ByteBuffer frame = frames[flow];
+				frame.putInt(SEQUENCE_OFFSET + 4, ++sequences[flow]);
+				frame.rewind();
+				pipeline.receive(frame, inIface);
+				if (++flow == flows)
+				{ flow = 0; }
+			}
+			long now = System.nanoTime();
+			if (startSent < 0 && now >= warmupEnd)
+			{
+				startSent = sink.sent;
+				startTime = now;
+			}
+			else if (now >= end)
+			{ break; }
+		}
+		long sent = sink.sent - startSent;
+		double elapsed = (System.nanoTime() - startTime) / 1e9;
+		pipeline.stop();
+
+		double rate = sent / elapsed;
+		double speedup = (base > 0) ? rate / base : 1.0;
+		out.println(String.format("%d\t%.0f\t\t%.2f\t%d", workers, rate,
+				speedup, sink.reordered));
+		return rate;
+	}
+
+	/**
+	 * Create a router with directly connected subnets 10.0.N.0/24 on
+	 * interfaces ethN, and an ARP entry for host 10.0.N.2 on each.
+	 */
+	private static Router createRouter(boolean fastPath)
+	{
+		Router router = new Router("r1", null);
+		for (int i = 0; i < IFACE_COUNT; i++)
+		{
+			Iface iface = router.addInterface("eth" + i);
+			iface.setIpAddress(IPv4.toIPv4Address("10.0." + i + ".1"));
+			iface.setSubnetMask(IPv4.toIPv4Address("255.255.255.0"));
+			iface.setMacAddress(MACAddress.valueOf(0x020000000100L + i));
+			router.getRouteTable().insert(iface.getIpAddress() & 0xffffff00,
+					0, iface.getSubnetMask(), iface, 0);
+			router.getArpCache().insertStatic(
+					MACAddress.valueOf(0x020000000200L + i),
+					IPv4.toIPv4Address("10.0." + i + ".2"));
+		}
+		if (fastPath)
+		{ router.enableFastPath(); }
+		return router;
+	}
+
+	/**
+	 * Create one frame per flow, from host 10.0.0.2 to the hosts behind the
+	 * router's other interfaces. Flows differ in their UDP source port, and
+	 * carry their flow number and a sequence number as payload.
+	 */
+	private static ByteBuffer[] createFrames(Router router, int flows)
+	{
+		Iface inIface = router.getInterface("eth0");
+		ByteBuffer[] frames = new ByteBuffer[flows];
+		for (int flow = 0; flow < flows; flow++)
+		{
+			int dstIface = 1 + flow % (IFACE_COUNT - 1);
+			byte[] payload = ByteBuffer.allocate(8).putInt(flow).array();
+			UDP udp = new UDP();
+			udp.setSourcePort((short)(1024 + flow));
+			udp.setDestinationPort((short)9);
+			udp.setPayload(new Data(payload));
+			IPv4 ip = new IPv4();
+			ip.setTtl((byte)64);
+			ip.setProtocol(IPv4.PROTOCOL_UDP);
+			ip.setSourceAddress("10.0.0.2");
+			ip.setDestinationAddress("10.0." + dstIface + ".2");
+			ip.setPayload(udp);
+			Ethernet ether = new Ethernet();
+			ether.setEtherType(Ethernet.TYPE_IPv4);
+			ether.setSourceMACAddress(MACAddress.valueOf(0x020000000200L)
+					.toBytes());
+			ether.setDestinationMACAddress(inIface.getMacAddress().toBytes());
+			ether.setPayload(ip);
+			frames[flow] = ByteBuffer.wrap(ether.serialize());
+		}
+		return frames;
+	}
+}
@@ -0,0 +1,159 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DumpFile;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A virtual link that joins an interface of one device directly to an
+ * interface of another device on the same host. Frames sent on the
+ * interface go into a ring in shared memory, which the other device reads,
+ * instead of through the server; frames the other device sends are read
+ * from a second ring. The frames are logged like those exchanged with the
+ * server.
+ */
+public class SharedLink
+{
+	/** Device that owns the interface */
+	private final Device device;
+
+	/** Connection through which received frames reach the device */
+	private final VNSComm vnsComm;
+
+	/** The interface joined by the link */
+	private final Iface iface;
+
+	/** Ring into which frames sent on the interface go */
+	private final MappedRing transmitRing;
+
+	/** Ring from which frames received on the interface come */
+	private final MappedRing receiveRing;
+
+	/** Held while sending, since devices send from several threads */
+	private final Object sendLock;
+
+	private volatile long sent;
+	private volatile long received;
+	private volatile long dropped;
+
+	/**
+	 * @param device device that owns the interface
+	 * @param vnsComm the device's connection to the server
+	 * @param iface the interface joined by the link
+	 * @param transmitRing ring in which to put frames sent on the interface
+	 * @param receiveRing ring from which to take frames received on the
+	 *        interface
+	 */
+	SharedLink(Device device, VNSComm vnsComm, Iface iface,
+			MappedRing transmitRing, MappedRing receiveRing)
+	{
+		this.device = device;
+		this.vnsComm = vnsComm;
+		this.iface = iface;
+		this.transmitRing = transmitRing;
+		this.receiveRing = receiveRing;
+		this.sendLock = new Object();
+	}
+
+	/**
+	 * @return the interface joined by the link
+	 */
+	public Iface getIface()
+	{ return this.iface; }
+
+	/**
+	 * Send a raw frame over the link. Like a real link, the link drops the
+	 * frame if the other device is not keeping up.
+	 * @param frame buffer whose remaining bytes are the frame; its position
+	 *        and limit are left unchanged
+	 * @return true if the frame was sent, false if it was dropped
+	 */
+	boolean send(ByteBuffer frame)
+	{
+		synchronized (this.sendLock)
+		{ return this.sent(this.transmitRing.offer(frame)); }
+	}
+
+	/**
+	 * Serialize a frame directly into the link's ring and send it.
+	 * @param etherPacket the frame
+	 * @return true if the frame was sent, false if it was dropped
+	 */
+	boolean send(Ethernet etherPacket)
+	{
+		synchronized (this.sendLock)
+		{
+			ByteBuffer room = this.transmitRing.claim(
+					etherPacket.getSerializedLength());
+			if (null == room)
+			{ return this.sent(false); }
+			int start = room.position();
+			etherPacket.serializeInto(room);
+
+			// Log packet
+			DumpFile logFile = this.device.getLogFile();
+			if (logFile != null)
+			{
+				room.position(start);
+				logFile.dump(room);
+			}
+
+			this.transmitRing.publish();
+			return this.sent(true);
+		}
+	}
+
+	/**
+	 * Count a frame sent or dropped. Must be called while holding the send
+	 * lock.
+	 */
+	private boolean sent(boolean queued)
+	{
+		if (queued)
+		{ this.sent++; }
+		else
+		{ this.dropped++; }
+		return queued;
+	}
+
+	/**
+	 * Pass frames waiting in the receive ring to the device. Only the
+	 * thread polling the link may call this.
+	 * @param max largest number of frames to pass
+	 * @return number of frames passed
+	 */
+	int poll(int max)
+	{
+		int count = 0;
+		ByteBuffer frame;
+		while (count < max && (frame = this.receiveRing.peek()) != null)
+		{
+			try
+			{ this.vnsComm.receiveFromLink(frame, this.iface); }
+			catch (RuntimeException e)
+			{ e.printStackTrace(); }
+			this.receiveRing.release();
+			count++;
+		}
+		if (count > 0)
+		{ this.received += count; }
+		return count;
+	}
+
+	/**
+	 * Throw away frames sent to the device before it attached to the link.
+	 */
+	void discardReceived()
+	{ this.receiveRing.discard(); }
+
+	public String toString()
+	{
+		return String.format("Shared link on %s.%s: %d sent, %d received, "
+				+ "%d dropped", this.device.getHost(), this.iface.getName(),
+				this.sent, this.received, this.dropped);
+	}
+}
@@ -0,0 +1,290 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Shared-memory links between devices on the same host, in the same process
+ * or not. Each link joins two interfaces through two {@link MappedRing}s,
+ * one per direction, so frames between the devices skip the server and the
+ * switches it drives; the devices still open their sessions and receive
+ * their interfaces from the server, and their other interfaces still send
+ * through it.
+ * <p>
+ * Links are listed in a file, one per line:
+ * <pre>
+ * host iface peer_host peer_iface
+ * </pre>
+ * e.g., "r1 eth1 r2 eth1". Both devices read the same file, and each
+ * attaches the links it appears in. The ring carrying frames from host's
+ * iface to peer_host's peer_iface is the file host.iface-peer_host.peer_iface
+ * in the ring directory. One thread polls the links of every device attached
+ * in the process.
+ */
+public class SharedLinks
+{
+	/** Default size of each ring */
+	public static final int DEFAULT_RING_SIZE = 1024 * 1024;
+
+	/** Largest number of frames taken from one link at a time */
+	private static final int POLL_BATCH = 64;
+
+	/** Number of empty polls after which the polling thread parks */
+	private static final int SPIN_LIMIT = 1000;
+
+	/** Longest time the polling thread parks before checking the links */
+	private static final long IDLE_PARK_NANOS = 50000;
+
+	/** Links listed in the file, as {host, iface, peer_host, peer_iface} */
+	private final List<String[]> entries;
+
+	/** Directory holding the rings */
+	private final File ringDir;
+
+	/** Size of each ring */
+	private final int ringSize;
+
+	/** Links attached so far; replaced whenever a link is attached */
+	private volatile SharedLink[] links;
+
+	/** Connections of the devices owning each attached link */
+	private volatile VNSComm[] connections;
+
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * @param ringDir directory in which to keep the rings; null for the
+	 *        default, /dev/shm if it exists
+	 * @param ringSize size of each ring
+	 */
+	public SharedLinks(String ringDir, int ringSize)
+	{
+		this.entries = new ArrayList<String[]>();
+		this.ringDir = new File((ringDir != null) ? ringDir : defaultRingDir());
+		this.ringSize = ringSize;
+		this.links = new SharedLink[0];
+		this.connections = new VNSComm[0];
+	}
+
+	private static String defaultRingDir()
+	{
+		File shm = new File("/dev/shm");
+		if (shm.isDirectory())
+		{ return shm.getPath(); }
+		return System.getProperty("java.io.tmpdir");
+	}
+
+	/**
+	 * Read the links listed in a file.
+	 * @param filename name of the file
+	 * @return true if the links were read successfully, otherwise false
+	 */
+	public boolean load(String filename)
+	{
+		BufferedReader reader;
+		try
+		{ reader = new BufferedReader(new FileReader(filename)); }
+		catch (FileNotFoundException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{ continue; }
+				String[] fields = line.split("\\s+");
+				if (fields.length != 4)
+				{
+					System.err.println("Invalid entry in link file: " + line);
+					return false;
+				}
+				this.entries.add(fields);
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		finally
+		{
+			try { reader.close(); } catch (IOException e) { }
+		}
+		return true;
+	}
+
+	/**
+	 * Attach the links a device appears in. Must be called once the device
+	 * has received its interfaces from the server.
+	 * @param device the device
+	 * @param vnsComm the device's connection to the server
+	 * @return number of links attached; -1 if a ring could not be opened
+	 */
+	public synchronized int attach(Device device, VNSComm vnsComm)
+	{
+		String host = device.getHost();
+		List<SharedLink> attached = new ArrayList<SharedLink>();
+		for (String[] entry : this.entries)
+		{
+			String ifaceName, peer;
+			if (entry[0].equals(host))
+			{
+				ifaceName = entry[1];
+				peer = entry[2] + "." + entry[3];
+			}
+			else if (entry[2].equals(host))
+			{
+				ifaceName = entry[3];
+				peer = entry[0] + "." + entry[1];
+			}
+			else
+			{ continue; }
+
+			Iface iface = device.getInterface(ifaceName);
+			if (null == iface)
+			{
+				System.err.println("Link names unknown interface " + host
+						+ "." + ifaceName);
+				continue;
+			}
+
+			String local = host + "." + ifaceName;
+			try
+			{
+				MappedRing transmitRing = MappedRing.open(
+						this.ringPath(local, peer), this.ringSize);
+				MappedRing receiveRing = MappedRing.open(
+						this.ringPath(peer, local), this.ringSize);
+				SharedLink link = new SharedLink(device, vnsComm, iface,
+						transmitRing, receiveRing);
+				link.discardReceived();
+				attached.add(link);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				return -1;
+			}
+		}
+
+		for (SharedLink link : attached)
+		{ vnsComm.addSharedLink(link); }
+		int count = this.links.length;
+		SharedLink[] links = new SharedLink[count + attached.size()];
+		VNSComm[] connections = new VNSComm[links.length];
+		System.arraycopy(this.links, 0, links, 0, count);
+		System.arraycopy(this.connections, 0, connections, 0, count);
+		for (SharedLink link : attached)
+		{
+			connections[count] = vnsComm;
+			links[count++] = link;
+		}
+		this.connections = connections;
+		this.links = links;
+		return attached.size();
+	}
+
+	private Path ringPath(String from, String to)
+	{ return Paths.get(this.ringDir.getPath(), from + "-" + to); }
+
+	/**
+	 * @return links attached so far
+	 */
+	public SharedLink[] getLinks()
+	{ return this.links.clone(); }
+
+	/**
+	 * Start polling the attached links for frames.
+	 */
+	public synchronized void start()
+	{
+		if (this.thread != null)
+		{ return; }
+		this.running = true;
+		this.thread = new Thread(new Runnable() {
+			public void run()
+			{ poll(); }
+		}, "Shared link poller");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stop polling the links.
+	 */
+	public void stop()
+	{
+		Thread thread;
+		synchronized (this)
+		{
+			thread = this.thread;
+			this.thread = null;
+		}
+		if (null == thread)
+		{ return; }
+		this.running = false;
+		LockSupport.unpark(thread);
+		try
+		{ thread.join(); }
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Body of the polling thread: pass frames from every link to its device,
+	 * spinning briefly and then parking while the links are idle.
+	 */
+	private void poll()
+	{
+		int idle = 0;
+		while (this.running)
+		{
+			SharedLink[] links = this.links;
+			VNSComm[] connections = this.connections;
+			boolean received = false;
+			for (int i = 0; i < links.length; i++)
+			{
+				if (links[i].poll(POLL_BATCH) > 0)
+				{
+					// Write what the device sent to the server in response
+					connections[i].flush();
+					received = true;
+				}
+			}
+
+			if (received)
+			{ idle = 0; }
+			else if (++idle < SPIN_LIMIT)
+			{ Thread.onSpinWait(); }
+			else
+			{ LockSupport.parkNanos(IDLE_PARK_NANOS); }
+		}
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Shared links in %s:", this.ringDir));
+		for (SharedLink link : this.links)
+		{ sb.append("\n  ").append(link); }
+		return sb.toString();
+	}
+}
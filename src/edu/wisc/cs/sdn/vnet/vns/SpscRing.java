@@ -0,0 +1,151 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Bounded single-producer, single-consumer ring of preallocated slots. The
+ * producer claims the next free slot, fills it in and publishes it; the
+ * consumer peeks at the oldest published slot, processes it and releases it.
+ * Neither side locks or allocates: each side only advances its own index and
+ * publishes it with an ordered store.
+ * @param <T> type of the slots
+ */
+public class SpscRing<T>
+{
+	/** Slots in the ring; reused for the life of the ring */
+	private final T[] slots;
+
+	/** Mask for turning an index into a slot number */
+	private final int mask;
+
+	/** Index of the next slot to be released by the consumer */
+	private final AtomicLong head;
+
+	/** Index of the next slot to be published by the producer */
+	private final AtomicLong tail;
+
+	/** Producer's most recent view of the head index */
+	private long cachedHead;
+
+	/** Consumer's most recent view of the tail index */
+	private long cachedTail;
+
+	/** Largest number of slots that have been in use at once */
+	private volatile int highWater;
+
+	/** Consumer thread to wake when a slot is published; null if none */
+	private volatile Thread waiter;
+
+	/**
+	 * Create an empty ring.
+	 * @param capacity number of slots; rounded up to a power of two
+	 * @param factory creates the slots
+	 */
+	@SuppressWarnings("unchecked")
+	public SpscRing(int capacity, Supplier<T> factory)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.slots = (T[])new Object[size];
+		for (int i = 0; i < size; i++)
+		{ this.slots[i] = factory.get(); }
+		this.mask = size - 1;
+		this.head = new AtomicLong();
+		this.tail = new AtomicLong();
+	}
+
+	/**
+	 * Get the next free slot. Only the producer may call this.
+	 * @return the slot to fill in; null if the ring is full
+	 */
+	public T claim()
+	{
+		long t = this.tail.get();
+		if (t - this.cachedHead >= this.slots.length)
+		{
+			this.cachedHead = this.head.get();
+			if (t - this.cachedHead >= this.slots.length)
+			{ return null; }
+		}
+		return this.slots[(int)t & this.mask];
+	}
+
+	/**
+	 * Make the slot returned by the last call to {@link #claim()} visible to
+	 * the consumer. Only the producer may call this.
+	 */
+	public void publish()
+	{
+		long t = this.tail.get() + 1;
+		this.tail.lazySet(t);
+		int used = (int)(t - this.cachedHead);
+		if (used > this.highWater)
+		{ this.highWater = used; }
+
+		Thread waiter = this.waiter;
+		if (waiter != null)
+		{ LockSupport.unpark(waiter); }
+	}
+
+	/**
+	 * Get the oldest published slot. Only the consumer may call this.
+	 * @return the slot to process; null if the ring is empty
+	 */
+	public T peek()
+	{
+		long h = this.head.get();
+		if (h >= this.cachedTail)
+		{
+			this.cachedTail = this.tail.get();
+			if (h >= this.cachedTail)
+			{ return null; }
+		}
+		return this.slots[(int)h & this.mask];
+	}
+
+	/**
+	 * Return the slot returned by the last call to {@link #peek()} to the
+	 * producer. Only the consumer may call this.
+	 */
+	public void release()
+	{ this.head.lazySet(this.head.get() + 1); }
+
+	/**
+	 * @return true if no slots are published
+	 */
+	public boolean isEmpty()
+	{ return this.head.get() >= this.tail.get(); }
+
+	/**
+	 * Set the thread to wake whenever a slot is published. The consumer sets
+	 * itself before parking and clears it after waking.
+	 * @param waiter the thread to wake; null for none
+	 */
+	public void setWaiter(Thread waiter)
+	{ this.waiter = waiter; }
+
+	/**
+	 * @return number of slots in the ring
+	 */
+	public int getCapacity()
+	{ return this.slots.length; }
+
+	/**
+	 * @return number of slots published since the ring was created
+	 */
+	public long getPublished()
+	{ return this.tail.get(); }
+
+	/**
+	 * @return largest number of slots that have been in use at once
+	 */
+	public int getHighWater()
+	{ return this.highWater; }
+
+	public String toString()
+	{
+		return String.format("%d published, high water %d/%d",
+				this.getPublished(), this.getHighWater(), this.getCapacity());
+	}
+}
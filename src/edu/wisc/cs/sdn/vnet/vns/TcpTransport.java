@@ -0,0 +1,38 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reaches the server over TCP.
+ */
+public class TcpTransport implements Transport
+{
+	private final String server;
+	private final short port;
+
+	/**
+	 * @param server name or address of the server's host
+	 * @param port port on which the server listens
+	 */
+	public TcpTransport(String server, short port)
+	{
+		this.server = server;
+		this.port = port;
+	}
+
+	public SocketChannel connect() throws IOException
+	{
+		InetAddress addr = InetAddress.getByName(this.server);
+		SocketChannel channel = SocketChannel.open(
+				new InetSocketAddress(addr, this.port));
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		return channel;
+	}
+
+	public String toString()
+	{ return String.format("%s:%d", this.server, this.port); }
+}
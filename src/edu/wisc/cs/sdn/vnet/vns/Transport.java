@@ -0,0 +1,17 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A way of reaching the server. Whatever the transport, the connection is a
+ * stream carrying the same commands.
+ */
+public interface Transport
+{
+	/**
+	 * Connect to the server.
+	 * @return a connected channel, in blocking mode
+	 */
+	SocketChannel connect() throws IOException;
+}
@@ -1,45 +1,228 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 public class VNSComm 
 {
-	private Socket socket;
+	/** Size of the buffer into which commands are read from the server */
+	public static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+
+	/** Size of the buffer in which packet commands wait to be written */
+	public static final int SEND_BUFFER_SIZE = 64 * 1024;
+	
+	/** Number of buffered bytes at which commands are written immediately */
+	public static final int FLUSH_THRESHOLD = 32 * 1024;
+	
+	/** Default time a command may wait in the send buffer, in microseconds */
+	public static final long DEFAULT_FLUSH_DEADLINE = 200;
+
+	/** Most bytes that may wait for an event loop to write them before
+	 * further commands are dropped */
+	public static final int MAX_UNWRITTEN = 1024 * 1024;
+
+	/** Largest command accepted from the server */
+	private static final int MAX_COMMAND_SIZE = 10000;
+	
+	/** Returned when the receive buffer holds no complete command */
+	private static final int NO_COMMAND = 0;
+
+	private SocketChannel channel;
 	private Device device;
+
+	/** Used to wait until the channel has bytes to read */
+	private Selector readSelector;
+
+	/** Used to wait until the channel can accept more bytes */
+	private Selector writeSelector;
+	
+	/** Encoded name of each interface, as sent in packet commands */
+	private Map<String,byte[]> ifaceNames;
+
+	/** Bytes read from the server; those between the position and the
+	 * limit have not been dispatched yet */
+	private final ByteBuffer receiveBuffer;
+
+	/** View of the receive buffer, positioned on each frame in turn */
+	private final ByteBuffer frameView;
+
+	/** Commands built for sending that have not been written yet */
+	private final ByteBuffer sendBuffer;
+	
+	/** View of the send buffer used to log frames built in it */
+	private final ByteBuffer sendView;
+	
+	/** Buffers passed to gathering writes */
+	private final ByteBuffer[] gather;
+
+	/** Held while building and writing a command to the server */
+	private final Object sendLock;
+	
+	/** Whether the send buffer holds commands that have not been written */
+	private volatile boolean sendPending;
+	
+	/** Time at which the oldest unwritten command was buffered */
+	private volatile long sendPendingSince;
+	
+	/** Longest time a command may wait in the send buffer, in nanoseconds */
+	private volatile long flushDeadline;
+	
+	/** Thread that reads from the server; it flushes its own sends */
+	private volatile Thread readerThread;
+	
+	/** Pipeline through which packets are processed and sent; null to
+	 * process packets on the reading thread and send them directly */
+	private volatile PacketPipeline pipeline;
+	
+	/** Event loop that reads from the server and writes commands whose
+	 * deadline has passed; null if the device's own threads do */
+	private final EventLoop eventLoop;
+	
+	/** Number of buffered bytes at which commands are written immediately */
+	private final int flushThreshold;
+	
+	/** Key of the connection in its event loop's selector; null until the
+	 * loop serves the connection, until when writes block */
+	private volatile SelectionKey loopKey;
+	
+	/** Bytes the channel did not accept, which the event loop writes once
+	 * the channel is writable; guarded by the send lock */
+	private final ArrayDeque<ByteBuffer> unwritten;
+	
+	/** Number of bytes in the unwritten buffers; guarded by the send lock */
+	private int unwrittenBytes;
+	
+	/** Whether the connection was closed; guarded by the send lock */
+	private boolean closed;
+	
+	/** Shared-memory links joining the device's interfaces directly to 
+	 * other devices, by interface name */
+	private final Map<String,SharedLink> sharedLinks;
+	
+	/** Whether any interface has a shared link */
+	private volatile boolean linked;
+	
+	/** Held while passing a received frame on, once frames arrive both from
+	 * the server and from shared links */
+	private final Object receiveLock;
 	
 	public VNSComm(Device device)
+	{ this(device, null); }
+	
+	/**
+	 * Create a connection for a device.
+	 * @param device the device
+	 * @param eventLoop event loop that will serve the connection, which 
+	 *        also supplies its buffers; null to read from the server with
+	 *        {@link #readFromServer()} instead
+	 */
+	public VNSComm(Device device, EventLoop eventLoop)
 	{ 
 		this.device = device;
 		this.device.setVNSComm(this);
+		this.eventLoop = eventLoop;
+		this.ifaceNames = new ConcurrentHashMap<String,byte[]>();
+		if (eventLoop != null)
+		{
+			BufferPool pool = eventLoop.getBufferPool();
+			if (pool.getBufferSize() < 2 * MAX_COMMAND_SIZE)
+			{ throw new IllegalArgumentException("Pool buffers are too small"); }
+			this.receiveBuffer = pool.acquire();
+			this.sendBuffer = pool.acquire();
+		}
+		else
+		{
+			this.receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+			this.sendBuffer = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+		}
+		this.receiveBuffer.limit(0);
+		this.frameView = this.receiveBuffer.duplicate();
+		this.sendView = this.sendBuffer.duplicate();
+		this.flushThreshold = Math.min(FLUSH_THRESHOLD, 
+				this.sendBuffer.capacity() / 2);
+		this.gather = new ByteBuffer[2];
+		this.unwritten = new ArrayDeque<ByteBuffer>();
+		this.sendLock = new Object();
+		this.closed = false;
+		this.sharedLinks = new ConcurrentHashMap<String,SharedLink>();
+		this.receiveLock = new Object();
+		this.setFlushDeadline(DEFAULT_FLUSH_DEADLINE);
+	}
+	
+	/**
+	 * Set how long a command sent by the device may wait in the send buffer
+	 * for more commands to be written with it.
+	 * @param micros the deadline in microseconds; 0 writes each command as
+	 *        soon as it is sent
+	 */
+	public void setFlushDeadline(long micros)
+	{ this.flushDeadline = TimeUnit.MICROSECONDS.toNanos(micros); }
+	
+	/**
+	 * @param pipeline pipeline through which to process and send packets;
+	 *        null to process packets on the reading thread
+	 */
+	void setPipeline(PacketPipeline pipeline)
+	{ this.pipeline = pipeline; }
+	
+	/**
+	 * Send and receive frames on an interface through a shared link instead
+	 * of the server.
+	 * @param link the link
+	 */
+	void addSharedLink(SharedLink link)
+	{
+		this.sharedLinks.put(link.getIface().getName(), link);
+		this.linked = true;
+	}
+	
+	/**
+	 * @param ifaceName name of an interface
+	 * @return the interface's shared link; null if it has none
+	 */
+	private SharedLink linkFor(String ifaceName)
+	{
+		if (!this.linked)
+		{ return null; }
+		return this.sharedLinks.get(ifaceName);
 	}
 	
 	public boolean connectToServer(short port, String server)
+	{ return this.connectToServer(new TcpTransport(server, port)); }
+	
+	/**
+	 * Connect to the server and open a session for the device.
+	 * @param transport how to reach the server
+	 * @return true if the session was opened, otherwise false
+	 */
+	public boolean connectToServer(Transport transport)
 	{
-		// Grab server address from name
-		InetAddress addr;
+		// Create channel and attempt to connect to the server
 		try 
-		{ addr = InetAddress.getByName(server); }
-		catch (UnknownHostException e) 
 		{
-			e.printStackTrace();
-			return false;
+			this.channel = transport.connect();
+			this.channel.configureBlocking(false);
+			this.readSelector = Selector.open();
+			this.channel.register(this.readSelector, SelectionKey.OP_READ);
+			this.writeSelector = Selector.open();
+			this.channel.register(this.writeSelector, SelectionKey.OP_WRITE);
 		}
-		
-		// Create socket and attempt to connect to the server
-		try 
-		{ socket = new Socket(addr, port); }
 		catch (IOException e) 
 		{
 			e.printStackTrace();
@@ -53,9 +236,8 @@ public class VNSComm
 		
 		try
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+			synchronized (this.sendLock)
+			{ this.writeFully(ByteBuffer.wrap(buf)); }
 		}
 		catch(IOException e)
 		{
@@ -63,9 +245,70 @@ public class VNSComm
 			return false;
 		}
 		
+		// Write commands sent from other threads once their deadline passes;
+		// an event loop does this for all the connections it serves
+		if (null == this.eventLoop)
+		{
+			Thread flusher = new Thread(new Runnable() {
+				public void run()
+				{ flushOnDeadline(); }
+			}, "VNSComm flusher");
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+		
 		return true; 
 	}
 	
+	/**
+	 * Let an event loop's selector tell when the connection is readable, and
+	 * when it is writable while the loop has bytes to write. The 
+	 * connection's own read selector is no longer needed afterwards.
+	 * @param selector the event loop's selector
+	 */
+	void registerWith(Selector selector) throws IOException
+	{
+		this.loopKey = this.channel.register(selector, SelectionKey.OP_READ,
+				this);
+		this.readSelector.close();
+	}
+	
+	/**
+	 * Close the connection to the server. Buffers taken from an event loop's
+	 * pool are returned to it; packets the device sends afterwards are 
+	 * dropped.
+	 */
+	public void close()
+	{
+		synchronized (this.sendLock)
+		{
+			if (this.closed)
+			{ return; }
+			this.closed = true;
+			try
+			{
+				if (this.channel != null && this.channel.isOpen())
+				{ this.flushBuffered(); }
+			}
+			catch (IOException e)
+			{ }
+			if (this.channel != null)
+			{
+				try { this.channel.close(); } catch (IOException e) { }
+				try { this.readSelector.close(); } catch (IOException e) { }
+				try { this.writeSelector.close(); } catch (IOException e) { }
+			}
+			this.unwritten.clear();
+			this.unwrittenBytes = 0;
+			this.sendLock.notifyAll();
+			if (this.eventLoop != null)
+			{
+				this.eventLoop.getBufferPool().release(this.receiveBuffer);
+				this.eventLoop.getBufferPool().release(this.sendBuffer);
+			}
+		}
+	}
+	
 	private boolean handleHwInfo(CommandHwInfo cmdHwInfo)
 	{
 		Iface lastIface = null;
@@ -108,73 +351,52 @@ public class VNSComm
 	
 	public boolean readFromServerExpect(int expectedCmd)
 	{
-		int bytesRead = 0;
-		InputStream inStream = null;
-		
-		// Get input stream
-		try 
-		{ inStream = this.socket.getInputStream(); } 
-		catch (IOException e) 
-		{
-			e.printStackTrace();
-			return false;
-		}
-		
-		// Attempt to read the size of the incoming packet
-		byte[] lenBytes = new byte[4];
-		while (bytesRead < 4)
-		{
-			try 
-			{
-				int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				return false;
-			}
-		}
-		
-		int len = ByteBuffer.wrap(lenBytes).getInt();
+		// Wait for a complete command to be in the receive buffer
+		int len = this.nextCommand();
+		if (len < 0)
+		{ return false; }
+		return this.dispatchCommand(len, expectedCmd);
+	}
+	
+	/**
+	 * Handle every command that can be read from the server without
+	 * waiting, then write what the device sent while handling them. Called
+	 * by the event loop serving the connection when it is readable.
+	 * @return false if the connection failed or was closed by the server
+	 */
+	boolean readAvailable()
+	{
+		this.readerThread = Thread.currentThread();
+		if (this.receive(false) < 0)
+		{ return false; }
 		
-		if (len > 10000 || len < 0)
+		int len;
+		while ((len = this.bufferedCommand()) != NO_COMMAND)
 		{
-			System.err.println(String.format(
-					"Error: comamnd length too large %d", len));
-			try { socket.close(); } catch (IOException e) { }
-			return false;
+			if (len < 0)
+			{ return false; }
+			this.dispatchCommand(len, 0);
 		}
 		
-		// Allocate buffer
-		ByteBuffer buf = ByteBuffer.allocate(len);
-		
-		// Set first field of command since we've already read it
-		buf.putInt(len);
-		
-		// Read the rest of the command
-		while (bytesRead < len)
-		{
-			try 
-			{
-				int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-				if (ret < 0)
-				{ throw new Exception(); }
-				bytesRead += ret;
-			} 
-			catch (Exception e) 
-			{
-				e.printStackTrace();
-				System.err.println("Error: failed reading command body");
-				try { socket.close(); } catch (IOException e2) { }
-				return false;
-			}
-		}
+		if (this.sendPending)
+		{ this.flush(); }
+		return true;
+	}
+	
+	/**
+	 * Handle the command at the start of the receive buffer.
+	 * @param len length of the command
+	 * @param expectedCmd type of command expected; 0 for any
+	 * @return false if the command was not of the expected type
+	 */
+	private boolean dispatchCommand(int len, int expectedCmd)
+	{
+		int start = this.receiveBuffer.position();
+		int end = start + len;
+		this.receiveBuffer.position(end);
 		
 		// Make sure the command is what we expected if we were expecting something
-		int command = buf.getInt();
+		int command = this.receiveBuffer.getInt(start + 4);
 		if (expectedCmd != 0 && command != expectedCmd)
 		{
 			if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
@@ -186,22 +408,32 @@ public class VNSComm
 			}
 		}
 		
+		if (Command.VNS_PACKET == command)
+		{
+			// Point the frame view at the frame that follows the header
+			this.frameView.limit(end);
+			this.frameView.position(start + CommandPacket.HEADER_SIZE);
+			Iface inIface = this.findInterface(this.frameView, start + 8);
+			if (this.linked)
+			{
+				synchronized (this.receiveLock)
+				{ this.deliver(this.frameView, inIface); }
+			}
+			else
+			{ this.deliver(this.frameView, inIface); }
+			return true;
+		}
+
+		// Decoded commands may refer to the bytes they were decoded from, so
+		// copy the command out of the receive buffer, which will be reused
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		this.frameView.limit(end);
+		this.frameView.position(start);
+		buf.put(this.frameView);
 		buf.position(0);
+
 		switch(command)
 		{
-		case Command.VNS_PACKET:
-			CommandPacket cmdPkt = new CommandPacket();
-			cmdPkt.deserialize(buf);
-			
-			// Log packet
-            if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
-			
-			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
-			break;
-			
 		case Command.VNS_CLOSE:
 			System.err.println("VNS server closed session.");
 			CommandClose cmdClose = new CommandClose();
@@ -222,6 +454,411 @@ public class VNSComm
 
 		return true;
 	}
+
+	/**
+	 * Pass a received frame to the pipeline, if any, otherwise to the device.
+	 * @param frame buffer whose remaining bytes are the frame; it may be
+	 *        reused once this returns
+	 * @param inIface interface on which the frame was received
+	 */
+	private void deliver(ByteBuffer frame, Iface inIface)
+	{
+		PacketPipeline pipeline = this.pipeline;
+		if (pipeline != null)
+		{ pipeline.receive(frame, inIface); }
+		else
+		{ this.receivePacket(frame, inIface); }
+	}
+	
+	/**
+	 * Pass a frame received on a shared link to the pipeline, if any,
+	 * otherwise to the device. Called by the thread polling the link.
+	 * @param frame buffer whose remaining bytes are the frame; it may be
+	 *        reused once this returns
+	 * @param inIface interface on which the frame was received
+	 */
+	void receiveFromLink(ByteBuffer frame, Iface inIface)
+	{
+		synchronized (this.receiveLock)
+		{ this.deliver(frame, inIface); }
+	}
+	
+	/**
+	 * Log a received frame and pass it to the device: as a raw frame if the
+	 * device can handle it that way, otherwise decoded.
+	 * @param frame buffer whose remaining bytes are the frame; it may be
+	 *        reused once this returns
+	 * @param inIface interface on which the frame was received; null if
+	 *        the device has no such interface
+	 */
+	void receivePacket(ByteBuffer frame, Iface inIface)
+	{
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(frame); }
+        
+        // Let the device handle the raw frame if it can
+        int position = frame.position();
+        if (inIface != null && this.device.handleRawPacket(frame, inIface))
+        { return; }
+        frame.position(position);
+        
+        // Decoded packets may refer to the bytes they were decoded from, so
+        // copy the frame out of the buffer, which will be reused
+        byte[] data = new byte[frame.remaining()];
+        frame.get(data);
+        Ethernet etherPacket = new Ethernet();
+        etherPacket.deserialize(data, 0, data.length);
+        
+        // Pass to device, student's code should take over here
+        this.device.handlePacket(etherPacket, inIface);
+	}
+	
+	/**
+	 * Make sure a complete command is in the receive buffer, reading from
+	 * the server as needed. A read may return part of a command or several
+	 * commands; bytes beyond the first command stay in the buffer for the
+	 * following calls.
+	 * @return length of the command, which starts at the receive buffer's
+	 *         position; -1 if the command could not be read
+	 */
+	private int nextCommand()
+	{
+		this.readerThread = Thread.currentThread();
+		
+		// Write commands the device has sent if they have waited long enough
+		this.flushIfDue(System.nanoTime());
+		
+		while (true)
+		{
+			// Check whether the buffer already holds a complete command
+			int len = this.bufferedCommand();
+			if (len != NO_COMMAND)
+			{ return len; }
+
+			// This is the end of the batch of commands received so far, so
+			// write everything the device sent while handling them
+			if (this.sendPending)
+			{ this.flush(); }
+			
+			if (this.receive(true) < 0)
+			{ return -1; }
+		}
+	}
+	
+	/**
+	 * Check whether the receive buffer holds a complete command.
+	 * @return length of the command, which starts at the receive buffer's
+	 *         position; NO_COMMAND if the command is incomplete; -1 if the
+	 *         command is invalid, in which case the connection is closed
+	 */
+	private int bufferedCommand()
+	{
+		int available = this.receiveBuffer.remaining();
+		if (available < 4)
+		{ return NO_COMMAND; }
+		int len = this.receiveBuffer.getInt(this.receiveBuffer.position());
+		if (len > MAX_COMMAND_SIZE || len < 8)
+		{
+			System.err.println(String.format("Error: command length too %s %d",
+					(len < 8) ? "small" : "large", len));
+			try { this.channel.close(); } catch (IOException e) { }
+			return -1;
+		}
+		return (available >= len) ? len : NO_COMMAND;
+	}
+	
+	/**
+	 * Move any partial command to the front of the receive buffer and read
+	 * more bytes after it.
+	 * @param block whether to wait until there are bytes to read
+	 * @return number of bytes read; -1 if the read failed or the server 
+	 *         closed the connection, in which case the channel is closed
+	 */
+	private int receive(boolean block)
+	{
+		this.receiveBuffer.compact();
+		try
+		{
+			int ret;
+			while (0 == (ret = this.channel.read(this.receiveBuffer)) && block)
+			{
+				this.readSelector.select();
+				this.readSelector.selectedKeys().clear();
+			}
+			if (ret < 0)
+			{ throw new IOException("Connection closed by server"); }
+			return ret;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			System.err.println("Error: failed reading command");
+			try { this.channel.close(); } catch (IOException e2) { }
+			return -1;
+		}
+		finally
+		{ this.receiveBuffer.flip(); }
+	}
+
+	/**
+	 * Write all remaining bytes in a buffer to the server, waiting for the
+	 * channel to accept more bytes whenever its send buffer is full. Once an
+	 * event loop serves the connection nothing waits: bytes the channel does
+	 * not accept are left for the loop to write. Must be called while 
+	 * holding the send lock.
+	 * @param bb buffer to write
+	 */
+	private void writeFully(ByteBuffer bb) throws IOException
+	{
+		if (this.loopKey != null)
+		{
+			this.checkUnwritten();
+			if (this.unwritten.isEmpty())
+			{ while (bb.hasRemaining() && this.channel.write(bb) > 0) { } }
+			this.keepUnwritten(bb);
+			return;
+		}
+		
+		while (bb.hasRemaining())
+		{
+			if (0 == this.channel.write(bb))
+			{
+				this.writeSelector.select();
+				this.writeSelector.selectedKeys().clear();
+			}
+		}
+	}
+	
+	/**
+	 * Write all remaining bytes in several buffers to the server with
+	 * gathering writes. Must be called while holding the send lock.
+	 * @param bbs buffers to write, in order
+	 */
+	private void writeFully(ByteBuffer[] bbs) throws IOException
+	{
+		ByteBuffer last = bbs[bbs.length - 1];
+		if (this.loopKey != null)
+		{
+			this.checkUnwritten();
+			if (this.unwritten.isEmpty())
+			{ while (last.hasRemaining() && this.channel.write(bbs) > 0) { } }
+			for (ByteBuffer bb : bbs)
+			{ this.keepUnwritten(bb); }
+			return;
+		}
+		
+		while (last.hasRemaining())
+		{
+			if (0 == this.channel.write(bbs))
+			{
+				this.writeSelector.select();
+				this.writeSelector.selectedKeys().clear();
+			}
+		}
+	}
+	
+	/**
+	 * Make sure the event loop is not already behind by too many bytes to
+	 * take more. Checked before writing any part of a command, so commands
+	 * are dropped whole. Must be called while holding the send lock.
+	 */
+	private void checkUnwritten() throws IOException
+	{
+		if (this.unwrittenBytes >= MAX_UNWRITTEN)
+		{ throw new IOException("Too many bytes waiting to be written"); }
+	}
+	
+	/**
+	 * Copy the bytes remaining in a buffer for the event loop to write once
+	 * the channel is writable. Must be called while holding the send lock.
+	 * @param bb buffer whose remaining bytes were not written; they are 
+	 *        consumed
+	 */
+	private void keepUnwritten(ByteBuffer bb) throws IOException
+	{
+		if (!bb.hasRemaining())
+		{ return; }
+		ByteBuffer copy = ByteBuffer.allocate(bb.remaining());
+		copy.put(bb);
+		copy.flip();
+		if (this.unwritten.isEmpty())
+		{
+			try
+			{
+				this.loopKey.interestOps(SelectionKey.OP_READ 
+						| SelectionKey.OP_WRITE);
+			}
+			catch (CancelledKeyException e)
+			{ throw new IOException("Connection closed"); }
+			this.eventLoop.wakeup();
+		}
+		this.unwritten.add(copy);
+		this.unwrittenBytes += copy.capacity();
+	}
+	
+	/**
+	 * Write bytes the channel did not accept earlier, as far as the channel
+	 * accepts them now. Called by the event loop serving the connection when
+	 * it is writable.
+	 * @return false if the write failed
+	 */
+	boolean writeAvailable()
+	{
+		synchronized (this.sendLock)
+		{
+			try
+			{
+				ByteBuffer bb;
+				while ((bb = this.unwritten.peek()) != null)
+				{
+					this.channel.write(bb);
+					if (bb.hasRemaining())
+					{ return true; }
+					this.unwritten.poll();
+					this.unwrittenBytes -= bb.capacity();
+				}
+				this.loopKey.interestOps(SelectionKey.OP_READ);
+			}
+			catch (IOException e)
+			{
+				System.err.println("Error writing packet");
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Write all buffered commands to the server.
+	 * @return true if the commands were written successfully, otherwise false
+	 */
+	public boolean flush()
+	{
+		try
+		{
+			synchronized (this.sendLock)
+			{
+				if (!this.closed)
+				{ this.flushBuffered(); }
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Write buffered commands if the oldest has waited for the flush
+	 * deadline.
+	 * @param now the current value of {@link System#nanoTime()}
+	 * @return nanoseconds until the buffered commands are due to be written;
+	 *         Long.MAX_VALUE if there are none
+	 */
+	long flushIfDue(long now)
+	{
+		if (!this.sendPending)
+		{ return Long.MAX_VALUE; }
+		long wait = this.sendPendingSince + this.flushDeadline - now;
+		if (wait > 0)
+		{ return wait; }
+		this.flush();
+		return Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Write all buffered commands to the server. Must be called while
+	 * holding the send lock.
+	 */
+	private void flushBuffered() throws IOException
+	{
+		if (0 == this.sendBuffer.position())
+		{ return; }
+		this.sendBuffer.flip();
+		try
+		{ this.writeFully(this.sendBuffer); }
+		finally
+		{ this.sendBufferEmptied(); }
+	}
+	
+	/**
+	 * Reset the send buffer once its contents were written or discarded.
+	 * Must be called while holding the send lock.
+	 */
+	private void sendBufferEmptied()
+	{
+		this.sendBuffer.clear();
+		this.sendPending = false;
+	}
+	
+	/**
+	 * Account for a command added to the send buffer, writing the buffer if
+	 * it is full enough or deadlines are disabled. Must be called while
+	 * holding the send lock.
+	 */
+	private void commandBuffered() throws IOException
+	{
+		if (this.sendBuffer.position() >= this.flushThreshold
+				|| 0 == this.flushDeadline)
+		{
+			this.flushBuffered();
+			return;
+		}
+		if (!this.sendPending)
+		{
+			this.sendPendingSince = System.nanoTime();
+			this.sendPending = true;
+			
+			// The reader flushes its own commands at the end of each batch;
+			// commands from other threads are flushed by the flusher thread
+			// or the event loop
+			if (Thread.currentThread() != this.readerThread)
+			{
+				if (this.eventLoop != null)
+				{ this.eventLoop.wakeup(); }
+				else
+				{ this.sendLock.notify(); }
+			}
+		}
+	}
+	
+	/**
+	 * Body of the flusher thread: write buffered commands once the oldest
+	 * has waited for the flush deadline.
+	 */
+	private void flushOnDeadline()
+	{
+		while (this.channel.isOpen())
+		{
+			long waitTime;
+			synchronized (this.sendLock)
+			{
+				while (!this.sendPending)
+				{
+					if (this.closed)
+					{ return; }
+					try 
+					{ this.sendLock.wait(); }
+					catch (InterruptedException e)
+					{ return; }
+				}
+				waitTime = this.sendPendingSince + this.flushDeadline 
+						- System.nanoTime();
+				if (waitTime <= 0)
+				{
+					try
+					{ this.flushBuffered(); }
+					catch (IOException e)
+					{ System.err.println("Error writing packet"); }
+					continue;
+				}
+			}
+			LockSupport.parkNanos(waitTime);
+		}
+	}
 	
 	public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 			String ifaceName)
@@ -241,14 +878,180 @@ public class VNSComm
 		return true;
 	}
 	
+	/**
+	 * @param ifaceName name of an interface
+	 * @return the name as sent in packet commands
+	 */
+	private byte[] encodeInterfaceName(String ifaceName)
+	{
+		byte[] encoded = this.ifaceNames.get(ifaceName);
+		if (null == encoded)
+		{
+			encoded = ifaceName.getBytes();
+			this.ifaceNames.put(ifaceName, encoded);
+		}
+		return encoded;
+	}
+	
+	/**
+	 * Find the interface named in a packet command without decoding the name.
+	 * @param data buffer containing the packet command
+	 * @param offset absolute position of the interface name field
+	 * @return the named interface; null if the device has no such interface
+	 */
+	private Iface findInterface(ByteBuffer data, int offset)
+	{
+		for (Iface iface : this.device.getInterfaces().values())
+		{
+			byte[] name = this.encodeInterfaceName(iface.getName());
+			if (name.length > CommandPacket.IFACE_NAME_SIZE)
+			{ continue; }
+			
+			boolean matches = (name.length == CommandPacket.IFACE_NAME_SIZE)
+					|| (0 == data.get(offset + name.length));
+			for (int i = 0; matches && i < name.length; i++)
+			{ matches = (name[i] == data.get(offset + i)); }
+			if (matches)
+			{ return iface; }
+		}
+		return null;
+	}
+	
+	/**
+	 * Send a raw Ethernet frame. If the buffer has room for the command
+	 * header in front of the frame (as frames received from the server do)
+	 * the header is written there and the frame is not copied.
+	 * @param frame buffer whose remaining bytes are the frame to send; its
+	 *        position and limit are left unchanged
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendRawPacket(ByteBuffer frame, String ifaceName)
+	{
+		PacketPipeline pipeline = this.pipeline;
+		if (pipeline != null)
+		{ return pipeline.send(null, frame, ifaceName); }
+		return this.transmitRawPacket(frame, ifaceName);
+	}
+	
+	/**
+	 * Send a raw Ethernet frame from the calling thread, bypassing any
+	 * pipeline.
+	 * @param frame buffer whose remaining bytes are the frame to send; its
+	 *        position and limit are left unchanged
+	 * @param ifaceName name of the interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	boolean transmitRawPacket(ByteBuffer frame, String ifaceName)
+	{
+		int length = frame.remaining();
+		int position = frame.position();
+		byte[] name = this.encodeInterfaceName(ifaceName);
+		
+		// Log packet
+        DumpFile logFile = this.device.getLogFile();
+        if (logFile != null)
+        { logFile.dump(frame); }
+		
+        // Frames on an interface with a shared link skip the server
+        SharedLink link = this.linkFor(ifaceName);
+        if (link != null)
+        { return link.send(frame); }
+		
+	    try
+		{
+	    	synchronized (this.sendLock)
+	    	{
+	    		if (this.closed)
+	    		{ return false; }
+	    		int size = CommandPacket.HEADER_SIZE + length;
+	    		if (size <= this.sendBuffer.remaining())
+	    		{
+	    			// Copy the command into the send buffer
+	    			CommandPacket.writeHeader(this.sendBuffer, name, length);
+	    			this.sendBuffer.put(frame);
+	    			frame.position(position);
+	    			this.commandBuffered();
+	    		}
+	    		else if (position >= CommandPacket.HEADER_SIZE 
+	    				&& !frame.isReadOnly())
+	    		{
+	    			// Write the buffered commands and this command together,
+	    			// with the header written in front of the frame
+	    			int start = position - CommandPacket.HEADER_SIZE;
+	    			CommandPacket.writeHeader(frame, start, name, length);
+	    			frame.position(start);
+	    			this.sendBuffer.flip();
+	    			this.gather[0] = this.sendBuffer;
+	    			this.gather[1] = frame;
+	    			try
+	    			{ this.writeFully(this.gather); }
+	    			finally
+	    			{
+	    				frame.position(position);
+	    				this.gather[1] = null;
+	    				this.sendBufferEmptied();
+	    			}
+	    		}
+	    		else
+	    		{
+	    			ByteBuffer bb = this.sendBufferFor(length);
+	    			CommandPacket.writeHeader(bb, name, length);
+	    			bb.put(frame);
+	    			frame.position(position);
+	    			this.commandAdded(bb);
+	    		}
+	    	}
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Get a buffer in which to build a packet command, writing buffered
+	 * commands to make room if needed. Must be called while holding the
+	 * send lock.
+	 * @param frameLength length of the Ethernet frame in the command
+	 * @return the send buffer if the command fits, otherwise a new buffer
+	 */
+	private ByteBuffer sendBufferFor(int frameLength) throws IOException
+	{
+		int size = CommandPacket.HEADER_SIZE + frameLength;
+		if (size > this.sendBuffer.capacity())
+		{ return ByteBuffer.allocate(size); }
+		if (size > this.sendBuffer.remaining())
+		{ this.flushBuffered(); }
+		return this.sendBuffer;
+	}
+	
+	/**
+	 * Account for a command built in a buffer from {@link #sendBufferFor}.
+	 * Commands too large for the send buffer are written right away. Must
+	 * be called while holding the send lock.
+	 * @param bb the buffer in which the command was built
+	 */
+	private void commandAdded(ByteBuffer bb) throws IOException
+	{
+		if (bb == this.sendBuffer)
+		{
+			this.commandBuffered();
+			return;
+		}
+		bb.flip();
+		this.flushBuffered();
+		this.writeFully(bb);
+	}
+
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
-		CommandPacket cmdPacket = new CommandPacket();
-		cmdPacket.mInterfaceName = ifaceName;
-		cmdPacket.etherPacket = etherPacket;
-		
-		byte[] buf = cmdPacket.serialize();
+		PacketPipeline pipeline = this.pipeline;
+		if (pipeline != null)
+		{ return pipeline.send(etherPacket, null, ifaceName); }
 		
 		/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 		{
@@ -256,15 +1059,40 @@ public class VNSComm
 			return false;
 		}*/
 		
-		// Log packet
-        if (this.device.getLogFile() != null)
-        { this.device.getLogFile().dump(etherPacket); }
+		// Frames on an interface with a shared link skip the server
+		SharedLink link = this.linkFor(ifaceName);
+		if (link != null)
+		{ return link.send(etherPacket); }
 		
 	    try
 		{
-			OutputStream outStream = socket.getOutputStream();
-			outStream.write(buf);
-            outStream.flush();
+	    	synchronized (this.sendLock)
+	    	{
+	    		if (this.closed)
+	    		{ return false; }
+	    		
+	    		// Serialize the command header and all layers of the frame
+	    		// directly into the send buffer
+	    		int frameLength = etherPacket.getSerializedLength();
+	    		ByteBuffer bb = this.sendBufferFor(frameLength);
+	    		CommandPacket.writeHeader(bb,
+	    				this.encodeInterfaceName(ifaceName), frameLength);
+	    		int frameStart = bb.position();
+	    		etherPacket.serializeInto(bb);
+
+	    		// Log packet
+	    		DumpFile logFile = this.device.getLogFile();
+	    		if (logFile != null)
+	    		{
+	    			ByteBuffer view = (bb == this.sendBuffer) 
+	    					? this.sendView : bb.duplicate();
+	    			view.limit(bb.position());
+	    			view.position(frameStart);
+	    			logFile.dump(view);
+	    		}
+
+	    		this.commandAdded(bb);
+	    	}
 		}
 		catch(IOException e)
 		{
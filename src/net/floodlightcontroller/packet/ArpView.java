@@ -0,0 +1,85 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Flyweight view of a serialized ARP packet for IPv4 over Ethernet.
+ *
+ * @see ARP
+ */
+public class ArpView extends PacketView {
+    /**
+     * @return the hardwareType
+     */
+    public short getHardwareType() {
+        return buffer.getShort(offset);
+    }
+
+    /**
+     * @return the protocolType
+     */
+    public short getProtocolType() {
+        return buffer.getShort(offset + 2);
+    }
+
+    /**
+     * @return the hardwareAddressLength
+     */
+    public byte getHardwareAddressLength() {
+        return buffer.get(offset + 4);
+    }
+
+    /**
+     * @return the protocolAddressLength
+     */
+    public byte getProtocolAddressLength() {
+        return buffer.get(offset + 5);
+    }
+
+    /**
+     * @return the opCode
+     */
+    public short getOpCode() {
+        return buffer.getShort(offset + 6);
+    }
+
+    /**
+     * @return true if the addresses are 6-byte MACs and 4-byte IPv4 addresses
+     */
+    public boolean isEthernetIPv4() {
+        return getHardwareAddressLength() == Ethernet.DATALAYER_ADDRESS_LENGTH
+                && getProtocolAddressLength() == IPv4.IP_PROTO_LENGTH;
+    }
+
+    /**
+     * @return the senderHardwareAddress in the low order bytes of a long
+     */
+    public long getSenderHardwareAddress() {
+        return getMac(offset + 8);
+    }
+
+    /**
+     * @return the senderProtocolAddress
+     */
+    public int getSenderProtocolAddress() {
+        return buffer.getInt(offset + 14);
+    }
+
+    /**
+     * @return the targetHardwareAddress in the low order bytes of a long
+     */
+    public long getTargetHardwareAddress() {
+        return getMac(offset + 18);
+    }
+
+    /**
+     * @return the targetProtocolAddress
+     */
+    public int getTargetProtocolAddress() {
+        return buffer.getInt(offset + 24);
+    }
+
+    @Override
+    public int getPayloadOffset() {
+        return offset + 8 + 2 * (getHardwareAddressLength() & 0xff)
+                + 2 * (getProtocolAddressLength() & 0xff);
+    }
+}
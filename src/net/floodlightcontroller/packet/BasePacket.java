@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
 *
@@ -26,6 +28,11 @@ public abstract class BasePacket implements IPacket {
     protected IPacket parent;
     protected IPacket payload;
 
+    /** Undecoded payload bytes retained by deserialize; null once decoded */
+    private byte[] lazyData;
+    private int lazyOffset;
+    private int lazyLength;
+
     /**
      * @return the parent
      */
@@ -44,10 +51,20 @@ public abstract class BasePacket implements IPacket {
     }
 
     /**
+     * Returns the payload, decoding it from the bytes retained by
+     * deserialize the first time it is requested.
      * @return the payload
      */
     @Override
     public IPacket getPayload() {
+        if (this.lazyData != null) {
+            byte[] data = this.lazyData;
+            this.lazyData = null;
+            this.payload = this.decodePayload(data, this.lazyOffset,
+                    this.lazyLength);
+            if (this.payload != null)
+                this.payload.setParent(this);
+        }
         return payload;
     }
 
@@ -57,9 +74,82 @@ public abstract class BasePacket implements IPacket {
     @Override
     public IPacket setPayload(IPacket payload) {
         this.payload = payload;
+        this.lazyData = null;
         return this;
     }
-    
+
+    /**
+     * Defers decoding of the payload until {@link #getPayload()} is called.
+     * The bytes are retained by reference, so the caller must not modify them
+     * while the packet is in use.
+     * @param data buffer holding the payload
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     */
+    protected void setLazyPayload(byte[] data, int offset, int length) {
+        this.payload = null;
+        this.lazyData = data;
+        this.lazyOffset = offset;
+        this.lazyLength = length;
+    }
+
+    /**
+     * Decodes a payload retained by {@link #setLazyPayload}. Layers that
+     * defer decoding override this to pick the payload type; by default the
+     * payload is treated as raw data.
+     * @param data buffer holding the payload
+     * @param offset offset of the payload in the buffer
+     * @param length length of the payload
+     * @return the decoded payload
+     */
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        return new Data().deserialize(data, offset, length);
+    }
+
+    /**
+     * @return the serialized length of the payload; 0 if there is none
+     */
+    protected int getPayloadSerializedLength() {
+        if (this.lazyData != null)
+            return this.lazyLength;
+        if (payload == null)
+            return 0;
+        payload.setParent(this);
+        return payload.getSerializedLength();
+    }
+
+    /**
+     * Serializes the payload into a buffer at its current position. A
+     * payload that was never decoded is copied byte for byte.
+     * @param bb the buffer to write to
+     */
+    protected void serializePayloadInto(ByteBuffer bb) {
+        if (this.lazyData != null) {
+            bb.put(this.lazyData, this.lazyOffset, this.lazyLength);
+        } else if (payload != null) {
+            payload.setParent(this);
+            payload.serializeInto(bb);
+        }
+    }
+
+    /**
+     * By default the length is found by serializing the packet; packets
+     * that can compute it directly override this.
+     */
+    @Override
+    public int getSerializedLength() {
+        return this.serialize().length;
+    }
+
+    /**
+     * By default the packet is serialized to an array and copied into the
+     * buffer; packets that can write directly override this.
+     */
+    @Override
+    public void serializeInto(ByteBuffer bb) {
+        bb.put(this.serialize());
+    }
+
     @Override
     public void resetChecksum() {
         if (this.parent != null)
@@ -73,6 +163,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = this.getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +180,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = this.getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
@@ -18,8 +18,6 @@
 package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
 
 import org.openflow.util.HexString;
@@ -38,13 +36,14 @@ public class Ethernet extends BasePacket {
     public static final short TYPE_BSN = (short) 0x8942;
     public static final short VLAN_UNTAGGED = (short)0xffff;
     public static final short DATALAYER_ADDRESS_LENGTH = 6; // bytes
+    public static final PayloadRegistry etherTypeRegistry = new PayloadRegistry(16);
     public static Map<Short, Class<? extends IPacket>> etherTypeClassMap;
 
     static {
-        etherTypeClassMap = new HashMap<Short, Class<? extends IPacket>>();
-        etherTypeClassMap.put(TYPE_ARP, ARP.class);
-        etherTypeClassMap.put(TYPE_RARP, ARP.class);
-        etherTypeClassMap.put(TYPE_IPv4, IPv4.class);
+        etherTypeRegistry.register(TYPE_ARP, ARP.class, ARP::new);
+        etherTypeRegistry.register(TYPE_RARP, ARP.class, ARP::new);
+        etherTypeRegistry.register(TYPE_IPv4, IPv4.class, IPv4::new);
+        etherTypeClassMap = etherTypeRegistry.newClassMap(key -> (short) key);
     }
 
     protected MACAddress destinationMACAddress;
@@ -199,18 +198,24 @@ public class Ethernet extends BasePacket {
     }
 
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
-                          ((payloadData == null) ? 0 : payloadData.length);
+                          this.getPayloadSerializedLength();
         if (pad && length < 60) {
             length = 60;
         }
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+        return length;
+    }
+
+    @Override
+    public void serializeInto(ByteBuffer bb) {
+        int start = bb.position();
         bb.put(destinationMACAddress.toBytes());
         bb.put(sourceMACAddress.toBytes());
         if (vlanID != VLAN_UNTAGGED) {
@@ -218,12 +223,11 @@ public class Ethernet extends BasePacket {
             bb.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
         }
         bb.putShort(etherType);
-        if (payloadData != null)
-            bb.put(payloadData);
+        this.serializePayloadInto(bb);
         if (pad) {
-            Arrays.fill(data, bb.position(), data.length, (byte)0x0);
+            while (bb.position() - start < 60)
+                bb.put((byte)0x0);
         }
-        return data;
     }
 
     @Override
@@ -254,22 +258,18 @@ public class Ethernet extends BasePacket {
         }
         this.etherType = etherType;
         
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
-            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.setLazyPayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        IPacket payload = Ethernet.etherTypeRegistry.newInstance(this.etherType);
+        if (payload == null)
+            payload = new Data();
+        return payload.deserialize(data, offset, length);
+    }
+
     /**
      * Checks to see if a string is a valid MAC address.
      * @param macAddress
@@ -0,0 +1,91 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Flyweight view of a serialized Ethernet frame.
+ *
+ * @see Ethernet
+ */
+public class EthernetView extends PacketView {
+    private static final short TYPE_VLAN = (short) 0x8100;
+
+    /**
+     * @return the destination MAC in the low order bytes of a long
+     */
+    public long getDestinationMAC() {
+        return getMac(offset);
+    }
+
+    /**
+     * @param mac the destination MAC in the low order bytes of a long
+     */
+    public EthernetView setDestinationMAC(long mac) {
+        putMac(offset, mac);
+        return this;
+    }
+
+    /**
+     * @param mac the destination MAC as a byte array
+     */
+    public EthernetView setDestinationMACAddress(byte[] mac) {
+        for (int i = 0; i < Ethernet.DATALAYER_ADDRESS_LENGTH; ++i)
+            buffer.put(offset + i, mac[i]);
+        return this;
+    }
+
+    /**
+     * @return the source MAC in the low order bytes of a long
+     */
+    public long getSourceMAC() {
+        return getMac(offset + 6);
+    }
+
+    /**
+     * @param mac the source MAC in the low order bytes of a long
+     */
+    public EthernetView setSourceMAC(long mac) {
+        putMac(offset + 6, mac);
+        return this;
+    }
+
+    /**
+     * @return true if the frame carries an 802.1Q tag
+     */
+    public boolean isTagged() {
+        return buffer.getShort(offset + 12) == TYPE_VLAN;
+    }
+
+    /**
+     * @return the vlanID, or {@link Ethernet#VLAN_UNTAGGED}
+     */
+    public short getVlanID() {
+        if (!isTagged())
+            return Ethernet.VLAN_UNTAGGED;
+        return (short) (buffer.getShort(offset + 14) & 0x0fff);
+    }
+
+    /**
+     * @return the etherType of the payload
+     */
+    public short getEtherType() {
+        return buffer.getShort(offset + (isTagged() ? 16 : 12));
+    }
+
+    /**
+     * @return True if the Ethernet frame is broadcast, false otherwise
+     */
+    public boolean isBroadcast() {
+        return getDestinationMAC() == 0xffffffffffffL;
+    }
+
+    /**
+     * @return True is the Ethernet frame is multicast, False otherwise
+     */
+    public boolean isMulticast() {
+        return (buffer.get(offset) & 0x01) != 0;
+    }
+
+    @Override
+    public int getPayloadOffset() {
+        return offset + (isTagged() ? 18 : 14);
+    }
+}
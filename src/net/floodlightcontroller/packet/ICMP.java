@@ -90,29 +90,36 @@ public class ICMP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        int length = 4;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
 
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    @Override
+    public int getSerializedLength() {
+        return 4 + this.getPayloadSerializedLength();
+    }
 
+    /**
+     * Serializes the packet into a buffer. Computes and sets the same fields
+     * as {@link #serialize()}.
+     */
+    @Override
+    public void serializeInto(ByteBuffer bb) {
+        int start = bb.position();
         bb.put(this.icmpType);
         bb.put(this.icmpCode);
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        this.serializePayloadInto(bb);
+        int end = bb.position();
+        int length = end - start;
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_ICMP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
+            bb.position(start);
             int accumulation = 0;
 
             for (int i = 0; i < length / 2; ++i) {
@@ -126,9 +133,9 @@ public class ICMP extends BasePacket {
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(2, this.checksum);
+            bb.putShort(start + 2, this.checksum);
         }
-        return data;
+        bb.position(end);
     }
 
     /* (non-Javadoc)
@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -60,6 +62,21 @@ public interface IPacket {
      */
     public byte[] serialize();
 
+    /**
+     * Computes the number of bytes {@link #serializeInto(ByteBuffer)} will
+     * write for this packet and all payloads
+     * @return the serialized length in bytes
+     */
+    public int getSerializedLength();
+
+    /**
+     * Sets all payloads parent packet if applicable, then serializes this
+     * packet and all payloads into a buffer, starting at its current position
+     * and advancing it by {@link #getSerializedLength()} bytes
+     * @param bb the buffer to write to
+     */
+    public void serializeInto(ByteBuffer bb);
+
     /**
      * Deserializes this packet layer and all possible payloads
      * @param data
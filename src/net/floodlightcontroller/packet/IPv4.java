@@ -23,7 +23,6 @@ package net.floodlightcontroller.packet;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -35,13 +34,14 @@ public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
     public static final byte IP_PROTO_LENGTH = 0x4;
+    public static final PayloadRegistry protocolRegistry = new PayloadRegistry(8);
     public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
 
     static {
-        protocolClassMap = new HashMap<Byte, Class<? extends IPacket>>();
-        protocolClassMap.put(PROTOCOL_ICMP, ICMP.class);
-        protocolClassMap.put(PROTOCOL_TCP, TCP.class);
-        protocolClassMap.put(PROTOCOL_UDP, UDP.class);
+        protocolRegistry.register(PROTOCOL_ICMP, ICMP.class, ICMP::new);
+        protocolRegistry.register(PROTOCOL_TCP, TCP.class, TCP::new);
+        protocolRegistry.register(PROTOCOL_UDP, UDP.class, UDP::new);
+        protocolClassMap = protocolRegistry.newClassMap(key -> (byte) key);
     }
 
     protected byte version;
@@ -216,6 +216,57 @@ public class IPv4 extends BasePacket {
         super.resetChecksum();
     }
 
+    /**
+     * Verifies the header checksum against the header fields, without
+     * serializing the packet or its payload.
+     * @return true if the checksum is correct for the header, otherwise false
+     */
+    public boolean isChecksumValid() {
+        int accumulation = 0;
+        accumulation += ((this.version & 0xf) << 12)
+                | ((this.headerLength & 0xf) << 8) | (this.diffServ & 0xff);
+        accumulation += this.totalLength & 0xffff;
+        accumulation += this.identification & 0xffff;
+        accumulation += (((this.flags & 0x7) << 13)
+                | (this.fragmentOffset & 0x1fff)) & 0xffff;
+        accumulation += ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        accumulation += this.checksum & 0xffff;
+        accumulation += (this.sourceAddress >>> 16) + (this.sourceAddress & 0xffff);
+        accumulation += (this.destinationAddress >>> 16)
+                + (this.destinationAddress & 0xffff);
+        if (this.options != null) {
+            for (int i = 0; i + 1 < this.options.length; i += 2) {
+                accumulation += ((this.options[i] & 0xff) << 8)
+                        | (this.options[i + 1] & 0xff);
+            }
+        }
+        accumulation = ((accumulation >> 16) & 0xffff)
+                + (accumulation & 0xffff);
+        accumulation += (accumulation >> 16) & 0xffff;
+        return (accumulation & 0xffff) == 0xffff;
+    }
+
+    /**
+     * Decrements the TTL and updates the checksum incrementally for the
+     * changed header word, as described in RFC 1624, so the header does not
+     * need to be summed again.
+     * @return this packet
+     */
+    public IPv4 decrementTtl() {
+        int oldWord = ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        this.ttl = (byte) (this.ttl - 1);
+        int newWord = ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+
+        // HC' = ~(~HC + ~m + m')
+        int accumulation = (~this.checksum & 0xffff) + (~oldWord & 0xffff)
+                + newWord;
+        accumulation = ((accumulation >> 16) & 0xffff)
+                + (accumulation & 0xffff);
+        accumulation += (accumulation >> 16) & 0xffff;
+        this.checksum = (short) (~accumulation & 0xffff);
+        return this;
+    }
+
     /**
      * @return the sourceAddress
      */
@@ -288,23 +339,38 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
-
-        int optionsLength = 0;
-        if (this.options != null)
-            optionsLength = this.options.length / 4;
-        this.headerLength = (byte) (5 + optionsLength);
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
 
-        this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
-                : payloadData.length));
+    private int getOptionsLength() {
+        return (this.options == null) ? 0 : this.options.length / 4;
+    }
 
-        byte[] data = new byte[this.totalLength];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    @Override
+    public int getSerializedLength() {
+        return (5 + this.getOptionsLength()) * 4
+                + this.getPayloadSerializedLength();
+    }
 
+    /**
+     * Serializes the packet into a buffer. Computes and sets the same fields
+     * as {@link #serialize()}.
+     */
+    @Override
+    public void serializeInto(ByteBuffer bb) {
+        this.headerLength = (byte) (5 + this.getOptionsLength());
+        this.totalLength = (short) (this.headerLength * 4
+                + this.getPayloadSerializedLength());
+
+        // The payload may set the protocol, so write it before the header
+        int start = bb.position();
+        bb.position(start + this.headerLength * 4);
+        this.serializePayloadInto(bb);
+        int end = bb.position();
+
+        bb.position(start);
         bb.put((byte) (((this.version & 0xf) << 4) | (this.headerLength & 0xf)));
         bb.put(this.diffServ);
         bb.putShort(this.totalLength);
@@ -317,22 +383,20 @@ public class IPv4 extends BasePacket {
         bb.putInt(this.destinationAddress);
         if (this.options != null)
             bb.put(this.options);
-        if (payloadData != null)
-            bb.put(payloadData);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
             for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & bb.getShort(start + i * 2);
             }
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
+            accumulation += (accumulation >> 16) & 0xffff;
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(10, this.checksum);
+            bb.putShort(start + 10, this.checksum);
         }
-        return data;
+        bb.position(end);
     }
 
     @Override
@@ -361,19 +425,14 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
-            Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        // Ignore any link layer padding after the end of the datagram
+        int payloadLength = bb.limit() - bb.position();
+        int datagramPayloadLength = (this.totalLength & 0xffff)
+                - this.headerLength * 4;
+        if (datagramPayloadLength >= 0 && datagramPayloadLength < payloadLength)
+            payloadLength = datagramPayloadLength;
+
+        this.setLazyPayload(data, bb.position(), payloadLength);
 
         if (this.totalLength != length)
             this.isTruncated = true;
@@ -383,6 +442,55 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        IPacket payload = IPv4.protocolRegistry.newInstance(this.protocol);
+        if (payload == null)
+            payload = new Data();
+        return payload.deserialize(data, offset, length);
+    }
+
+    /**
+     * Verifies the checksum of a serialized IPv4 header in place.
+     * @param bb buffer containing the header
+     * @param offset absolute position of the header in the buffer
+     * @return true if the checksum is correct for the header, otherwise false
+     */
+    public static boolean isHeaderChecksumValid(ByteBuffer bb, int offset) {
+        int headerLength = (bb.get(offset) & 0xf) * 4;
+        int accumulation = 0;
+        for (int i = 0; i < headerLength; i += 2) {
+            accumulation += bb.getShort(offset + i) & 0xffff;
+        }
+        accumulation = ((accumulation >> 16) & 0xffff)
+                + (accumulation & 0xffff);
+        accumulation += (accumulation >> 16) & 0xffff;
+        return (accumulation & 0xffff) == 0xffff;
+    }
+
+    /**
+     * Decrements the TTL of a serialized IPv4 header in place and updates
+     * its checksum incrementally, as described in RFC 1624.
+     * @param bb buffer containing the header
+     * @param offset absolute position of the header in the buffer
+     * @return the new TTL
+     */
+    public static int decrementTtl(ByteBuffer bb, int offset) {
+        int oldWord = bb.getShort(offset + 8) & 0xffff;
+        int newWord = oldWord - 0x100;
+        bb.put(offset + 8, (byte) (newWord >> 8));
+
+        // HC' = ~(~HC + ~m + m')
+        int checksum = bb.getShort(offset + 10) & 0xffff;
+        int accumulation = (~checksum & 0xffff) + (~oldWord & 0xffff)
+                + (newWord & 0xffff);
+        accumulation = ((accumulation >> 16) & 0xffff)
+                + (accumulation & 0xffff);
+        accumulation += (accumulation >> 16) & 0xffff;
+        bb.putShort(offset + 10, (short) (~accumulation & 0xffff));
+        return (newWord >> 8) & 0xff;
+    }
+
     /**
      * Accepts an IPv4 address of the form xxx.xxx.xxx.xxx, ie 192.168.0.1 and
      * returns the corresponding 32 bit integer.
@@ -0,0 +1,122 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Flyweight view of a serialized IPv4 packet.
+ *
+ * @see IPv4
+ */
+public class IPv4View extends PacketView {
+    /**
+     * @return the version
+     */
+    public byte getVersion() {
+        return (byte) ((buffer.get(offset) >> 4) & 0xf);
+    }
+
+    /**
+     * @return the headerLength, in 32-bit words
+     */
+    public byte getHeaderLength() {
+        return (byte) (buffer.get(offset) & 0xf);
+    }
+
+    /**
+     * @return the diffServ
+     */
+    public byte getDiffServ() {
+        return buffer.get(offset + 1);
+    }
+
+    /**
+     * @return the totalLength
+     */
+    public short getTotalLength() {
+        return buffer.getShort(offset + 2);
+    }
+
+    /**
+     * @return the identification
+     */
+    public short getIdentification() {
+        return buffer.getShort(offset + 4);
+    }
+
+    /**
+     * @return the flags
+     */
+    public byte getFlags() {
+        return (byte) ((buffer.getShort(offset + 6) >> 13) & 0x7);
+    }
+
+    /**
+     * @return the fragmentOffset
+     */
+    public short getFragmentOffset() {
+        return (short) (buffer.getShort(offset + 6) & 0x1fff);
+    }
+
+    /**
+     * @return the ttl
+     */
+    public byte getTtl() {
+        return buffer.get(offset + 8);
+    }
+
+    /**
+     * Decrements the TTL and updates the checksum incrementally.
+     * @return the new ttl
+     */
+    public int decrementTtl() {
+        return IPv4.decrementTtl(buffer, offset);
+    }
+
+    /**
+     * @return the protocol
+     */
+    public byte getProtocol() {
+        return buffer.get(offset + 9);
+    }
+
+    /**
+     * @return the checksum
+     */
+    public short getChecksum() {
+        return buffer.getShort(offset + 10);
+    }
+
+    /**
+     * @return true if the header checksum is correct, otherwise false
+     */
+    public boolean isChecksumValid() {
+        return IPv4.isHeaderChecksumValid(buffer, offset);
+    }
+
+    /**
+     * @return the sourceAddress
+     */
+    public int getSourceAddress() {
+        return buffer.getInt(offset + 12);
+    }
+
+    /**
+     * @return the destinationAddress
+     */
+    public int getDestinationAddress() {
+        return buffer.getInt(offset + 16);
+    }
+
+    @Override
+    public int getPayloadOffset() {
+        return offset + getHeaderLength() * 4;
+    }
+
+    /**
+     * @return length of the payload, excluding any link layer padding
+     */
+    @Override
+    public int getPayloadLength() {
+        int captured = super.getPayloadLength();
+        int declared = (getTotalLength() & 0xffff) - getHeaderLength() * 4;
+        return (declared >= 0 && declared < captured) ? declared : captured;
+    }
+}
@@ -0,0 +1,101 @@
+package net.floodlightcontroller.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base class for flyweight views that read and write the fields of a
+ * serialized packet directly in a {@link ByteBuffer}, without copying the
+ * packet or creating objects for its layers. A view can be re-pointed at a
+ * different packet at any time, so one instance can be reused for every
+ * packet handled by a thread.
+ *
+ * All offsets are absolute positions in the underlying buffer.
+ */
+public abstract class PacketView {
+    protected ByteBuffer buffer;
+    protected int offset;
+    protected int length;
+
+    /**
+     * Points this view at the remaining bytes of a buffer.
+     * @param buffer buffer containing the packet
+     * @return this view
+     */
+    public PacketView wrap(ByteBuffer buffer) {
+        return this.wrap(buffer, buffer.position(), buffer.remaining());
+    }
+
+    /**
+     * Points this view at a region of a buffer.
+     * @param buffer buffer containing the packet
+     * @param offset absolute position of the packet in the buffer
+     * @param length length of the packet
+     * @return this view
+     */
+    public PacketView wrap(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * @return the buffer containing the packet
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return absolute position of the packet in the buffer
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length of the region of the buffer this view covers, including
+     *         the payload
+     */
+    public int getViewLength() {
+        return length;
+    }
+
+    /**
+     * @return absolute position of this layer's payload in the buffer
+     */
+    public abstract int getPayloadOffset();
+
+    /**
+     * @return length of this layer's payload
+     */
+    public int getPayloadLength() {
+        return Math.max(0, offset + length - getPayloadOffset());
+    }
+
+    /**
+     * Points another view at this layer's payload.
+     * @param view the view for the payload
+     * @return the payload view
+     */
+    public <T extends PacketView> T payload(T view) {
+        view.wrap(buffer, getPayloadOffset(), getPayloadLength());
+        return view;
+    }
+
+    /**
+     * Reads a 48-bit MAC address into the low order bytes of a long.
+     */
+    protected long getMac(int index) {
+        return ((buffer.getShort(index) & 0xffffL) << 32)
+                | (buffer.getInt(index + 2) & 0xffffffffL);
+    }
+
+    /**
+     * Writes a MAC address held in the low order bytes of a long.
+     */
+    protected void putMac(int index, long mac) {
+        buffer.putShort(index, (short) (mac >>> 32));
+        buffer.putInt(index + 2, (int) mac);
+    }
+}
@@ -0,0 +1,146 @@
+package net.floodlightcontroller.packet;
+
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Maps a numeric key read from a packet header (an ethertype, an IP protocol
+ * number or a transport port) to a factory for the packet class that decodes
+ * the payload. Factories are kept in an array indexed by the key, so finding
+ * and invoking one needs neither boxing nor reflection.
+ * <p>
+ * Registration is expected to happen while the classes are initialized or
+ * before packets are processed; lookups do not synchronize with it.
+ */
+public class PayloadRegistry {
+    private final Supplier<? extends IPacket>[] factories;
+    private final Class<? extends IPacket>[] classes;
+    private final int mask;
+
+    /**
+     * Create an empty registry.
+     * @param keyBits number of bits in a key; the registry has one slot for
+     *        every possible key
+     */
+    @SuppressWarnings("unchecked")
+    public PayloadRegistry(int keyBits) {
+        this.factories = (Supplier<? extends IPacket>[]) new Supplier<?>[1 << keyBits];
+        this.classes = (Class<? extends IPacket>[]) new Class<?>[1 << keyBits];
+        this.mask = (1 << keyBits) - 1;
+    }
+
+    /**
+     * Registers a packet class and the factory for it for a key, replacing
+     * any existing registration.
+     * @param key the key; only its low order bits are used
+     * @param clazz the packet class
+     * @param factory creates an empty packet of the class
+     */
+    public <T extends IPacket> void register(int key, Class<T> clazz, Supplier<T> factory) {
+        this.factories[key & this.mask] = factory;
+        this.classes[key & this.mask] = clazz;
+    }
+
+    /**
+     * Registers a packet class for a key, instantiated through its public
+     * no-argument constructor.
+     * @param key the key; only its low order bits are used
+     * @param clazz the packet class
+     */
+    public <T extends IPacket> void register(int key, final Class<T> clazz) {
+        final Constructor<T> constructor;
+        try {
+            constructor = clazz.getConstructor();
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("No public no-argument constructor in "
+                    + clazz.getName(), e);
+        }
+        this.register(key, clazz, () -> {
+            try {
+                return constructor.newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException("Failure instantiating " + clazz.getName(), e);
+            }
+        });
+    }
+
+    /**
+     * Removes the factory for a key.
+     * @param key the key; only its low order bits are used
+     */
+    public void unregister(int key) {
+        this.factories[key & this.mask] = null;
+        this.classes[key & this.mask] = null;
+    }
+
+    /**
+     * @param key the key; only its low order bits are used
+     * @return true if a factory is registered for the key
+     */
+    public boolean contains(int key) {
+        return this.factories[key & this.mask] != null;
+    }
+
+    /**
+     * Creates an empty packet for decoding a payload with the given key.
+     * @param key the key; only its low order bits are used
+     * @return a new packet; null if no factory is registered for the key
+     */
+    public IPacket newInstance(int key) {
+        Supplier<? extends IPacket> factory = this.factories[key & this.mask];
+        return (null == factory) ? null : factory.get();
+    }
+
+    /**
+     * Creates a map from keys to packet classes whose changes are also
+     * applied to this registry. This keeps code that registers payload types
+     * through the class maps working.
+     * @param toKey converts a registry key to a map key
+     * @return a map holding the classes registered so far, backed by this
+     *         registry
+     */
+    public <K extends Number> Map<K, Class<? extends IPacket>> newClassMap(IntFunction<K> toKey) {
+        ClassMap<K> map = new ClassMap<K>();
+        for (int key = 0; key < this.classes.length; key++) {
+            if (this.classes[key] != null)
+                map.record(toKey.apply(key), this.classes[key]);
+        }
+        return map;
+    }
+
+    @SuppressWarnings("serial")
+    private class ClassMap<K extends Number> extends HashMap<K, Class<? extends IPacket>> {
+        private void record(K key, Class<? extends IPacket> value) {
+            super.put(key, value);
+        }
+
+        @Override
+        public Class<? extends IPacket> put(K key, Class<? extends IPacket> value) {
+            PayloadRegistry.this.register(key.intValue(), value);
+            return super.put(key, value);
+        }
+
+        @Override
+        public void putAll(Map<? extends K, ? extends Class<? extends IPacket>> m) {
+            for (Map.Entry<? extends K, ? extends Class<? extends IPacket>> entry : m.entrySet())
+                this.put(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public Class<? extends IPacket> remove(Object key) {
+            if (this.containsKey(key))
+                PayloadRegistry.this.unregister(((Number) key).intValue());
+            return super.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            for (K key : this.keySet())
+                PayloadRegistry.this.unregister(key.intValue());
+            super.clear();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Flyweight view of a serialized RIPv2 message. Route entries are accessed
+ * by index rather than as objects.
+ *
+ * @see RIPv2
+ */
+public class RipView extends PacketView {
+    /** Length of the fixed header preceding the entries */
+    private static final int HEADER_LENGTH = 4;
+
+    /** Length of each route entry */
+    private static final int ENTRY_LENGTH = 5 * 4;
+
+    /**
+     * @return the command
+     */
+    public byte getCommand() {
+        return buffer.get(offset);
+    }
+
+    /**
+     * @return the version
+     */
+    public byte getVersion() {
+        return buffer.get(offset + 1);
+    }
+
+    /**
+     * @return the number of complete route entries in the message
+     */
+    public int getEntryCount() {
+        return Math.max(0, (length - HEADER_LENGTH) / ENTRY_LENGTH);
+    }
+
+    private int entryOffset(int index) {
+        return offset + HEADER_LENGTH + index * ENTRY_LENGTH;
+    }
+
+    /**
+     * @return the addressFamily of an entry
+     */
+    public short getAddressFamily(int index) {
+        return buffer.getShort(entryOffset(index));
+    }
+
+    /**
+     * @return the routeTag of an entry
+     */
+    public short getRouteTag(int index) {
+        return buffer.getShort(entryOffset(index) + 2);
+    }
+
+    /**
+     * @return the address of an entry
+     */
+    public int getAddress(int index) {
+        return buffer.getInt(entryOffset(index) + 4);
+    }
+
+    /**
+     * @return the subnetMask of an entry
+     */
+    public int getSubnetMask(int index) {
+        return buffer.getInt(entryOffset(index) + 8);
+    }
+
+    /**
+     * @return the nextHopAddress of an entry
+     */
+    public int getNextHopAddress(int index) {
+        return buffer.getInt(entryOffset(index) + 12);
+    }
+
+    /**
+     * @return the metric of an entry
+     */
+    public int getMetric(int index) {
+        return buffer.getInt(entryOffset(index) + 16);
+    }
+
+    @Override
+    public int getPayloadOffset() {
+        return offset + length;
+    }
+}
@@ -151,20 +151,27 @@ public class TCP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        int length;
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
+        int headerLength = ((dataOffset == 0) ? 5 : dataOffset) << 2;
+        return headerLength + this.getPayloadSerializedLength();
+    }
+
+    /**
+     * Serializes the packet into a buffer. Computes and sets the same fields
+     * as {@link #serialize()}.
+     */
+    @Override
+    public void serializeInto(ByteBuffer bb) {
         if (dataOffset == 0)
             dataOffset = 5;  // default header length
-        length = dataOffset << 2;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
-
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
 
+        int start = bb.position();
         bb.putShort(this.sourcePort);
         bb.putShort(this.destinationPort);
         bb.putInt(this.sequence);
@@ -180,15 +187,16 @@ public class TCP extends BasePacket {
             for (int i = 0; i < padding; i++)
                 bb.put((byte) 0);
         }
-        if (payloadData != null)
-            bb.put(payloadData);
+        this.serializePayloadInto(bb);
+        int end = bb.position();
+        int length = end - start;
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_TCP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
+            bb.position(start);
             int accumulation = 0;
 
             // compute pseudo header mac
@@ -213,9 +221,9 @@ public class TCP extends BasePacket {
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(16, this.checksum);
+            bb.putShort(start + 16, this.checksum);
         }
-        return data;
+        bb.position(end);
     }
 
     /* (non-Javadoc)
@@ -18,7 +18,6 @@
 package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -26,14 +25,15 @@ import java.util.Map;
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
 public class UDP extends BasePacket {
+    public static final PayloadRegistry portRegistry = new PayloadRegistry(16);
     public static Map<Short, Class<? extends IPacket>> decodeMap;
     public static short DHCP_SERVER_PORT = (short)67;
     public static short DHCP_CLIENT_PORT = (short)68;
     public static short RIP_PORT = (short)520;
 
     static {
-        decodeMap = new HashMap<Short, Class<? extends IPacket>>();
-        UDP.decodeMap.put(RIP_PORT, RIPv2.class);
+        UDP.portRegistry.register(RIP_PORT, RIPv2.class, RIPv2::new);
+        decodeMap = portRegistry.newClassMap(key -> (short) key);
     }
 
     protected short sourcePort;
@@ -106,31 +106,38 @@ public class UDP extends BasePacket {
      *      -length : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serializeInto(ByteBuffer.wrap(data));
+        return data;
+    }
 
-        this.length = (short) (8 + ((payloadData == null) ? 0
-                : payloadData.length));
+    @Override
+    public int getSerializedLength() {
+        return 8 + this.getPayloadSerializedLength();
+    }
 
-        byte[] data = new byte[this.length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    /**
+     * Serializes the packet into a buffer. Computes and sets the same fields
+     * as {@link #serialize()}.
+     */
+    @Override
+    public void serializeInto(ByteBuffer bb) {
+        this.length = (short) this.getSerializedLength();
 
+        int start = bb.position();
         bb.putShort(this.sourcePort);
         bb.putShort(this.destinationPort);
         bb.putShort(this.length);
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        this.serializePayloadInto(bb);
+        int end = bb.position();
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_UDP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
+            bb.position(start);
             int accumulation = 0;
 
             // compute pseudo header mac
@@ -155,9 +162,9 @@ public class UDP extends BasePacket {
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(6, this.checksum);
+            bb.putShort(start + 6, this.checksum);
         }
-        return data;
+        bb.position(end);
     }
 
     /* (non-Javadoc)
@@ -205,23 +212,17 @@ public class UDP extends BasePacket {
         this.length = bb.getShort();
         this.checksum = bb.getShort();
 
-        if (UDP.decodeMap.containsKey(this.destinationPort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.destinationPort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else if (UDP.decodeMap.containsKey(this.sourcePort)) {
-            try {
-                this.payload = UDP.decodeMap.get(this.sourcePort).getConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Failure instantiating class", e);
-            }
-        } else {
-            this.payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.setLazyPayload(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
+
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        IPacket payload = UDP.portRegistry.newInstance(this.destinationPort);
+        if (payload == null)
+            payload = UDP.portRegistry.newInstance(this.sourcePort);
+        if (payload == null)
+            payload = new Data();
+        return payload.deserialize(data, offset, length);
+    }
 }
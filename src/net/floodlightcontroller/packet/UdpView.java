@@ -0,0 +1,41 @@
+package net.floodlightcontroller.packet;
+
+/**
+ * Flyweight view of a serialized UDP datagram.
+ *
+ * @see UDP
+ */
+public class UdpView extends PacketView {
+    /**
+     * @return the sourcePort
+     */
+    public short getSourcePort() {
+        return buffer.getShort(offset);
+    }
+
+    /**
+     * @return the destinationPort
+     */
+    public short getDestinationPort() {
+        return buffer.getShort(offset + 2);
+    }
+
+    /**
+     * @return the length
+     */
+    public short getLength() {
+        return buffer.getShort(offset + 4);
+    }
+
+    /**
+     * @return the checksum
+     */
+    public short getChecksum() {
+        return buffer.getShort(offset + 6);
+    }
+
+    @Override
+    public int getPayloadOffset() {
+        return offset + 8;
+    }
+}